@@ -36,11 +36,14 @@ package fr.paris.lutece.plugins.jsr168.business.portlet;
 import fr.paris.lutece.plugins.jsr168.pluto.Button;
 import fr.paris.lutece.plugins.jsr168.pluto.Buttons;
 import fr.paris.lutece.plugins.jsr168.pluto.LuteceToPlutoConnector;
+import fr.paris.lutece.portal.business.page.Page;
 import fr.paris.lutece.portal.business.portlet.Portlet;
+import fr.paris.lutece.portal.service.security.SecurityService;
+import fr.paris.lutece.util.ReferenceItem;
+import fr.paris.lutece.util.ReferenceList;
 import fr.paris.lutece.util.xml.XmlUtil;
 
 import java.util.Iterator;
-import java.util.StringTokenizer;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -55,6 +58,11 @@ public class Jsr168Portlet extends Portlet
     private static final String XML_ELEMENT_PORTLET_BUTTONS = "portlet-buttons";
     private static final String XML_ELEMENT_PORTLET_BUTTONS_MODES = "modes";
     private static final String XML_ELEMENT_PORTLET_BUTTONS_STATES = "states";
+    private static final String XML_CDATA_BEGIN = "<![CDATA[";
+    private static final String XML_CDATA_END = "]]>";
+
+    // Size of the XML around the portlet content (tags, name and buttons)
+    private static final int XML_TAGS_SIZE = 2048;
 
     /////////////////////////////////////////////////////////////////////////////////
     // Constants
@@ -96,12 +104,8 @@ public class Jsr168Portlet extends Portlet
      */
     protected String addPortletTags( StringBuffer sbPortlet )
     {
-        StringBuffer sbXml = new StringBuffer(  );
-        XmlUtil.beginElement( sbXml, TAG_PORTLET );
-        XmlUtil.addElementHtml( sbXml, TAG_PORTLET_NAME, getName(  ) );
-        XmlUtil.addElement( sbXml, TAG_PORTLET_ID, getId(  ) );
-        XmlUtil.addElement( sbXml, TAG_PAGE_ID, getPageId(  ) );
-        addPortletButtons( sbXml );
+        StringBuffer sbXml = new StringBuffer( sbPortlet.length(  ) + XML_TAGS_SIZE );
+        beginPortletTags( sbXml );
         sbXml.append( sbPortlet );
         XmlUtil.endElement( sbXml, TAG_PORTLET );
 
@@ -151,13 +155,24 @@ public class Jsr168Portlet extends Portlet
      */
     public String getXml( HttpServletRequest request )
     {
-        StringBuffer sbXml = new StringBuffer(  );
+        if ( LuteceToPlutoConnector.isPageRenderRequired( getPageId(  ) ) )
+        {
+            // First JSR 168 portlet of the page: start the render of the ones the page displays
+            LuteceToPlutoConnector.startPageRender( getPageId(  ), getDisplayedPortlets( request ) );
+        }
+
+        // The content is rendered before the buttons, which depend on the window state
+        CharSequence content = LuteceToPlutoConnector.render( getId(  ), getJsr168Name(  ) );
+
+        // The whole portlet is written in a single buffer, the content is not copied twice
+        StringBuffer sbXml = new StringBuffer( content.length(  ) + XML_TAGS_SIZE );
+        beginPortletTags( sbXml );
         XmlUtil.beginElement( sbXml, TAG_HTML_PORTLET );
-        XmlUtil.addElementHtml( sbXml, TAG_HTML_PORTLET_CONTENT,
-            LuteceToPlutoConnector.render( getId(  ), getJsr168Name(  ) ) );
+        addElementHtml( sbXml, TAG_HTML_PORTLET_CONTENT, content );
         XmlUtil.endElement( sbXml, TAG_HTML_PORTLET );
+        XmlUtil.endElement( sbXml, TAG_PORTLET );
 
-        return addPortletTags( sbXml );
+        return sbXml.toString(  );
     }
 
     /**
@@ -179,6 +194,50 @@ public class Jsr168Portlet extends Portlet
         Jsr168PortletHome.getInstance(  ).update( this );
     }
 
+    /**
+     * Append the common tags to all the portlets, before the portlet content
+     *
+     * @param sbXml Buffer of current portlet xml fragment
+     */
+    private void beginPortletTags( StringBuffer sbXml )
+    {
+        XmlUtil.beginElement( sbXml, TAG_PORTLET );
+        XmlUtil.addElementHtml( sbXml, TAG_PORTLET_NAME, getName(  ) );
+        XmlUtil.addElement( sbXml, TAG_PORTLET_ID, getId(  ) );
+        XmlUtil.addElement( sbXml, TAG_PAGE_ID, getPageId(  ) );
+        addPortletButtons( sbXml );
+    }
+
+    /**
+     * Return the JSR 168 portlets of the page displayed for the current user:
+     * published portlets, without role or with a role of the user
+     *
+     * @param request Current user HTTP Request
+     * @return the list of portlets (code: Lutece portlet identifier, name: JSR 168 name)
+     */
+    private ReferenceList getDisplayedPortlets( HttpServletRequest request )
+    {
+        ReferenceList listPortlets = new ReferenceList(  );
+
+        for ( Iterator it = Jsr168PortletHome.findPublishedByPage( getPageId(  ) ).iterator(  ); it.hasNext(  ); )
+        {
+            Jsr168Portlet portlet = (Jsr168Portlet) it.next(  );
+            String strRole = portlet.getRole(  );
+
+            if ( ( strRole == null ) || Page.ROLE_NONE.equals( strRole ) ||
+                    !SecurityService.isAuthenticationEnable(  ) ||
+                    ( ( request != null ) && SecurityService.getInstance(  ).isUserInRole( request, strRole ) ) )
+            {
+                ReferenceItem item = new ReferenceItem(  );
+                item.setCode( String.valueOf( portlet.getId(  ) ) );
+                item.setName( portlet.getJsr168Name(  ) );
+                listPortlets.add( item );
+            }
+        }
+
+        return listPortlets;
+    }
+
     /**
      * Add buttons associate with this portlet.<br>
      *
@@ -200,9 +259,7 @@ public class Jsr168Portlet extends Portlet
 
         for ( Iterator it = buttons.modes(  ); it.hasNext(  ); )
         {
-            Button button = (Button) it.next(  );
-            sbXml.append( "<button link=\"" ).append( protectAmp( button.getUrlRender(  ) ) ).append( "\" image=\"" )
-                 .append( button.getImagePath(  ) ).append( "\"/>" );
+            addButton( sbXml, (Button) it.next(  ) );
         }
 
         XmlUtil.endElement( sbXml, XML_ELEMENT_PORTLET_BUTTONS_MODES );
@@ -212,9 +269,7 @@ public class Jsr168Portlet extends Portlet
 
         for ( Iterator it = buttons.states(  ); it.hasNext(  ); )
         {
-            Button button = (Button) it.next(  );
-            sbXml.append( "<button link=\"" ).append( protectAmp( button.getUrlRender(  ) ) ).append( "\" image=\"" )
-                 .append( button.getImagePath(  ) ).append( "\"/>" );
+            addButton( sbXml, (Button) it.next(  ) );
         }
 
         XmlUtil.endElement( sbXml, XML_ELEMENT_PORTLET_BUTTONS_STATES );
@@ -223,27 +278,88 @@ public class Jsr168Portlet extends Portlet
     }
 
     /**
-     * Optimized function for protecting the character &quot;&amp;&quot;
-     * by replacing it with an &quot;&amp;amp;&quot;.
+     * Add an element with an HTML content (in a CDATA section) to the XML
+     * document: the content is appended without being copied in a
+     * <code>String</code> first.
+     *
+     * @param sbXml Buffer of current portlet xml fragment
+     * @param strTag The tag of the element
+     * @param content The HTML content
+     */
+    private static void addElementHtml( StringBuffer sbXml, String strTag, CharSequence content )
+    {
+        sbXml.append( '<' ).append( strTag ).append( '>' ).append( XML_CDATA_BEGIN );
+        sbXml.append( content );
+        sbXml.append( XML_CDATA_END ).append( "</" ).append( strTag ).append( '>' );
+    }
+
+    /**
+     * Add a button element to the XML document
+     *
+     * @param sbXml Buffer of current portlet xml fragment
+     * @param button The button
+     */
+    private static void addButton( StringBuffer sbXml, Button button )
+    {
+        sbXml.append( "<button link=\"" );
+        appendAttribute( sbXml, button.getUrlRender(  ) );
+        sbXml.append( "\" image=\"" );
+        appendAttribute( sbXml, button.getImagePath(  ) );
+        sbXml.append( "\"/>" );
+    }
+
+    /**
+     * Append an attribute value to the XML document, escaping the characters
+     * &quot;&amp;&quot;, &quot;&lt;&quot;, &quot;&gt;&quot; and &quot;&quot;&quot;.
+     * The unescaped parts of the value are appended without being copied.
      *
-     * @param strSrc The string to analyse
-     * @return The string with character replaced
+     * @param sbXml Buffer of current portlet xml fragment
+     * @param strValue The attribute value (may be <code>null</code>)
      */
-    private String protectAmp( String strSrc )
+    private static void appendAttribute( StringBuffer sbXml, String strValue )
     {
-        StringBuffer buf = new StringBuffer( strSrc.length(  ) );
+        if ( strValue == null )
+        {
+            return;
+        }
+
+        int nStart = 0;
+        int nLength = strValue.length(  );
 
-        for ( StringTokenizer tokenizer = new StringTokenizer( strSrc, "&" ); tokenizer.hasMoreElements(  ); )
+        for ( int i = 0; i < nLength; i++ )
         {
-            String token = tokenizer.nextToken(  );
-            buf.append( token );
+            String strEntity;
 
-            if ( tokenizer.hasMoreElements(  ) )
+            switch ( strValue.charAt( i ) )
             {
-                buf.append( "&amp;" );
+                case '&':
+                    strEntity = "&amp;";
+
+                    break;
+
+                case '<':
+                    strEntity = "&lt;";
+
+                    break;
+
+                case '>':
+                    strEntity = "&gt;";
+
+                    break;
+
+                case '"':
+                    strEntity = "&quot;";
+
+                    break;
+
+                default:
+                    continue;
             }
+
+            sbXml.append( strValue, nStart, i ).append( strEntity );
+            nStart = i + 1;
         }
 
-        return buf.toString(  );
+        sbXml.append( strValue, nStart, nLength );
     }
 }
@@ -37,6 +37,9 @@ import fr.paris.lutece.portal.business.portlet.IPortletInterfaceDAO;
 import fr.paris.lutece.portal.business.portlet.Portlet;
 import fr.paris.lutece.util.sql.DAOUtil;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * this class provides Data Access methods for HtmlPortlet objects
@@ -48,6 +51,8 @@ public final class Jsr168PortletDAO implements IPortletInterfaceDAO
     private static final String SQL_QUERY_INSERT = "INSERT INTO portlet_jsr168 ( id_portlet, jsr168Name ) VALUES (?, ? )";
     private static final String SQL_QUERY_DELETE = "DELETE FROM portlet_jsr168 WHERE id_portlet = ?";
     private static final String SQL_QUERY_UPDATE = "UPDATE portlet_jsr168 SET jsr168Name = ? WHERE id_portlet = ?";
+    private static final String SQL_QUERY_SELECT_PUBLISHED_BY_PAGE = "SELECT a.id_portlet , a.jsr168Name , b.role FROM portlet_jsr168 a , core_portlet b " +
+        " WHERE a.id_portlet = b.id_portlet AND b.id_page = ? AND b.status = ?";
 
     /** This class implements the Singleton design pattern. */
     private static Jsr168PortletDAO _dao = new Jsr168PortletDAO(  );
@@ -86,6 +91,7 @@ public final class Jsr168PortletDAO implements IPortletInterfaceDAO
 
         daoUtil.executeUpdate(  );
         daoUtil.free(  );
+        Jsr168PortletHome.clearPageCache(  );
     }
 
     /**
@@ -100,6 +106,7 @@ public final class Jsr168PortletDAO implements IPortletInterfaceDAO
 
         daoUtil.executeUpdate(  );
         daoUtil.free(  );
+        Jsr168PortletHome.clearPageCache(  );
     }
 
     /**
@@ -140,5 +147,36 @@ public final class Jsr168PortletDAO implements IPortletInterfaceDAO
 
         daoUtil.executeUpdate(  );
         daoUtil.free(  );
+        Jsr168PortletHome.clearPageCache(  );
+    }
+
+    /**
+     * Loads the published JSR 168 portlets placed on a page (identifier, JSR
+     * 168 name and role)
+     *
+     * @param nPageId The page identifier
+     * @return the list of {@link Jsr168Portlet}
+     */
+    List selectPublishedByPage( int nPageId )
+    {
+        List list = new ArrayList(  );
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_PUBLISHED_BY_PAGE );
+        daoUtil.setInt( 1, nPageId );
+        daoUtil.setInt( 2, Portlet.STATUS_PUBLISHED );
+        daoUtil.executeQuery(  );
+
+        while ( daoUtil.next(  ) )
+        {
+            Jsr168Portlet portlet = new Jsr168Portlet(  );
+            portlet.setId( daoUtil.getInt( 1 ) );
+            portlet.setJsr168Name( daoUtil.getString( 2 ) );
+            portlet.setRole( daoUtil.getString( 3 ) );
+            portlet.setPageId( nPageId );
+            list.add( portlet );
+        }
+
+        daoUtil.free(  );
+
+        return list;
     }
 }
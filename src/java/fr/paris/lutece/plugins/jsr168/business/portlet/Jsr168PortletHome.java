@@ -36,6 +36,12 @@ package fr.paris.lutece.plugins.jsr168.business.portlet;
 import fr.paris.lutece.portal.business.portlet.IPortletInterfaceDAO;
 import fr.paris.lutece.portal.business.portlet.PortletHome;
 import fr.paris.lutece.portal.business.portlet.PortletTypeHome;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -43,6 +49,12 @@ import fr.paris.lutece.portal.business.portlet.PortletTypeHome;
  */
 public class Jsr168PortletHome extends PortletHome
 {
+    private static final String PROPERTY_PAGE_CACHE_TTL = "portlet.jsr168.render.parallel.pageCacheTTL";
+    private static final int DEFAULT_PAGE_CACHE_TTL = 60000;
+
+    // Published JSR 168 portlets by page (pages displayed with a parallel render)
+    private static final ConcurrentMap PAGE_PORTLETS = new ConcurrentHashMap(  );
+
     /* This class implements the Singleton design pattern. */
     private static Jsr168PortletHome _singleton = null;
 
@@ -94,4 +106,60 @@ public class Jsr168PortletHome extends PortletHome
     {
         return Jsr168PortletDAO.getInstance(  );
     }
+
+    /**
+     * Returns the published JSR 168 portlets placed on a page (identifier,
+     * JSR 168 name and role). The lists are kept for a while: the portlets
+     * of a page are read once for many page views.
+     *
+     * @param nPageId The page identifier
+     * @return the list of {@link Jsr168Portlet} (not modifiable)
+     */
+    public static List findPublishedByPage( int nPageId )
+    {
+        Integer pageId = Integer.valueOf( nPageId );
+        PagePortlets pagePortlets = (PagePortlets) PAGE_PORTLETS.get( pageId );
+        long lNow = System.currentTimeMillis(  );
+
+        if ( ( pagePortlets == null ) || ( pagePortlets._lExpiration < lNow ) )
+        {
+            List listPortlets = Jsr168PortletDAO.getInstance(  ).selectPublishedByPage( nPageId );
+            long lTTL = AppPropertiesService.getPropertyInt( PROPERTY_PAGE_CACHE_TTL, DEFAULT_PAGE_CACHE_TTL );
+
+            pagePortlets = new PagePortlets( Collections.unmodifiableList( listPortlets ), lNow + lTTL );
+            PAGE_PORTLETS.put( pageId, pagePortlets );
+        }
+
+        return pagePortlets._listPortlets;
+    }
+
+    /**
+     * Clear the portlets kept by page (a JSR 168 portlet is created, modified
+     * or removed)
+     */
+    static void clearPageCache(  )
+    {
+        PAGE_PORTLETS.clear(  );
+    }
+
+    /**
+     * Published JSR 168 portlets of a page
+     */
+    private static final class PagePortlets
+    {
+        private final List _listPortlets;
+        private final long _lExpiration;
+
+        /**
+         * Initialize the portlets of a page
+         *
+         * @param listPortlets The portlets
+         * @param lExpiration The expiration time (milliseconds)
+         */
+        PagePortlets( List listPortlets, long lExpiration )
+        {
+            _listPortlets = listPortlets;
+            _lExpiration = lExpiration;
+        }
+    }
 }
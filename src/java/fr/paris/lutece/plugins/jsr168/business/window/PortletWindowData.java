@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.business.window;
+
+
+/**
+ * State of a portlet window of a Lutece user (mode, window state and render
+ * parameters, encoded as in the navigational state of the URLs)
+ */
+public class PortletWindowData
+{
+    private String _strUserName;
+    private int _nPortletId;
+    private String _strWindowState;
+
+    /**
+     * Returns the name of the Lutece user
+     *
+     * @return the name of the Lutece user
+     */
+    public String getUserName(  )
+    {
+        return _strUserName;
+    }
+
+    /**
+     * Sets the name of the Lutece user
+     *
+     * @param strUserName the name of the Lutece user
+     */
+    public void setUserName( String strUserName )
+    {
+        _strUserName = strUserName;
+    }
+
+    /**
+     * Returns the Lutece portlet identifier
+     *
+     * @return the Lutece portlet identifier
+     */
+    public int getPortletId(  )
+    {
+        return _nPortletId;
+    }
+
+    /**
+     * Sets the Lutece portlet identifier
+     *
+     * @param nPortletId the Lutece portlet identifier
+     */
+    public void setPortletId( int nPortletId )
+    {
+        _nPortletId = nPortletId;
+    }
+
+    /**
+     * Returns the encoded state of the window
+     *
+     * @return the encoded state of the window
+     */
+    public String getWindowState(  )
+    {
+        return _strWindowState;
+    }
+
+    /**
+     * Sets the encoded state of the window
+     *
+     * @param strWindowState the encoded state of the window
+     */
+    public void setWindowState( String strWindowState )
+    {
+        _strWindowState = strWindowState;
+    }
+}
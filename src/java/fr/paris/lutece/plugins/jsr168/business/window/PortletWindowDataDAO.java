@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.business.window;
+
+import fr.paris.lutece.util.sql.DAOUtil;
+
+
+/**
+ * This class provides Data Access methods for PortletWindowData objects
+ */
+public final class PortletWindowDataDAO
+{
+    // Constants
+    private static final String SQL_QUERY_SELECT = "SELECT user_name, id_portlet, window_state FROM jsr168_window_state WHERE user_name = ? AND id_portlet = ?";
+    private static final String SQL_QUERY_INSERT = "INSERT INTO jsr168_window_state ( user_name, id_portlet, window_state ) VALUES ( ?, ?, ? )";
+    private static final String SQL_QUERY_UPDATE = "UPDATE jsr168_window_state SET window_state = ? WHERE user_name = ? AND id_portlet = ?";
+    private static final String SQL_QUERY_DELETE = "DELETE FROM jsr168_window_state WHERE user_name = ? AND id_portlet = ?";
+
+    /** This class implements the Singleton design pattern. */
+    private static PortletWindowDataDAO _dao = new PortletWindowDataDAO(  );
+
+    /**
+     * Creates a new PortletWindowDataDAO object.
+     */
+    private PortletWindowDataDAO(  )
+    {
+    }
+
+    /**
+     * Returns the unique instance of the singleton.
+     *
+     * @return the instance
+     */
+    static PortletWindowDataDAO getInstance(  )
+    {
+        return _dao;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////
+    //Access methods to data
+
+    /**
+     * Insert a new record in the table.
+     *
+     * @param windowData the object to be inserted
+     */
+    public void insert( PortletWindowData windowData )
+    {
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INSERT );
+        daoUtil.setString( 1, windowData.getUserName(  ) );
+        daoUtil.setInt( 2, windowData.getPortletId(  ) );
+        daoUtil.setString( 3, windowData.getWindowState(  ) );
+
+        daoUtil.executeUpdate(  );
+        daoUtil.free(  );
+    }
+
+    /**
+     * Update the record in the table
+     *
+     * @param windowData the reference of the object to be updated
+     */
+    public void store( PortletWindowData windowData )
+    {
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_UPDATE );
+        daoUtil.setString( 1, windowData.getWindowState(  ) );
+        daoUtil.setString( 2, windowData.getUserName(  ) );
+        daoUtil.setInt( 3, windowData.getPortletId(  ) );
+
+        daoUtil.executeUpdate(  );
+        daoUtil.free(  );
+    }
+
+    /**
+     * Delete a record from the table
+     *
+     * @param strUserName the name of the Lutece user
+     * @param nPortletId the Lutece portlet identifier
+     */
+    public void delete( String strUserName, int nPortletId )
+    {
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_DELETE );
+        daoUtil.setString( 1, strUserName );
+        daoUtil.setInt( 2, nPortletId );
+
+        daoUtil.executeUpdate(  );
+        daoUtil.free(  );
+    }
+
+    /**
+     * Loads the state of a window from the table
+     *
+     * @param strUserName the name of the Lutece user
+     * @param nPortletId the Lutece portlet identifier
+     * @return the state of the window, or <code>null</code> if it isn't stored
+     */
+    public PortletWindowData load( String strUserName, int nPortletId )
+    {
+        PortletWindowData windowData = null;
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT );
+        daoUtil.setString( 1, strUserName );
+        daoUtil.setInt( 2, nPortletId );
+        daoUtil.executeQuery(  );
+
+        if ( daoUtil.next(  ) )
+        {
+            windowData = new PortletWindowData(  );
+            windowData.setUserName( daoUtil.getString( 1 ) );
+            windowData.setPortletId( daoUtil.getInt( 2 ) );
+            windowData.setWindowState( daoUtil.getString( 3 ) );
+        }
+
+        daoUtil.free(  );
+
+        return windowData;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.business.window;
+
+import fr.paris.lutece.portal.service.util.AppException;
+
+
+/**
+ * This class provides instances management methods for PortletWindowData objects
+ */
+public final class PortletWindowDataHome
+{
+    /**
+     * Utility classes have no constructor
+     */
+    private PortletWindowDataHome(  )
+    {
+    }
+
+    /**
+     * Returns the stored state of a window
+     *
+     * @param strUserName the name of the Lutece user
+     * @param nPortletId the Lutece portlet identifier
+     * @return the state of the window, or <code>null</code> if it isn't stored
+     */
+    public static PortletWindowData findByPrimaryKey( String strUserName, int nPortletId )
+    {
+        return PortletWindowDataDAO.getInstance(  ).load( strUserName, nPortletId );
+    }
+
+    /**
+     * Stores the state of a window (a window without state is removed). The
+     * row is updated in place: the state is never missing for a reader.
+     *
+     * @param windowData the state of the window
+     */
+    public static void store( PortletWindowData windowData )
+    {
+        PortletWindowDataDAO dao = PortletWindowDataDAO.getInstance(  );
+
+        if ( windowData.getWindowState(  ) == null )
+        {
+            dao.delete( windowData.getUserName(  ), windowData.getPortletId(  ) );
+
+            return;
+        }
+
+        if ( dao.load( windowData.getUserName(  ), windowData.getPortletId(  ) ) != null )
+        {
+            dao.store( windowData );
+
+            return;
+        }
+
+        try
+        {
+            dao.insert( windowData );
+        }
+        catch ( AppException e )
+        {
+            // Inserted meanwhile by another node (primary key)
+            dao.store( windowData );
+        }
+    }
+}
@@ -33,6 +33,7 @@
  */
 package fr.paris.lutece.plugins.jsr168.pluto;
 
+import fr.paris.lutece.plugins.jsr168.pluto.core.PortalURL;
 import fr.paris.lutece.plugins.jsr168.pluto.core.PortletURLProviderImpl;
 import fr.paris.lutece.portal.service.util.AppPropertiesService;
 
@@ -44,6 +45,8 @@ import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.portlet.PortletMode;
 import javax.portlet.WindowState;
@@ -60,6 +63,13 @@ public class Buttons
     private static final String PROPERTIES_MODE_PREFIX = "portlet.jsr168.mode.";
     private static final String PROPERTIES_STATE_PREFIX = "portlet.jsr168.state.";
     private static final String PROPERTIES_IMAGE_SUFFIX = ".image";
+    private static final String MIME_TYPE = "text/html";
+
+    // TODO il n'y a pas d'acces a la definition des etats (WindowState) en plus...
+    private static final WindowState[] WINDOW_STATES = { WindowState.MINIMIZED, WindowState.NORMAL, WindowState.MAXIMIZED };
+
+    // Button templates, by portlet definition, portlet mode and window state
+    private static final ConcurrentMap TEMPLATES = new ConcurrentHashMap(  );
     private final List _listModes;
     private final List _listStates;
 
@@ -84,80 +94,202 @@ public class Buttons
         PortletWindowImpl portletWindow )
     {
         ObjectID portletID = portletWindow.getId(  );
+        TemplateSet templates = getTemplates( portletDef, portletWindow.getPortletMode(  ),
+                portletWindow.getWindowState(  ) );
 
-        ArrayList listModes = new ArrayList(  );
+        addButtons( _listModes, templates._modes, request, response, portletID );
+        addButtons( _listStates, templates._states, request, response, portletID );
+    }
 
-        String strMimeType = "text/html";
-        ContentType contentTypeSet = portletDef.getContentTypeSet(  ).get( strMimeType );
+    /**
+     * Return an iterator for defined buttons for modes
+     *
+     * @return an iterator for defined buttons for modes
+     */
+    public Iterator modes(  )
+    {
+        return _listModes.iterator(  );
+    }
 
-        for ( Iterator itModes = contentTypeSet.getPortletModes(  ); itModes.hasNext(  ); )
+    /**
+     * Return an iterator for defined buttons for states
+     *
+     * @return an iterator for defined buttons for states
+     */
+    public Iterator states(  )
+    {
+        return _listStates.iterator(  );
+    }
+
+    /**
+     * Compute the button templates of a portlet definition, for all its
+     * portlet modes and the window states (called when the portlet
+     * definition registry is loaded)
+     *
+     * @param portletDef The portlet definition
+     */
+    public static void prepare( PortletDefinition portletDef )
+    {
+        ContentType contentType = portletDef.getContentTypeSet(  ).get( MIME_TYPE );
+
+        if ( contentType == null )
         {
-            listModes.add( itModes.next(  ) );
+            return;
         }
 
-        for ( Iterator itModesStr = listModes.iterator(  ); itModesStr.hasNext(  ); )
+        for ( Iterator itModes = contentType.getPortletModes(  ); itModes.hasNext(  ); )
         {
-            PortletMode mode = (PortletMode) itModesStr.next(  );
+            PortletMode mode = (PortletMode) itModes.next(  );
 
-            if ( !portletWindow.getPortletMode(  ).equals( mode ) )
+            for ( int i = 0; i < WINDOW_STATES.length; i++ )
             {
-                String strHelpRenderURL = PortletURLProviderImpl.getRenderURL( request, response, mode, null, portletID );
-                String strHelpImagePath = AppPropertiesService.getProperty( PROPERTIES_MODE_PREFIX + mode +
-                        PROPERTIES_IMAGE_SUFFIX );
-
-                _listModes.add( new Button( strHelpRenderURL, strHelpImagePath ) );
+                getTemplates( portletDef, mode, WINDOW_STATES[i] );
             }
         }
+    }
 
-        if ( !WindowState.MINIMIZED.equals( portletWindow.getWindowState(  ) ) )
-        {
-            String strHelpRenderURL = PortletURLProviderImpl.getRenderURL( request, response, null,
-                    WindowState.MINIMIZED, portletID );
-            String strHelpImagePath = AppPropertiesService.getProperty( PROPERTIES_STATE_PREFIX +
-                    WindowState.MINIMIZED + PROPERTIES_IMAGE_SUFFIX );
+    /**
+     * Remove all the button templates (the portlet definitions are reloaded)
+     */
+    public static void reset(  )
+    {
+        TEMPLATES.clear(  );
+    }
 
-            _listStates.add( new Button( strHelpRenderURL, strHelpImagePath ) );
-        }
+    /**
+     * Return the button templates for a portlet definition, a portlet mode
+     * and a window state, computed on first use
+     *
+     * @param portletDef The portlet definition
+     * @param mode The current portlet mode
+     * @param state The current window state
+     * @return the button templates
+     */
+    private static TemplateSet getTemplates( PortletDefinition portletDef, PortletMode mode, WindowState state )
+    {
+        String strKey = portletDef.getId(  ) + " " + mode + " " + state;
+        TemplateSet templates = (TemplateSet) TEMPLATES.get( strKey );
 
-        // TODO il n'y a pas d'acces a la definition des etats (WindowState) en plus...
-        if ( !WindowState.NORMAL.equals( portletWindow.getWindowState(  ) ) )
+        if ( templates == null )
         {
-            String strHelpRenderURL = PortletURLProviderImpl.getRenderURL( request, response, null, WindowState.NORMAL,
-                    portletID );
-            String strHelpImagePath = AppPropertiesService.getProperty( PROPERTIES_STATE_PREFIX + WindowState.NORMAL +
-                    PROPERTIES_IMAGE_SUFFIX );
+            templates = new TemplateSet( portletDef, mode, state );
 
-            _listStates.add( new Button( strHelpRenderURL, strHelpImagePath ) );
+            TemplateSet previous = (TemplateSet) TEMPLATES.putIfAbsent( strKey, templates );
+
+            if ( previous != null )
+            {
+                templates = previous;
+            }
         }
 
-        if ( !WindowState.MAXIMIZED.equals( portletWindow.getWindowState(  ) ) )
+        return templates;
+    }
+
+    /**
+     * Add the buttons of a list of templates, with the URLs of the current request
+     *
+     * @param listButtons The buttons list
+     * @param templates The button templates
+     * @param request Current HTTP request
+     * @param response Current HTTP response
+     * @param portletID Current portlet window ID
+     */
+    private static void addButtons( List listButtons, Template[] templates, HttpServletRequest request,
+        HttpServletResponse response, ObjectID portletID )
+    {
+        for ( int i = 0; i < templates.length; i++ )
         {
-            String strHelpRenderURL = PortletURLProviderImpl.getRenderURL( request, response, null,
-                    WindowState.MAXIMIZED, portletID );
-            String strHelpImagePath = AppPropertiesService.getProperty( PROPERTIES_STATE_PREFIX +
-                    WindowState.MAXIMIZED + PROPERTIES_IMAGE_SUFFIX );
+            Template template = templates[i];
+            String strRenderURL = PortletURLProviderImpl.getRenderURL( request, response, template._mode,
+                    template._state, portletID, template._strParams );
 
-            _listStates.add( new Button( strHelpRenderURL, strHelpImagePath ) );
+            listButtons.add( new Button( strRenderURL, template._strImagePath ) );
         }
     }
 
     /**
-     * Return an iterator for defined buttons for modes
-     *
-     * @return an iterator for defined buttons for modes
+     * Button templates for a portlet definition, a portlet mode and a window state
      */
-    public Iterator modes(  )
+    private static final class TemplateSet
     {
-        return _listModes.iterator(  );
+        private static final Template[] EMPTY_TEMPLATES = new Template[0];
+        private final Template[] _modes;
+        private final Template[] _states;
+
+        /**
+         * Compute the button templates (none if the portlet doesn't support
+         * the HTML content type)
+         *
+         * @param portletDef The portlet definition
+         * @param currentMode The current portlet mode
+         * @param currentState The current window state
+         */
+        private TemplateSet( PortletDefinition portletDef, PortletMode currentMode, WindowState currentState )
+        {
+            List listModes = new ArrayList(  );
+            List listStates = new ArrayList(  );
+            ContentType contentType = portletDef.getContentTypeSet(  ).get( MIME_TYPE );
+
+            if ( contentType == null )
+            {
+                _modes = EMPTY_TEMPLATES;
+                _states = EMPTY_TEMPLATES;
+
+                return;
+            }
+
+            for ( Iterator itModes = contentType.getPortletModes(  ); itModes.hasNext(  ); )
+            {
+                PortletMode mode = (PortletMode) itModes.next(  );
+
+                if ( !mode.equals( currentMode ) )
+                {
+                    listModes.add( new Template( mode, null,
+                            AppPropertiesService.getProperty( PROPERTIES_MODE_PREFIX + mode +
+                                PROPERTIES_IMAGE_SUFFIX ) ) );
+                }
+            }
+
+            for ( int i = 0; i < WINDOW_STATES.length; i++ )
+            {
+                WindowState state = WINDOW_STATES[i];
+
+                if ( !state.equals( currentState ) )
+                {
+                    listStates.add( new Template( null, state,
+                            AppPropertiesService.getProperty( PROPERTIES_STATE_PREFIX + state +
+                                PROPERTIES_IMAGE_SUFFIX ) ) );
+                }
+            }
+
+            _modes = (Template[]) listModes.toArray( new Template[listModes.size(  )] );
+            _states = (Template[]) listStates.toArray( new Template[listStates.size(  )] );
+        }
     }
 
     /**
-     * Return an iterator for defined buttons for states
-     *
-     * @return an iterator for defined buttons for states
+     * Button template: the target mode or state, its URL parameter and its icon
      */
-    public Iterator states(  )
+    private static final class Template
     {
-        return _listStates.iterator(  );
+        private final PortletMode _mode;
+        private final WindowState _state;
+        private final String _strParams;
+        private final String _strImagePath;
+
+        /**
+         * Initialize a template
+         *
+         * @param mode The target portlet mode (or <code>null</code>)
+         * @param state The target window state (or <code>null</code>)
+         * @param strImagePath Image relative path to the icon
+         */
+        private Template( PortletMode mode, WindowState state, String strImagePath )
+        {
+            _mode = mode;
+            _state = state;
+            _strParams = PortalURL.buildParams( null, false, mode, state, null );
+            _strImagePath = strImagePath;
+        }
     }
 }
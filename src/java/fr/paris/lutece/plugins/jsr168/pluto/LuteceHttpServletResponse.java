@@ -35,7 +35,6 @@ package fr.paris.lutece.plugins.jsr168.pluto;
 
 import fr.paris.lutece.portal.service.util.AppLogService;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
@@ -50,13 +49,24 @@ import javax.servlet.http.HttpServletResponseWrapper;
  * Wrap <code>HttpServletResponse</code> for Lutece processing:
  * We can't output direct flow to response.
  * We must keep all output, and give to {@link fr.paris.lutece.plugins.jsr168.pluto.LuteceToPlutoConnector}
- * for return it for render.
+ * for return it for render.<br>
+ *
+ * Characters written with the writer are kept as characters; bytes written
+ * with the output stream are decoded with the character encoding of the response.
+ * As for a servlet response, only one of the writer and the output stream
+ * can be used.
  */
 public class LuteceHttpServletResponse extends HttpServletResponseWrapper
 {
+    private static final String DEFAULT_CHARACTER_ENCODING = "ISO-8859-1";
+    private static final String CONTENT_TYPE_CHARSET = "charset=";
     private ServletOutputStream _servletOutputStream;
     private PrintWriter _printWriter;
-    private ByteArrayOutputStream _buffer;
+    private RenderBuffer _buffer;
+    private RenderWriter _writer;
+    private String _strCharacterEncoding;
+    private boolean _bUsingWriter;
+    private boolean _bUsingOutputStream;
 
     /**
      * Initialize buffer and stream of the instance for capture
@@ -68,38 +78,103 @@ public class LuteceHttpServletResponse extends HttpServletResponseWrapper
     {
         super( response );
 
-        _buffer = new ByteArrayOutputStream(  );
+        _buffer = new RenderBuffer(  );
         _servletOutputStream = new ServletOutputStream(  )
                 {
                     public void write( int b )
                     {
                         _buffer.write( b );
                     }
+
+                    public void write( byte[] bytes, int nOffset, int nLength )
+                    {
+                        _buffer.write( bytes, nOffset, nLength );
+                    }
+
+                    public void write( byte[] bytes )
+                    {
+                        _buffer.write( bytes, 0, bytes.length );
+                    }
                 };
-        _printWriter = new PrintWriter( _servletOutputStream );
+        _writer = new RenderWriter(  );
+        _printWriter = new PrintWriter( _writer );
     }
 
     /**
-     * Return the content of the buffer
+     * Return the content of the buffer: the characters written with the
+     * writer (not copied), or the bytes written with the output stream
+     * decoded once with the character encoding of the response.
      *
      * @return the content of the buffer
      */
-    public String getBufferString(  )
+    public CharSequence getBufferContent(  )
     {
         flushBuffer(  );
 
+        if ( !_bUsingOutputStream )
+        {
+            return _writer.getContent(  );
+        }
+
         try
         {
-            return _buffer.toString( "ISO-8859-1" );
+            return _buffer.toString( getCharacterEncoding(  ) );
         }
         catch ( UnsupportedEncodingException e )
         {
-            // UTF-8 est un encoding standard de JAVA
             AppLogService.error( e.getMessage(  ), e );
             throw new RuntimeException( e.getMessage(  ) );
         }
     }
 
+    /**
+     * Return the content of the buffer
+     *
+     * @return the content of the buffer
+     */
+    public String getBufferString(  )
+    {
+        return getBufferContent(  ).toString(  );
+    }
+
+    /**
+     * Overridden: return the character encoding defined by the portlet
+     * (content type), or the character encoding of the real response.
+     *
+     * @see javax.servlet.ServletResponse#getCharacterEncoding()
+     */
+    public String getCharacterEncoding(  )
+    {
+        if ( _strCharacterEncoding != null )
+        {
+            return _strCharacterEncoding;
+        }
+
+        String strCharacterEncoding = super.getCharacterEncoding(  );
+
+        return ( strCharacterEncoding != null ) ? strCharacterEncoding : DEFAULT_CHARACTER_ENCODING;
+    }
+
+    /**
+     * Overridden: define the character encoding of the local buffer.
+     *
+     * @see javax.servlet.ServletResponse#setCharacterEncoding(java.lang.String)
+     */
+    public void setCharacterEncoding( String strCharacterEncoding )
+    {
+        // super.setCharacterEncoding( strCharacterEncoding );
+        _strCharacterEncoding = strCharacterEncoding;
+    }
+
+    /**
+     * Release the buffer (its chunks are reused by the next renders): the
+     * content of the buffer is lost.
+     */
+    public void release(  )
+    {
+        _buffer.release(  );
+    }
+
     /**
      * Overridden: flush local buffer instead "real" buffer (in parent).
      *
@@ -124,22 +199,38 @@ public class LuteceHttpServletResponse extends HttpServletResponseWrapper
     /**
      * Overridden: return local <code>OutputStream</code>.
      *
+     * @throws IllegalStateException if the writer was already returned
      * @see javax.servlet.ServletResponse#getOutputStream()
      */
     public ServletOutputStream getOutputStream(  )
     {
         // return super.getOutputStream(  );
+        if ( _bUsingWriter )
+        {
+            throw new IllegalStateException( "getWriter() has already been called for this response" );
+        }
+
+        _bUsingOutputStream = true;
+
         return _servletOutputStream;
     }
 
     /**
      * Overridden: return local <code>PrintWriter</code>.
      *
+     * @throws IllegalStateException if the output stream was already returned
      * @see javax.servlet.ServletResponse#getWriter()
      */
     public PrintWriter getWriter(  )
     {
         // return super.getWriter(  );
+        if ( _bUsingOutputStream )
+        {
+            throw new IllegalStateException( "getOutputStream() has already been called for this response" );
+        }
+
+        _bUsingWriter = true;
+
         return _printWriter;
     }
 
@@ -153,6 +244,7 @@ public class LuteceHttpServletResponse extends HttpServletResponseWrapper
         // return super.reset(  );
         flushBuffer(  );
         _buffer.reset(  );
+        _writer.reset(  );
     }
 
     /**
@@ -198,13 +290,15 @@ public class LuteceHttpServletResponse extends HttpServletResponseWrapper
     }
 
     /**
-     * Overridden: empty operation
+     * Overridden: sizing hint for the local buffer
      *
      * @see javax.servlet.ServletResponse#setBufferSize(int)
      */
     public void setBufferSize( int nSize )
     {
         // super.setBufferSize( nSize );
+        _buffer.setSizeHint( nSize );
+        _writer.setSizeHint( nSize );
     }
 
     /**
@@ -219,13 +313,33 @@ public class LuteceHttpServletResponse extends HttpServletResponseWrapper
     }
 
     /**
-     * Overridden: empty operation
+     * Overridden: only the charset of the content type is kept (character
+     * encoding of the local buffer).
      *
      * @see javax.servlet.ServletResponse#setContentType(java.lang.String)
      */
     public void setContentType( String strContentType )
     {
         // super.setContentType( strContentType );
+        if ( strContentType == null )
+        {
+            return;
+        }
+
+        int nCharsetIndex = strContentType.toLowerCase(  ).indexOf( CONTENT_TYPE_CHARSET );
+
+        if ( nCharsetIndex >= 0 )
+        {
+            String strCharset = strContentType.substring( nCharsetIndex + CONTENT_TYPE_CHARSET.length(  ) );
+            int nEndIndex = strCharset.indexOf( ';' );
+
+            if ( nEndIndex >= 0 )
+            {
+                strCharset = strCharset.substring( 0, nEndIndex );
+            }
+
+            _strCharacterEncoding = strCharset.trim(  ).replace( "\"", "" );
+        }
     }
 
     /**
@@ -266,7 +380,7 @@ public class LuteceHttpServletResponse extends HttpServletResponseWrapper
     public int getBufferSize(  )
     {
         // return super.getBufferSize(  );
-        return _buffer.size(  );
+        return _buffer.size(  ) + _writer.length(  );
     }
 
     /**
@@ -44,8 +44,37 @@ public class LutecePlutoConstant
     public static final String PROPERTY_FILE_SERVICES = "portlet.jsr168.file.services";
     public static final String PROPERTY_PROBLEM_INITIALIZATION = "portlet.jsr168.message.problem.initialization";
     public static final String PROPERTY_PROBLEM_RENDER = "portlet.jsr168.message.problem.render";
+    public static final String PROPERTY_PROBLEM_TIMEOUT = "portlet.jsr168.message.problem.timeout";
+    public static final String PROPERTY_PROBLEM_UNAVAILABLE = "portlet.jsr168.message.problem.unavailable";
     public static final String PROPERTY_LOG_PREFIX = "portlet.jsr168.log.prefix";
     public static final String PROPERTY_LOG_INITIALIZATION_FAIL = "portlet.jsr168.log.initializationFail";
+    public static final String PROPERTY_RENDER_PARALLEL_ENABLED = "portlet.jsr168.render.parallel.enabled";
+    public static final String PROPERTY_RENDER_PARALLEL_THREADS = "portlet.jsr168.render.parallel.threads";
+    public static final String PROPERTY_RENDER_PARALLEL_QUEUE_SIZE = "portlet.jsr168.render.parallel.queueSize";
+    public static final String PROPERTY_RENDER_CACHE_ENABLED = "portlet.jsr168.render.cache.enabled";
+    public static final String PROPERTY_RENDER_CACHE_MAX_SIZE = "portlet.jsr168.render.cache.maxSize";
+    public static final String PROPERTY_RENDER_BUFFER_POOL_SIZE = "portlet.jsr168.render.buffer.poolSize";
+    public static final String PROPERTY_RENDER_TIMEOUT = "portlet.jsr168.render.timeout";
+    public static final String PROPERTY_RENDER_TIMEOUT_PORTLET = "portlet.jsr168.render.timeout.portlet.";
+    public static final String PROPERTY_RENDER_TIMEOUT_BACKGROUND = "portlet.jsr168.render.timeout.background";
+    public static final String PROPERTY_RENDER_TIMEOUT_INTERRUPT = "portlet.jsr168.render.timeout.interrupt";
+    public static final String PROPERTY_RENDER_CIRCUIT_ENABLED = "portlet.jsr168.render.circuit.enabled";
+    public static final String PROPERTY_RENDER_CIRCUIT_WINDOW = "portlet.jsr168.render.circuit.window";
+    public static final String PROPERTY_RENDER_CIRCUIT_MIN_CALLS = "portlet.jsr168.render.circuit.minCalls";
+    public static final String PROPERTY_RENDER_CIRCUIT_FAILURE_RATE = "portlet.jsr168.render.circuit.failureRate";
+    public static final String PROPERTY_RENDER_CIRCUIT_SLOW_CALL = "portlet.jsr168.render.circuit.slowCall";
+    public static final String PROPERTY_RENDER_CIRCUIT_SLOW_CALL_RATE = "portlet.jsr168.render.circuit.slowCallRate";
+    public static final String PROPERTY_RENDER_CIRCUIT_OPEN_DURATION = "portlet.jsr168.render.circuit.openDuration";
+    public static final String PROPERTY_SESSION_WINDOWS_MAX_SIZE = "portlet.jsr168.session.windows.maxSize";
+    public static final String PROPERTY_SESSION_WINDOWS_IDLE_TIME = "portlet.jsr168.session.windows.idleTime";
+    public static final String PROPERTY_SESSION_SESSIONLESS = "portlet.jsr168.session.sessionless.enabled";
+    public static final String PROPERTY_URL_STATELESS = "portlet.jsr168.url.stateless.enabled";
+    public static final String PROPERTY_WINDOW_STORE = "portlet.jsr168.window.store";
+    public static final String PROPERTY_WINDOW_STORE_CACHE_SIZE = "portlet.jsr168.window.store.jdbc.cacheSize";
+    public static final String PROPERTY_WINDOW_STORE_CACHE_TTL = "portlet.jsr168.window.store.jdbc.cacheTtl";
+    public static final String PROPERTY_WINDOW_LOCK_MAX_WAIT = "portlet.jsr168.window.lock.maxWait";
+    public static final String PROPERTY_SESSION_FOOTPRINT_ENABLED = "portlet.jsr168.session.footprint.enabled";
+    public static final String PROPERTY_SESSION_FOOTPRINT_REFRESH_INTERVAL = "portlet.jsr168.session.footprint.refreshInterval";
 
     /////////////////////////////////////////////////////////////////////////
     // Properties defined in "services.xml" configuration file 
@@ -56,10 +85,14 @@ public class LutecePlutoConstant
     public static final String CONFIG_SERVICES_PARAM_HOST_PORT_HTTP_DEFAULT = "80";
     public static final String CONFIG_SERVICES_PARAM_HOST_PORT_HTTPS = "host.port.https";
     public static final String CONFIG_SERVICES_PARAM_HOST_PORT_HTTPS_DEFAULT = "443";
+    public static final String CONFIG_SERVICES_PARAM_HOST_MODE = "host.mode";
+    public static final String CONFIG_SERVICES_PARAM_HOST_FORWARDED = "host.forwarded";
     public static final String CONFIG_SERVICES_PARAM_UNIQUE_CONTAINERNAME = "portletcontainer.uniquename";
     public static final String CONFIG_SERVICES_PARAM_UNIQUE_CONTAINERNAME_DEFAULT = "lutece2Pluto";
     public static final String CONFIG_SERVICES_PARAM_SUPPORTED_PORTLETMODE = "supported.portletmode";
     public static final String CONFIG_SERVICES_PARAM_SUPPORTED_WINDOWSTATE = "supported.windowstate";
+    public static final String CONFIG_SERVICES_PARAM_BULKHEAD_MAX_CONCURRENT = "portletcontainer.bulkhead.maxConcurrent";
+    public static final String CONFIG_SERVICES_PARAM_BULKHEAD_MAX_WAIT = "portletcontainer.bulkhead.maxWait";
 
     // Properties for log service "org.apache.pluto.portalImpl.services.log.LogService"
     public static final String CONFIG_SERVICES_LOG_DEBUG_ENABLED = "debug.enable";
@@ -93,6 +126,15 @@ public class LutecePlutoConstant
     /////////////////////////////////////////////////////////////////////////
     // Properties used in Lutece/Pluto connector
     public static final String LUTECEPLUTO_SESSION_PORTLET = "fr.paris.lutece.plugins.jsr168";
+    public static final String LUTECEPLUTO_REQUEST_PENDING_RENDERS = "fr.paris.lutece.plugins.jsr168.pendingRenders";
+    public static final String LUTECEPLUTO_REQUEST_PAGE_RENDER = "fr.paris.lutece.plugins.jsr168.pageRender.";
+    public static final String LUTECEPLUTO_REQUEST_EXPIRATION_CACHE = "fr.paris.lutece.plugins.jsr168.expirationCache.";
+    public static final String LUTECEPLUTO_REQUEST_RENDER_CONTEXTS = "fr.paris.lutece.plugins.jsr168.renderContexts";
+    public static final String LUTECEPLUTO_REQUEST_SNAPSHOT = "fr.paris.lutece.plugins.jsr168.requestSnapshot";
+    public static final String LUTECEPLUTO_RESPONSE_SNAPSHOT = "fr.paris.lutece.plugins.jsr168.responseSnapshot";
+    public static final String LUTECEPLUTO_REQUEST_NAVIGATIONAL_STATE = "fr.paris.lutece.plugins.jsr168.navigationalState";
+    public static final String LUTECEPLUTO_REQUEST_URL_PREFIXES = "fr.paris.lutece.plugins.jsr168.urlPrefixes";
+    public static final String LUTECEPLUTO_REQUEST_PORTAL_URL = "fr.paris.lutece.plugins.jsr168.portalURL";
 
     /////////////////////////////////////////////////////////////////////////
     // Properties used in Pluto portal modifications
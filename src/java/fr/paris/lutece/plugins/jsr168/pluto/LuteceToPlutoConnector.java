@@ -33,10 +33,17 @@
  */
 package fr.paris.lutece.plugins.jsr168.pluto;
 
+import fr.paris.lutece.plugins.jsr168.pluto.core.NavigationalState;
 import fr.paris.lutece.plugins.jsr168.pluto.core.PortalEnvironment;
 import fr.paris.lutece.plugins.jsr168.pluto.core.PortalURL;
 import fr.paris.lutece.plugins.jsr168.pluto.core.PortletContainerEnvironment;
+import fr.paris.lutece.plugins.jsr168.pluto.exception.PortletRejectedException;
+import fr.paris.lutece.plugins.jsr168.pluto.services.property.PropertyManagerServiceImpl;
+import fr.paris.lutece.plugins.jsr168.pluto.servlet.RequestSnapshot;
+import fr.paris.lutece.plugins.jsr168.pluto.servlet.ResponseSnapshot;
 import fr.paris.lutece.plugins.jsr168.pluto.servlet.ServletRequestImpl;
+import fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore;
+import fr.paris.lutece.plugins.jsr168.pluto.store.WindowStateStoreService;
 import fr.paris.lutece.portal.service.security.LuteceUser;
 import fr.paris.lutece.portal.service.security.SecurityService;
 import fr.paris.lutece.portal.service.util.AppLogService;
@@ -48,12 +55,12 @@ import fr.paris.lutece.util.ReferenceList;
 import org.apache.pluto.PortletContainer;
 import org.apache.pluto.om.common.DisplayName;
 import org.apache.pluto.om.common.ObjectID;
+import org.apache.pluto.om.common.SecurityRoleRef;
 import org.apache.pluto.om.entity.PortletEntity;
 import org.apache.pluto.om.portlet.PortletApplicationDefinition;
 import org.apache.pluto.om.portlet.PortletApplicationDefinitionList;
 import org.apache.pluto.om.portlet.PortletDefinition;
 import org.apache.pluto.om.portlet.PortletDefinitionList;
-import org.apache.pluto.om.window.PortletWindowCtrl;
 import org.apache.pluto.portalImpl.core.PortletContainerFactory;
 import org.apache.pluto.portalImpl.factory.FactoryAccess;
 import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
@@ -62,15 +69,26 @@ import org.apache.pluto.portalImpl.services.config.Config;
 import org.apache.pluto.portalImpl.services.factorymanager.FactoryManager;
 import org.apache.pluto.portalImpl.services.log.Log;
 import org.apache.pluto.portalImpl.services.portletdefinitionregistry.PortletDefinitionRegistry;
-import org.apache.pluto.portalImpl.services.portletentityregistry.PortletEntityRegistry;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
 
 import javax.portlet.PortletRequest;
+import javax.portlet.WindowState;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletRequest;
@@ -122,6 +140,18 @@ public final class LuteceToPlutoConnector
      */
     private static PortletContainer _portletContainer;
 
+    /**
+     * The container behind Pluto's wrapper, when it can load and render a
+     * portlet in a single invocation
+     */
+    private static PortletContainerImpl _renderContainer;
+
+    /**
+     * The roles referenced by the portlet definitions (checked when a request
+     * snapshot is taken)
+     */
+    private static volatile Collection _collectionDeclaredRoles;
+
     /**
      * Utility classes have no constructor
      */
@@ -162,6 +192,7 @@ public final class LuteceToPlutoConnector
                     environment.addContainerService( Log.getService(  ) );
                     environment.addContainerService( FactoryManager.getService(  ) );
                     environment.addContainerService( FactoryAccess.getInformationProviderContainerService(  ) );
+                    environment.addContainerService( new PropertyManagerServiceImpl(  ) );
 
                     // No special properties to transmit
                     Properties properties = new Properties(  );
@@ -169,9 +200,19 @@ public final class LuteceToPlutoConnector
                     _portletContainer = PortletContainerFactory.getPortletContainer(  );
                     _portletContainer.init( strUniqueContainerName, config, environment, properties );
 
+                    PortletContainer originalContainer = PortletContainerFactory.getPortletContainerOriginal(  );
+                    _renderContainer = ( originalContainer instanceof PortletContainerImpl )
+                        ? (PortletContainerImpl) originalContainer : null;
+
                     if ( _portletContainer.isInitialized(  ) )
                     {
                         _nStateInit = STATE_INIT_DONE_OK;
+
+                        if ( Boolean.valueOf( AppPropertiesService.getProperty(
+                                        LutecePlutoConstant.PROPERTY_SESSION_FOOTPRINT_ENABLED, "false" ) ).booleanValue(  ) )
+                        {
+                            SessionFootprint.register(  );
+                        }
                     }
                     else
                     {
@@ -197,27 +238,486 @@ public final class LuteceToPlutoConnector
     }
 
     /**
-     * TODO Not implemented: must be called (and coded) for shutdown Pluto
-     * container.
+     * Stop the services of the connector when the web application stops (see
+     * {@link fr.paris.lutece.plugins.jsr168.web.PageRenderFilter#destroy()}):
+     * render threads, caches, pending window states (written) and session
+     * footprint MBean. The portlets themselves are not destroyed.
      */
     public static void shutdown(  )
     {
+        PortletRenderExecutor.shutdown(  );
+        PortletRenderCache.clear(  );
+        PortletCircuitBreaker.clear(  );
+        WindowStateStoreService.shutdown(  );
+        SessionFootprint.unregister(  );
     }
 
     /**
-     * Render the portlet fragment
+     * Indicate if the render of the JSR 168 portlets of a page must be started
+     * (parallel render is enabled and the page isn't already started for the
+     * current request).
+     *
+     * @param nPageId Lutece page ID
+     * @return <code>true</code> if {@link #startPageRender(int, ReferenceList)} must be called
+     */
+    public static boolean isPageRenderRequired( int nPageId )
+    {
+        if ( !Boolean.valueOf( AppPropertiesService.getProperty(
+                        LutecePlutoConstant.PROPERTY_RENDER_PARALLEL_ENABLED, "false" ) ).booleanValue(  ) )
+        {
+            return false;
+        }
+
+        HttpServletRequest request = LocalVariables.getRequest(  );
+
+        return ( request != null ) &&
+        ( request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PAGE_RENDER + nPageId ) == null );
+    }
+
+    /**
+     * Start the render of the JSR 168 portlets displayed by a page. Each
+     * portlet is rendered by the render executor, with a snapshot of the
+     * current request taken once for the page; the result is joined by
+     * {@link #render(int, String)}, the renders not joined are cancelled by
+     * {@link #endPageRender(HttpServletRequest)}.
+     *
+     * @param nPageId Lutece page ID
+     * @param listPortlets The portlets displayed by the page (code: Lutece portlet ID, name: JSR 168 portlet name)
+     */
+    public static void startPageRender( int nPageId, ReferenceList listPortlets )
+    {
+        // Restore main parameter from the ThreadLocal
+        ServletConfig config = LocalVariables.getConfig(  );
+        HttpServletRequest request = LocalVariables.getRequest(  );
+        HttpServletResponse response = LocalVariables.getResponse(  );
+
+        request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PAGE_RENDER + nPageId, Boolean.TRUE );
+
+        if ( !init( config ) )
+        {
+            return;
+        }
+
+        Map mapPendingRenders = getPendingRenders( request );
+        ReferenceList listRenders = new ReferenceList(  );
+
+        // The contexts are resolved before the snapshot: they are shared with the render threads
+        for ( Iterator it = listPortlets.iterator(  ); it.hasNext(  ); )
+        {
+            ReferenceItem item = (ReferenceItem) it.next(  );
+            int nPortletId = Integer.parseInt( item.getCode(  ) );
+
+            if ( !mapPendingRenders.containsKey( Integer.valueOf( nPortletId ) ) &&
+                    !isMinimized( request, nPortletId ) )
+            {
+                PortletRenderContext.getContext( request, nPortletId, item.getName(  ) );
+                listRenders.add( item );
+            }
+        }
+
+        for ( Iterator it = listRenders.iterator(  ); it.hasNext(  ); )
+        {
+            ReferenceItem item = (ReferenceItem) it.next(  );
+            Integer nPortletId = Integer.valueOf( item.getCode(  ) );
+            PendingRender pendingRender = startRender( config, request, response, nPortletId.intValue(  ),
+                    item.getName(  ) );
+
+            // Executor full: the portlet is rendered when the page displays it
+            if ( pendingRender != null )
+            {
+                mapPendingRenders.put( nPortletId, pendingRender );
+            }
+        }
+    }
+
+    /**
+     * End the render of the JSR 168 portlets of the pages of the current
+     * request: the renders started and not joined (portlets the page didn't
+     * display) are cancelled.
+     *
+     * @param request The HTTP request
+     */
+    public static void endPageRender( HttpServletRequest request )
+    {
+        Map mapPendingRenders = (Map) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PENDING_RENDERS );
+
+        if ( mapPendingRenders == null )
+        {
+            return;
+        }
+
+        request.removeAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PENDING_RENDERS );
+
+        for ( Iterator it = mapPendingRenders.values(  ).iterator(  ); it.hasNext(  ); )
+        {
+            PendingRender pendingRender = (PendingRender) it.next(  );
+
+            // A running render isn't interrupted: it ends with its snapshot, its result is ignored
+            pendingRender.getFuture(  ).cancel( false );
+        }
+    }
+
+    /**
+     * Indicate if the window of a portlet is minimized for the current user
+     * (the portlet isn't invoked)
+     *
+     * @param request The HTTP request
+     * @param nPortletID Lutece portlet ID
+     * @return <code>true</code> if the portlet window is minimized
+     */
+    private static boolean isMinimized( HttpServletRequest request, int nPortletID )
+    {
+        if ( NavigationalState.isEnabled(  ) )
+        {
+            return WindowState.MINIMIZED.equals( NavigationalState.getNavigationalState( request )
+                                                                  .getWindowState( String.valueOf( nPortletID ) ) );
+        }
+
+        IWindowStateStore store = WindowStateStoreService.getStore(  );
+        PortletWindowImpl portletWindow = store.findPortletWindow( request, String.valueOf( nPortletID ) );
+
+        return ( portletWindow != null ) && WindowState.MINIMIZED.equals( portletWindow.getWindowState(  ) );
+    }
+
+    /**
+     * Start the render of a portlet on the render executor, with a view of the
+     * snapshot of the current request and the snapshot of the response
+     *
+     * @param config The <code>ServletConfig</code> of the web application
+     * @param request The HTTP request
+     * @param response The HTTP response
+     * @param nPortletID Lutece portlet ID
+     * @param strPortletName JSR 168 portlet name (ID)
+     * @return the pending render, <code>null</code> if the render executor is full
+     */
+    private static PendingRender startRender( ServletConfig config, HttpServletRequest request,
+        HttpServletResponse response, int nPortletID, String strPortletName )
+    {
+        // Resolved before the snapshot: the context is shared with the render thread
+        PortletRenderContext.getContext( request, nPortletID, strPortletName );
+
+        RequestSnapshot requestSnapshot = (RequestSnapshot) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_SNAPSHOT );
+
+        if ( requestSnapshot == null )
+        {
+            // One snapshot for all the renders of the page
+            requestSnapshot = new RequestSnapshot( request, config.getServletContext(  ), getDeclaredRoles(  ) );
+            request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_RESPONSE_SNAPSHOT,
+                new ResponseSnapshot( request, response ) );
+            request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_SNAPSHOT, requestSnapshot );
+        }
+
+        HttpServletResponse responseSnapshot = (HttpServletResponse) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_RESPONSE_SNAPSHOT );
+        RenderTask task = new RenderTask( config, new RequestSnapshot( requestSnapshot ), responseSnapshot,
+                nPortletID, strPortletName );
+
+        try
+        {
+            return new PendingRender( PortletRenderExecutor.submit( task ) );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            AppLogService.info( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " render executor full (lutece ID [" + nPortletID + "]; portlet name [" + strPortletName + "])" );
+
+            return null;
+        }
+    }
+
+    /**
+     * Return the roles referenced by the portlet definitions (role names and
+     * role links of their security role references)
+     *
+     * @return the roles
+     */
+    private static Collection getDeclaredRoles(  )
+    {
+        Collection collectionRoles = _collectionDeclaredRoles;
+
+        if ( collectionRoles == null )
+        {
+            collectionRoles = new HashSet(  );
+
+            PortletApplicationDefinitionList applicationDefinitionList = PortletDefinitionRegistry.getPortletApplicationDefinitionList(  );
+
+            for ( Iterator itApplications = applicationDefinitionList.iterator(  ); itApplications.hasNext(  ); )
+            {
+                PortletApplicationDefinition applicationDefinition = (PortletApplicationDefinition) itApplications.next(  );
+
+                for ( Iterator itPortlets = applicationDefinition.getPortletDefinitionList(  ).iterator(  );
+                        itPortlets.hasNext(  ); )
+                {
+                    PortletDefinition portletDefinition = (PortletDefinition) itPortlets.next(  );
+
+                    for ( Iterator itRoles = portletDefinition.getInitSecurityRoleRefSet(  ).iterator(  );
+                            itRoles.hasNext(  ); )
+                    {
+                        SecurityRoleRef roleRef = (SecurityRoleRef) itRoles.next(  );
+
+                        if ( roleRef.getRoleName(  ) != null )
+                        {
+                            collectionRoles.add( roleRef.getRoleName(  ) );
+                        }
+
+                        if ( roleRef.getRoleLink(  ) != null )
+                        {
+                            collectionRoles.add( roleRef.getRoleLink(  ) );
+                        }
+                    }
+                }
+            }
+
+            collectionRoles = Collections.unmodifiableCollection( collectionRoles );
+            _collectionDeclaredRoles = collectionRoles;
+        }
+
+        return collectionRoles;
+    }
+
+    /**
+     * Render the portlet fragment (or join the render started by
+     * {@link #startPageRender(int, ReferenceList)}).<br>
+     *
+     * When a render deadline is defined for the portlet, the render is done
+     * by the render executor: after the deadline, the last good fragment of
+     * the portlet (or a fallback message) is returned. When the render
+     * executor is full, the portlet isn't rendered: the deadline can't be kept.
      *
      * @param nPortletID Lutece portlet ID
      * @param strPortletName JSR 168 portlet name (ID)
      * @return the portlet fragment page
      */
-    public static String render( int nPortletID, String strPortletName )
+    public static CharSequence render( int nPortletID, String strPortletName )
     {
         // Restore main parameter from the ThreadLocal
         ServletConfig config = LocalVariables.getConfig(  );
         HttpServletRequest request = LocalVariables.getRequest(  );
         HttpServletResponse response = LocalVariables.getResponse(  );
 
+        // Minimized window: only the title bar and the buttons are displayed
+        if ( isMinimized( request, nPortletID ) )
+        {
+            AppLogService.debug( "JSR168 / Render porlet skipped, window minimized (lutece ID [" + nPortletID + "])" );
+
+            return "";
+        }
+
+        Map mapPendingRenders = (Map) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PENDING_RENDERS );
+        PendingRender pendingRender = ( mapPendingRenders != null )
+            ? (PendingRender) mapPendingRenders.remove( Integer.valueOf( nPortletID ) ) : null;
+
+        if ( ( pendingRender == null ) && ( getRenderTimeout( strPortletName ) > 0 ) )
+        {
+            if ( !init( config ) )
+            {
+                return AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_PROBLEM_INITIALIZATION );
+            }
+
+            pendingRender = startRender( config, request, response, nPortletID, strPortletName );
+
+            if ( pendingRender == null )
+            {
+                return getLastGood( request, nPortletID, strPortletName,
+                    LutecePlutoConstant.PROPERTY_PROBLEM_UNAVAILABLE );
+            }
+        }
+
+        CharSequence strContent;
+
+        if ( pendingRender != null )
+        {
+            strContent = joinRender( request, pendingRender, nPortletID, strPortletName );
+        }
+        else
+        {
+            strContent = render( config, request, response, nPortletID, strPortletName );
+        }
+
+        storeChangedWindow( request, nPortletID, strPortletName );
+
+        return strContent;
+    }
+
+    /**
+     * Store the window of a portlet if the render has changed it (values
+     * restored after a failure): nothing is written for a read-only page view
+     *
+     * @param request The HTTP request
+     * @param nPortletID Lutece portlet ID
+     * @param strPortletName JSR 168 portlet name (ID)
+     */
+    private static void storeChangedWindow( HttpServletRequest request, int nPortletID, String strPortletName )
+    {
+        if ( NavigationalState.isEnabled(  ) || ( _nStateInit != STATE_INIT_DONE_OK ) )
+        {
+            return;
+        }
+
+        PortletWindowImpl portletWindow = PortletRenderContext.getContext( request, nPortletID, strPortletName )
+                                                              .getPortletWindow(  );
+
+        if ( portletWindow.isDirty(  ) )
+        {
+            WindowStateStoreService.getStore(  ).storePortletWindow( request, portletWindow );
+        }
+    }
+
+    /**
+     * Wait for the end of a render started on the render executor, until the
+     * render deadline of the portlet (measured from the start of the render)
+     *
+     * @param request The HTTP request
+     * @param pendingRender The pending render
+     * @param nPortletID Lutece portlet ID
+     * @param strPortletName JSR 168 portlet name (ID)
+     * @return the portlet fragment page
+     */
+    private static CharSequence joinRender( HttpServletRequest request, PendingRender pendingRender, int nPortletID,
+        String strPortletName )
+    {
+        Future future = pendingRender.getFuture(  );
+        int nTimeout = getRenderTimeout( strPortletName );
+
+        try
+        {
+            if ( nTimeout <= 0 )
+            {
+                return (CharSequence) future.get(  );
+            }
+
+            long lRemainingTime = ( pendingRender.getStartTime(  ) + nTimeout ) - System.currentTimeMillis(  );
+
+            return (CharSequence) future.get( Math.max( lRemainingTime, 0L ), TimeUnit.MILLISECONDS );
+        }
+        catch ( TimeoutException e )
+        {
+            return abandonRender( request, future, nPortletID, strPortletName );
+        }
+        catch ( CancellationException e )
+        {
+            // Render dropped by the shutdown of the render executor
+            AppLogService.info( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " render cancelled (lutece ID [" + nPortletID + "])" );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+            AppLogService.error( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " render interrupted (lutece ID [" + nPortletID + "])", e );
+        }
+        catch ( ExecutionException e )
+        {
+            AppLogService.error( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " exception " + e.getCause(  ).getClass(  ).getName(  ) + ": " + e.getCause(  ).getMessage(  ),
+                e.getCause(  ) );
+        }
+
+        return AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_PROBLEM_RENDER );
+    }
+
+    /**
+     * Give up a render after its deadline: the render is cancelled (the
+     * portlet is interrupted only if configured so), or ends in background
+     * (its fragment is kept for the next pages).
+     *
+     * @param request The HTTP request
+     * @param future The pending render
+     * @param nPortletID Lutece portlet ID
+     * @param strPortletName JSR 168 portlet name (ID)
+     * @return the last good fragment of the portlet, or the fallback message
+     */
+    private static CharSequence abandonRender( HttpServletRequest request, Future future, int nPortletID,
+        String strPortletName )
+    {
+        if ( !Boolean.valueOf( AppPropertiesService.getProperty(
+                        LutecePlutoConstant.PROPERTY_RENDER_TIMEOUT_BACKGROUND, "false" ) ).booleanValue(  ) )
+        {
+            // An interrupted portlet may leave its resources (JDBC connections, locks) in an unknown state
+            future.cancel( Boolean.valueOf( AppPropertiesService.getProperty(
+                        LutecePlutoConstant.PROPERTY_RENDER_TIMEOUT_INTERRUPT, "false" ) ).booleanValue(  ) );
+        }
+
+        AppLogService.info( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+            " render deadline exceeded (lutece ID [" + nPortletID + "]; portlet name [" + strPortletName + "])" );
+
+        return getLastGood( request, nPortletID, strPortletName, LutecePlutoConstant.PROPERTY_PROBLEM_TIMEOUT );
+    }
+
+    /**
+     * Return the last good fragment of a portlet, for a render that can't be
+     * displayed
+     *
+     * @param request The HTTP request
+     * @param nPortletID Lutece portlet ID
+     * @param strPortletName JSR 168 portlet name (ID)
+     * @param strMessageProperty The property of the message displayed when
+     *        the portlet has no last good fragment
+     * @return the last good fragment of the portlet, or the message
+     */
+    private static CharSequence getLastGood( HttpServletRequest request, int nPortletID, String strPortletName,
+        String strMessageProperty )
+    {
+        PortletRenderContext context = PortletRenderContext.getContext( request, nPortletID, strPortletName );
+        PortletWindowImpl portletWindow = context.getPortletWindow(  );
+        PortletRenderCache.Key key = PortletRenderCache.getKey( new ServletRequestImpl( request, portletWindow ),
+                portletWindow, context.getPortletEntityId(  ) );
+        String strLastGood = ( key != null ) ? PortletRenderCache.getLastGood( key ) : null;
+
+        if ( strLastGood != null )
+        {
+            return strLastGood;
+        }
+
+        return AppPropertiesService.getProperty( strMessageProperty );
+    }
+
+    /**
+     * Return the render deadline of a portlet: the value defined for the
+     * portlet definition, or the global value
+     *
+     * @param strPortletName JSR 168 portlet name (ID)
+     * @return the render deadline (milliseconds), <code>0</code> for no deadline
+     */
+    private static int getRenderTimeout( String strPortletName )
+    {
+        int nTimeout = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_TIMEOUT, 0 );
+
+        return AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_TIMEOUT_PORTLET +
+            strPortletName, nTimeout );
+    }
+
+    /**
+     * Return the renders started for the current request
+     *
+     * @param request The HTTP request
+     * @return the renders started (key: Lutece portlet ID, value: {@link PendingRender})
+     */
+    private static Map getPendingRenders( HttpServletRequest request )
+    {
+        Map mapPendingRenders = (Map) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PENDING_RENDERS );
+
+        if ( mapPendingRenders == null )
+        {
+            mapPendingRenders = new HashMap(  );
+            request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PENDING_RENDERS, mapPendingRenders );
+        }
+
+        return mapPendingRenders;
+    }
+
+    /**
+     * Render the portlet fragment
+     *
+     * @param config The <code>ServletConfig</code> of the web application
+     * @param request The HTTP request
+     * @param response The HTTP response
+     * @param nPortletID Lutece portlet ID
+     * @param strPortletName JSR 168 portlet name (ID)
+     * @return the portlet fragment page
+     */
+    private static CharSequence render( ServletConfig config, HttpServletRequest request, HttpServletResponse response,
+        int nPortletID, String strPortletName )
+    {
         // Initialize pluto if isn't done
         if ( !init( config ) )
         {
@@ -228,18 +728,43 @@ public final class LuteceToPlutoConnector
             strPortletName + "]" );
 
         // Retrieve the portlet window
-        PlutoSession plutoSession = PlutoSession.findSession( request );
-        PortletWindowImpl portletWindow = plutoSession.getPortletWindow( String.valueOf( nPortletID ) );
+        PortletRenderContext context = PortletRenderContext.getContext( request, nPortletID, strPortletName );
+        PortletWindowImpl portletWindow = context.getPortletWindow(  );
+        PortletEntity portletEntity = context.getPortletEntity(  );
+        String strPortletEntityId = context.getPortletEntityId(  );
 
         // Wrap request and response
         HttpServletRequest luteceRequest = new ServletRequestImpl( request, portletWindow );
         LuteceHttpServletResponse luteceResponse = new LuteceHttpServletResponse( response );
 
-        String strPortletEntityId = LutecePlutoConstant.WEBAPP + "." + strPortletName;
+        // Fragment still valid in the render cache
+        boolean bCacheEnabled = PortletRenderCache.isEnabled(  );
+        boolean bKeepLastGood = getRenderTimeout( strPortletName ) > 0;
+        PortletRenderCache.Key cacheKey = ( bCacheEnabled || bKeepLastGood )
+            ? PortletRenderCache.getKey( luteceRequest, portletWindow, strPortletEntityId ) : null;
+        String strCachedData = ( bCacheEnabled && ( cacheKey != null ) ) ? PortletRenderCache.get( cacheKey ) : null;
+
+        if ( strCachedData != null )
+        {
+            AppLogService.debug( "JSR168 / Render porlet from cache (lutece ID [" + nPortletID + "])" );
+            portletWindow.saveValues(  );
+
+            return strCachedData;
+        }
 
-        ObjectID objectID = org.apache.pluto.portalImpl.util.ObjectID.createFromString( strPortletEntityId );
-        PortletEntity portletEntity = PortletEntityRegistry.getPortletEntity( objectID );
-        ( (PortletWindowCtrl) portletWindow ).setPortletEntity( portletEntity );
+        // Broken portlet: the portlet isn't invoked until its circuit closes
+        if ( !PortletCircuitBreaker.allowRequest( strPortletEntityId ) )
+        {
+            AppLogService.debug( "JSR168 / Render porlet skipped, circuit open (lutece ID [" + nPortletID + "])" );
+            portletWindow.restoreValues(  );
+
+            String strLastGood = ( cacheKey != null ) ? PortletRenderCache.getLastGood( cacheKey ) : null;
+
+            return ( strLastGood != null ) ? strLastGood
+                                           : AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_PROBLEM_UNAVAILABLE );
+        }
+
+        long lStartTime = System.currentTimeMillis(  );
 
         try
         {
@@ -249,22 +774,90 @@ public final class LuteceToPlutoConnector
             // Needed since we want to avoid side effect in PortalEnvironment constructor
             portalEnvironment.initPortalEnvironment(  );
 
-            _portletContainer.portletLoad( portletWindow, luteceRequest, luteceResponse );
-            _portletContainer.renderPortlet( portletWindow, luteceRequest, luteceResponse );
+            if ( _renderContainer != null )
+            {
+                _renderContainer.loadAndRenderPortlet( portletWindow, luteceRequest, luteceResponse );
+            }
+            else
+            {
+                _portletContainer.portletLoad( portletWindow, luteceRequest, luteceResponse );
+                _portletContainer.renderPortlet( portletWindow, luteceRequest, luteceResponse );
+            }
+            PortletCircuitBreaker.recordSuccess( strPortletEntityId, System.currentTimeMillis(  ) - lStartTime );
+
+            CharSequence data = luteceResponse.getBufferContent(  );
 
-            String strData = luteceResponse.getBufferString(  );
+            // The render may have created a session or changed the user: the
+            // fragment is then not cached under the key of the previous user
+            if ( ( cacheKey != null ) &&
+                    PortletRenderCache.isValidKey( luteceRequest, portletWindow, strPortletEntityId, cacheKey ) )
+            {
+                String strData = data.toString(  );
+
+                if ( bCacheEnabled )
+                {
+                    PortletRenderCache.put( cacheKey, strData,
+                        getExpirationCache( luteceRequest, portletEntity, portletWindow ) );
+                }
 
-            return strData;
+                if ( bKeepLastGood )
+                {
+                    PortletRenderCache.putLastGood( cacheKey, strData );
+                }
+
+                return strData;
+            }
+
+            return data;
+        }
+        catch ( PortletRejectedException e )
+        {
+            // The portlet wasn't invoked: not a failure of the portlet
+            AppLogService.info( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " render rejected (lutece ID [" + nPortletID + "]): " + e.getMessage(  ) );
+
+            return AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_PROBLEM_UNAVAILABLE );
         }
         catch ( Throwable e )
         {
+            PortletCircuitBreaker.recordFailure( strPortletEntityId, System.currentTimeMillis(  ) - lStartTime );
             AppLogService.error( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
                 " exception " + e.getClass(  ).getName(  ) + ": " + e.getMessage(  ), e );
         }
+        finally
+        {
+            luteceResponse.release(  );
+        }
 
         return AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_PROBLEM_RENDER );
     }
 
+    /**
+     * Return the expiration cache of a render: the value set by the portlet
+     * (<code>RenderResponse.EXPIRATION_CACHE</code>) or the value of the
+     * portlet definition.
+     *
+     * @param request The portlet HTTP request
+     * @param portletEntity The portlet entity
+     * @param portletWindow The portlet window
+     * @return the expiration cache (seconds), <code>null</code> if not defined
+     */
+    private static String getExpirationCache( HttpServletRequest request, PortletEntity portletEntity,
+        PortletWindowImpl portletWindow )
+    {
+        String strAttributeName = LutecePlutoConstant.LUTECEPLUTO_REQUEST_EXPIRATION_CACHE + portletWindow.getId(  );
+        String strExpirationCache = (String) request.getAttribute( strAttributeName );
+
+        if ( strExpirationCache != null )
+        {
+            request.removeAttribute( strAttributeName );
+
+            return strExpirationCache;
+        }
+
+        return portletEntity.getPortletDefinition(  ).getExpirationCache(  );
+    }
+
     /**
      * Realise an action (render or action)
      *
@@ -362,15 +955,10 @@ public final class LuteceToPlutoConnector
         if ( init( config ) )
         {
             // Retrieve the portlet window
-            PlutoSession plutoSession = PlutoSession.findSession( request );
-            PortletWindowImpl portletWindow = plutoSession.getPortletWindow( String.valueOf( nPortletID ) );
-
-            String strPortletEntityId = LutecePlutoConstant.WEBAPP + "." + strPortletName;
-            ObjectID objectID = org.apache.pluto.portalImpl.util.ObjectID.createFromString( strPortletEntityId );
-            PortletEntity portletEntity = PortletEntityRegistry.getPortletEntity( objectID );
-            ( (PortletWindowCtrl) portletWindow ).setPortletEntity( portletEntity );
+            PortletRenderContext context = PortletRenderContext.getContext( request, nPortletID, strPortletName );
 
-            buttons.init( request, response, portletEntity.getPortletDefinition(  ), portletWindow );
+            buttons.init( request, response, context.getPortletEntity(  ).getPortletDefinition(  ),
+                context.getPortletWindow(  ) );
         }
 
         return buttons;
@@ -401,38 +989,76 @@ public final class LuteceToPlutoConnector
         // Map all Lutece user info
         prepareUserInfo( request );
 
-        // Retrieve the portlet window
-        PlutoSession plutoSession = PlutoSession.findSession( request );
-        PortletWindowImpl portletWindow = plutoSession.getPortletWindow( String.valueOf( nPortletID ) );
-
-        PortalURL portalURL = new PortalURL( request );
-
-        portalURL.fillWindowPortlet( portletWindow );
+        // Retrieve the portlet window: an action changes the window, its state is kept in the session
+        // (or in the redirect URL in stateless mode)
+        if ( !NavigationalState.isEnabled(  ) )
+        {
+            PlutoSession.findSession( request );
+        }
 
-        String strPortletEntityId = LutecePlutoConstant.WEBAPP + "." + strPortletName;
-        ObjectID objectID = org.apache.pluto.portalImpl.util.ObjectID.createFromString( strPortletEntityId );
-        PortletEntity portletEntity = PortletEntityRegistry.getPortletEntity( objectID );
-        ( (PortletWindowCtrl) portletWindow ).setPortletEntity( portletEntity );
+        PortletRenderContext context = PortletRenderContext.getContext( request, nPortletID, strPortletName );
+        PortletWindowImpl portletWindow = context.getPortletWindow(  );
+        String strPortletEntityId = context.getPortletEntityId(  );
 
-        HttpServletRequest luteceRequest = new ServletRequestImpl( request, portletWindow );
+        PortalURL portalURL = PortalURL.getPortalURL( request );
         LuteceHttpServletResponse luteceResponse = new LuteceHttpServletResponse( response );
 
         try
         {
+            // The updates of the window (from other tabs) are serialized, not the actions
+            Lock lock = PortletWindowLock.acquire( request, portletWindow );
+
+            try
+            {
+                portalURL.fillWindowPortlet( portletWindow );
+            }
+            finally
+            {
+                unlock( lock );
+            }
+
+            HttpServletRequest luteceRequest = new ServletRequestImpl( request, portletWindow );
+
             PortalEnvironment portalEnvironment = new PortalEnvironment( config, luteceRequest, luteceResponse,
                     String.valueOf( nPortletID ) );
 
             // Needed since we want to avoid side effect in PortalEnvironment constructor
             portalEnvironment.initPortalEnvironment(  );
 
+            // The fragments of the portlet expire with the action
+            PortletRenderCache.invalidate( request, portletWindow, strPortletEntityId );
+
             _portletContainer.portletLoad( portletWindow, luteceRequest, luteceResponse );
             _portletContainer.processPortletAction( portletWindow, luteceRequest, luteceResponse );
+
+            if ( !NavigationalState.isEnabled(  ) )
+            {
+                lock = PortletWindowLock.acquire( request, portletWindow );
+
+                try
+                {
+                    WindowStateStoreService.getStore(  ).storePortletWindow( request, portletWindow );
+                }
+                finally
+                {
+                    unlock( lock );
+                }
+            }
+        }
+        catch ( PortletRejectedException e )
+        {
+            AppLogService.info( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " action rejected (lutece ID [" + nPortletID + "]): " + e.getMessage(  ) );
         }
         catch ( Throwable e )
         {
             AppLogService.error( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
                 " exception " + e.getClass(  ).getName(  ) + ": " + e.getMessage(  ), e );
         }
+        finally
+        {
+            luteceResponse.release(  );
+        }
 
         return true;
     }
@@ -454,20 +1080,62 @@ public final class LuteceToPlutoConnector
             return false;
         }
 
+        // Stateless mode: the render URLs target the page itself
+        if ( NavigationalState.isEnabled(  ) )
+        {
+            return false;
+        }
+
         // Map all Lutece user info
         prepareUserInfo( request );
 
-        // Retrieve the portlet window
-        PlutoSession plutoSession = PlutoSession.findSession( request );
-        PortletWindowImpl portletWindow = plutoSession.getPortletWindow( String.valueOf( nPortletID ) );
+        // Retrieve the portlet window: a change of mode or state creates the Pluto session
+        PlutoSession.findSession( request );
+
+        IWindowStateStore store = WindowStateStoreService.getStore(  );
+        PortletWindowImpl portletWindow = store.getPortletWindow( request, String.valueOf( nPortletID ) );
+
+        PortalURL portalURL = PortalURL.getPortalURL( request );
+        Lock lock;
+
+        try
+        {
+            lock = PortletWindowLock.acquire( request, portletWindow );
+        }
+        catch ( PortletRejectedException e )
+        {
+            AppLogService.info( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " change of mode or state rejected (lutece ID [" + nPortletID + "]): " + e.getMessage(  ) );
 
-        PortalURL portalURL = new PortalURL( request );
+            return false;
+        }
 
-        portalURL.fillWindowPortlet( portletWindow );
+        try
+        {
+            portalURL.fillWindowPortlet( portletWindow );
+            store.storePortletWindow( request, portletWindow );
+        }
+        finally
+        {
+            unlock( lock );
+        }
 
         return false;
     }
 
+    /**
+     * Release the lock of a portlet window
+     *
+     * @param lock The lock (<code>null</code> if the window wasn't locked)
+     */
+    private static void unlock( Lock lock )
+    {
+        if ( lock != null )
+        {
+            lock.unlock(  );
+        }
+    }
+
     /**
      * Initialize user informations for current portlet
      *
@@ -489,4 +1157,99 @@ public final class LuteceToPlutoConnector
             request.removeAttribute( PortletRequest.USER_INFO );
         }
     }
+
+    /**
+     * A render started on the render executor
+     */
+    private static final class PendingRender
+    {
+        private final Future _future;
+        private final long _lStartTime;
+
+        /**
+         * Initialize a pending render
+         *
+         * @param future The future result of the render
+         */
+        PendingRender( Future future )
+        {
+            _future = future;
+            _lStartTime = System.currentTimeMillis(  );
+        }
+
+        /**
+         * Return the future result of the render
+         *
+         * @return the future result of the render
+         */
+        Future getFuture(  )
+        {
+            return _future;
+        }
+
+        /**
+         * Return the start time of the render
+         *
+         * @return the start time of the render (milliseconds)
+         */
+        long getStartTime(  )
+        {
+            return _lStartTime;
+        }
+    }
+
+    /**
+     * Render of a portlet by the render executor
+     */
+    private static final class RenderTask implements Callable
+    {
+        private final ServletConfig _config;
+        private final HttpServletRequest _request;
+        private final HttpServletResponse _response;
+        private final int _nPortletID;
+        private final String _strPortletName;
+
+        /**
+         * Initialize the render of a portlet
+         *
+         * @param config The <code>ServletConfig</code> of the web application
+         * @param request Snapshot of the HTTP request
+         * @param response Snapshot of the HTTP response
+         * @param nPortletID Lutece portlet ID
+         * @param strPortletName JSR 168 portlet name (ID)
+         */
+        RenderTask( ServletConfig config, HttpServletRequest request, HttpServletResponse response, int nPortletID,
+            String strPortletName )
+        {
+            _config = config;
+            _request = request;
+            _response = response;
+            _nPortletID = nPortletID;
+            _strPortletName = strPortletName;
+        }
+
+        /**
+         * Render the portlet with the snapshot in the ThreadLocal of the render
+         * thread (previous values are restored).
+         *
+         * @see java.util.concurrent.Callable#call()
+         */
+        public Object call(  )
+        {
+            ServletConfig previousConfig = LocalVariables.getConfig(  );
+            HttpServletRequest previousRequest = LocalVariables.getRequest(  );
+            HttpServletResponse previousResponse = LocalVariables.getResponse(  );
+
+            LocalVariables.setLocal( _config, _request, _response );
+
+            try
+            {
+                return render( _config, _request, _response, _nPortletID, _strPortletName );
+            }
+            finally
+            {
+                LocalVariables.setLocal( previousConfig, previousRequest, previousResponse );
+            }
+        }
+    }
 }
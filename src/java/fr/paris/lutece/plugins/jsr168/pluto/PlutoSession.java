@@ -34,11 +34,28 @@
 package fr.paris.lutece.plugins.jsr168.pluto;
 
 import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
 
 import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import java.lang.ref.WeakReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
@@ -46,24 +63,174 @@ import javax.servlet.http.HttpSession;
 
 /**
  * Unique class present in {@link javax.servlet.http.HttpSession} instance
- * associated to user.
+ * associated to user.<br>
+ *
+ * The portlet windows are kept in a concurrent map: the requests of a user
+ * (parallel renders, several tabs) don't wait for each other.<br>
+ *
+ * When a window is added, the windows still in their initial state (they
+ * are recreated at no cost) are evicted once idle, or when the session holds
+ * more windows than its capacity (least recently used first). A window
+ * changed by a request while it was evicted is put back in the session when
+ * the request stores it (see {@link #keepPortletWindow(PortletWindowImpl)}).<br>
+ *
+ * Each window records its changes (dirty flag): the session attribute is set
+ * again, for the replication of the session, only when a window has changed
+ * (see {@link #replicate(HttpServletRequest)}). The windows in their initial
+ * state, added or evicted, don't need to be replicated.<br>
+ *
+ * The session has a compact serial form (passivation, replication): only the
+ * windows not in their initial state are written, in the serial form of
+ * {@link PortletWindowImpl}.
  */
-public final class PlutoSession
+public final class PlutoSession implements Externalizable
 {
+    private static final long serialVersionUID = 1L;
+    private static final byte SERIAL_VERSION = 1;
+    private static final int DEFAULT_WINDOWS_MAX_SIZE = 100;
+    private static final int DEFAULT_WINDOWS_IDLE_TIME = 1800000;
+    private static final int LIMIT_FROM_PROPERTIES = -1;
+
+    /**
+     * Number of windows evicted from all the sessions
+     */
+    private static final AtomicLong EVICTED_WINDOWS = new AtomicLong(  );
+
+    /**
+     * Least recently used windows first
+     */
+    private static final Comparator LAST_ACCESS_ORDER = new Comparator(  )
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                long lAccess1 = ( (PortletWindowImpl) o1 ).getLastAccessTime(  );
+                long lAccess2 = ( (PortletWindowImpl) o2 ).getLastAccessTime(  );
+
+                return ( lAccess1 < lAccess2 ) ? ( -1 ) : ( ( lAccess1 == lAccess2 ) ? 0 : 1 );
+            }
+        };
+
+    /**
+     * Locks for the creation of the Pluto sessions, chosen by session ID
+     */
+    private static final Object[] CREATION_LOCKS = new Object[64];
+
+    static
+    {
+        for ( int i = 0; i < CREATION_LOCKS.length; i++ )
+        {
+            CREATION_LOCKS[i] = new Object(  );
+        }
+    }
+
+    /**
+     * Live Pluto sessions, for the footprint of the sessions
+     * (key: Pluto session, value: weak reference to its HTTP session)
+     */
+    private static final Map LIVE_SESSIONS = Collections.synchronizedMap( new WeakHashMap(  ) );
+
+    /**
+     * <code>true</code> while the footprint of the sessions is published:
+     * the sessions are recorded in {@link #LIVE_SESSIONS} only then
+     */
+    private static volatile boolean _bLiveSessionsTracked;
+
     /**
      * Portlets Window defined for the user (a portlet window
      * contains the definition of the portlet, current state,
      * current mode...)
      */
-    private final Map _mapPortletWindow;
+    private final ConcurrentMap _mapPortletWindow;
+
+    /**
+     * Capacity and idle time (ms) of the windows in their initial state, read
+     * from the properties when {@link #LIMIT_FROM_PROPERTIES}
+     */
+    private final int _nWindowsMaxSize;
+    private final int _nWindowsIdleTime;
+
+    /**
+     * <code>true</code> once the session is in {@link #LIVE_SESSIONS}
+     */
+    private transient volatile boolean _bTracked;
+
+    /**
+     * Default constructor, PlutoSession is build by
+     * {@link #findSession(HttpServletRequest)} call (public for the
+     * deserialization only).
+     */
+    public PlutoSession(  )
+    {
+        this( LIMIT_FROM_PROPERTIES, LIMIT_FROM_PROPERTIES );
+    }
 
     /**
-     * Default private constructor, PlutoSession is build
-     * by {@link #findSession(HttpServletRequest)} call.
+     * Constructor with fixed limits of the windows in their initial state
+     * (the properties aren't read)
+     *
+     * @param nWindowsMaxSize The capacity of the session
+     * @param nWindowsIdleTime The idle time (ms) before eviction
      */
-    private PlutoSession(  )
+    PlutoSession( int nWindowsMaxSize, int nWindowsIdleTime )
     {
-        _mapPortletWindow = new HashMap(  );
+        _mapPortletWindow = new ConcurrentHashMap(  );
+        _nWindowsMaxSize = nWindowsMaxSize;
+        _nWindowsIdleTime = nWindowsIdleTime;
+    }
+
+    /**
+     * Write the windows not in their initial state (the others are recreated
+     * on demand)
+     *
+     * @param out The output stream
+     * @throws IOException If an I/O error occurs
+     */
+    public void writeExternal( ObjectOutput out ) throws IOException
+    {
+        List listWindows = new ArrayList(  );
+
+        for ( Iterator it = _mapPortletWindow.values(  ).iterator(  ); it.hasNext(  ); )
+        {
+            PortletWindowImpl portletWindow = (PortletWindowImpl) it.next(  );
+
+            if ( !portletWindow.isDefault(  ) )
+            {
+                listWindows.add( portletWindow );
+            }
+        }
+
+        out.writeByte( SERIAL_VERSION );
+        out.writeInt( listWindows.size(  ) );
+
+        for ( Iterator it = listWindows.iterator(  ); it.hasNext(  ); )
+        {
+            ( (PortletWindowImpl) it.next(  ) ).writeExternal( out );
+        }
+    }
+
+    /**
+     * Read the windows written by {@link #writeExternal(ObjectOutput)}
+     *
+     * @param in The input stream
+     * @throws IOException If an I/O error occurs or the version is unknown
+     */
+    public void readExternal( ObjectInput in ) throws IOException
+    {
+        byte version = in.readByte(  );
+
+        if ( version != SERIAL_VERSION )
+        {
+            throw new IOException( "Unknown serial form version " + version + " of Pluto session" );
+        }
+
+        int nWindows = in.readInt(  );
+
+        for ( int i = 0; i < nWindows; i++ )
+        {
+            PortletWindowImpl portletWindow = new PortletWindowImpl(  );
+            portletWindow.readExternal( in );
+            _mapPortletWindow.put( portletWindow.getId(  ).toString(  ), portletWindow );
+        }
     }
 
     /**
@@ -72,22 +239,247 @@ public final class PlutoSession
      * @param strPortletId The portlet ID (Lutece ID) of the portlet window asked
      * @return The portlet window associated to this servlet
      */
-    public synchronized PortletWindowImpl getPortletWindow( String strPortletId )
+    public PortletWindowImpl getPortletWindow( String strPortletId )
     {
         PortletWindowImpl portletWindow = (PortletWindowImpl) _mapPortletWindow.get( strPortletId );
 
         if ( portletWindow == null )
         {
-            portletWindow = new PortletWindowImpl( strPortletId );
-            _mapPortletWindow.put( strPortletId, portletWindow );
+            PortletWindowImpl newPortletWindow = new PortletWindowImpl( strPortletId );
+            portletWindow = (PortletWindowImpl) _mapPortletWindow.putIfAbsent( strPortletId, newPortletWindow );
+
+            if ( portletWindow == null )
+            {
+                portletWindow = newPortletWindow;
+                evictWindows( strPortletId );
+            }
         }
 
+        portletWindow.touch(  );
+
         AppLogService.debug( "JSR168 / BEGIN Portlet Window acceded (lutece ID [" + strPortletId + "]; " +
             portletWindow.getRenderParameters(  ) );
 
         return portletWindow;
     }
 
+    /**
+     * Put back a window changed by a request: the window may have been
+     * evicted (while still in its initial state) by a concurrent request.
+     * A window recreated meanwhile is replaced, unless it has changed too.
+     *
+     * @param portletWindow The portlet window
+     */
+    public void keepPortletWindow( PortletWindowImpl portletWindow )
+    {
+        String strPortletId = portletWindow.getId(  ).toString(  );
+
+        while ( true )
+        {
+            PortletWindowImpl currentWindow = (PortletWindowImpl) _mapPortletWindow.putIfAbsent( strPortletId,
+                    portletWindow );
+
+            if ( ( currentWindow == null ) || ( currentWindow == portletWindow ) || !currentWindow.isDefault(  ) ||
+                    _mapPortletWindow.replace( strPortletId, currentWindow, portletWindow ) )
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return the number of portlet windows of the session
+     *
+     * @return the number of portlet windows
+     */
+    public int getPortletWindowCount(  )
+    {
+        return _mapPortletWindow.size(  );
+    }
+
+    /**
+     * Return the portlet windows of the session
+     *
+     * @return the portlet windows (key: portlet ID), read only
+     */
+    Map getPortletWindows(  )
+    {
+        return Collections.unmodifiableMap( _mapPortletWindow );
+    }
+
+    /**
+     * Return the live Pluto sessions
+     *
+     * @return a copy of the live sessions (key: Pluto session, value: its
+     *         HTTP session, or <code>null</code> if unknown)
+     */
+    static Map getLiveSessions(  )
+    {
+        Map mapSessions = new HashMap(  );
+
+        synchronized ( LIVE_SESSIONS )
+        {
+            for ( Iterator it = LIVE_SESSIONS.entrySet(  ).iterator(  ); it.hasNext(  ); )
+            {
+                Map.Entry entry = (Map.Entry) it.next(  );
+                mapSessions.put( entry.getKey(  ), ( (WeakReference) entry.getValue(  ) ).get(  ) );
+            }
+        }
+
+        return mapSessions;
+    }
+
+    /**
+     * Start or stop the record of the live sessions (see
+     * {@link SessionFootprint#register()})
+     *
+     * @param bTracked <code>true</code> to record the sessions from their next
+     *            use, <code>false</code> to forget them
+     */
+    static void setLiveSessionsTracked( boolean bTracked )
+    {
+        _bLiveSessionsTracked = bTracked;
+
+        if ( !bTracked )
+        {
+            LIVE_SESSIONS.clear(  );
+        }
+    }
+
+    /**
+     * Record the session in the live sessions (on creation, or on first use
+     * after its deserialization), when they are tracked
+     *
+     * @param session The HTTP session holding the Pluto session
+     */
+    private void track( HttpSession session )
+    {
+        if ( _bLiveSessionsTracked && !_bTracked )
+        {
+            LIVE_SESSIONS.put( this, new WeakReference( session ) );
+            _bTracked = true;
+        }
+    }
+
+    /**
+     * Return the number of portlet windows evicted from all the sessions
+     *
+     * @return the number of evicted windows
+     */
+    public static long getEvictedWindowCount(  )
+    {
+        return EVICTED_WINDOWS.get(  );
+    }
+
+    /**
+     * Evict the idle windows in their initial state, then the least recently
+     * used ones while the session holds more windows than its capacity
+     *
+     * @param strKeptPortletId The portlet ID of the window just added (never evicted)
+     */
+    private void evictWindows( String strKeptPortletId )
+    {
+        int nMaxSize = ( _nWindowsMaxSize != LIMIT_FROM_PROPERTIES ) ? _nWindowsMaxSize
+                                                                     : AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_SESSION_WINDOWS_MAX_SIZE,
+                DEFAULT_WINDOWS_MAX_SIZE );
+        int nIdleTime = ( _nWindowsIdleTime != LIMIT_FROM_PROPERTIES ) ? _nWindowsIdleTime
+                                                                       : AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_SESSION_WINDOWS_IDLE_TIME,
+                DEFAULT_WINDOWS_IDLE_TIME );
+        long lIdleLimit = System.currentTimeMillis(  ) - nIdleTime;
+        List listCandidates = new ArrayList(  );
+
+        for ( Iterator it = _mapPortletWindow.values(  ).iterator(  ); it.hasNext(  ); )
+        {
+            PortletWindowImpl portletWindow = (PortletWindowImpl) it.next(  );
+
+            if ( portletWindow.isDefault(  ) && !strKeptPortletId.equals( portletWindow.getId(  ).toString(  ) ) )
+            {
+                if ( portletWindow.getLastAccessTime(  ) < lIdleLimit )
+                {
+                    removeWindow( portletWindow );
+                }
+                else
+                {
+                    listCandidates.add( portletWindow );
+                }
+            }
+        }
+
+        if ( _mapPortletWindow.size(  ) > nMaxSize )
+        {
+            Collections.sort( listCandidates, LAST_ACCESS_ORDER );
+
+            for ( Iterator it = listCandidates.iterator(  ); it.hasNext(  ) && ( _mapPortletWindow.size(  ) > nMaxSize ); )
+            {
+                removeWindow( (PortletWindowImpl) it.next(  ) );
+            }
+        }
+    }
+
+    /**
+     * Remove a window from the session (unless it was replaced meanwhile).
+     * A window changed by a concurrent request since it was chosen is put back.
+     *
+     * @param portletWindow The portlet window
+     */
+    private void removeWindow( PortletWindowImpl portletWindow )
+    {
+        if ( _mapPortletWindow.remove( portletWindow.getId(  ).toString(  ), portletWindow ) )
+        {
+            if ( !portletWindow.isDefault(  ) )
+            {
+                keepPortletWindow( portletWindow );
+
+                return;
+            }
+
+            EVICTED_WINDOWS.incrementAndGet(  );
+            AppLogService.debug( "JSR168 / Portlet Window evicted (lutece ID [" + portletWindow.getId(  ) + "])" );
+        }
+    }
+
+    /**
+     * Reset the dirty flags of the windows
+     *
+     * @return <code>true</code> if a window had changed
+     */
+    private boolean clearDirty(  )
+    {
+        boolean bDirty = false;
+
+        for ( Iterator it = _mapPortletWindow.values(  ).iterator(  ); it.hasNext(  ); )
+        {
+            // No short-circuit: every flag is reset
+            bDirty |= ( (PortletWindowImpl) it.next(  ) ).clearDirty(  );
+        }
+
+        return bDirty;
+    }
+
+    /**
+     * Set the Pluto session again in the HTTP session if one of its windows
+     * has changed, so that the session manager replicates it. Nothing is done
+     * for a read-only request, or if the user has no session.
+     *
+     * @param request Current user HTTP resquest
+     */
+    public static void replicate( final HttpServletRequest request )
+    {
+        HttpSession session = request.getSession( false );
+
+        if ( session == null )
+        {
+            return;
+        }
+
+        PlutoSession plutoSession = (PlutoSession) session.getAttribute( LutecePlutoConstant.LUTECEPLUTO_SESSION_PORTLET );
+
+        if ( ( plutoSession != null ) && plutoSession.clearDirty(  ) )
+        {
+            session.setAttribute( LutecePlutoConstant.LUTECEPLUTO_SESSION_PORTLET, plutoSession );
+        }
+    }
+
     /**
      * Return the current Pluto session (for current user request)
      *
@@ -97,10 +489,19 @@ public final class PlutoSession
     public static PlutoSession findSession( final HttpServletRequest request )
     {
         HttpSession session = request.getSession(  );
+        PlutoSession plutoSession = (PlutoSession) session.getAttribute( LutecePlutoConstant.LUTECEPLUTO_SESSION_PORTLET );
 
-        synchronized ( session )
+        if ( plutoSession != null )
         {
-            PlutoSession plutoSession = (PlutoSession) session.getAttribute( LutecePlutoConstant.LUTECEPLUTO_SESSION_PORTLET );
+            plutoSession.track( session );
+
+            return plutoSession;
+        }
+
+        // First access: only the requests of sessions sharing the same lock wait
+        synchronized ( CREATION_LOCKS[( session.getId(  ).hashCode(  ) & Integer.MAX_VALUE ) % CREATION_LOCKS.length] )
+        {
+            plutoSession = (PlutoSession) session.getAttribute( LutecePlutoConstant.LUTECEPLUTO_SESSION_PORTLET );
 
             if ( plutoSession == null )
             {
@@ -108,7 +509,36 @@ public final class PlutoSession
                 session.setAttribute( LutecePlutoConstant.LUTECEPLUTO_SESSION_PORTLET, plutoSession );
             }
 
+            plutoSession.track( session );
+
             return plutoSession;
         }
     }
+
+    /**
+     * Return the current Pluto session (for current user request), without
+     * creating it
+     *
+     * @param request Current user HTTP resquest
+     * @return The <code>PlutoSession</code> associated with this session, or
+     *         <code>null</code> if the user has no Pluto session yet
+     */
+    public static PlutoSession getSession( final HttpServletRequest request )
+    {
+        HttpSession session = request.getSession( false );
+
+        if ( session == null )
+        {
+            return null;
+        }
+
+        PlutoSession plutoSession = (PlutoSession) session.getAttribute( LutecePlutoConstant.LUTECEPLUTO_SESSION_PORTLET );
+
+        if ( plutoSession != null )
+        {
+            plutoSession.track( session );
+        }
+
+        return plutoSession;
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import fr.paris.lutece.plugins.jsr168.pluto.exception.PortletRejectedException;
+
+import org.apache.pluto.om.portlet.PortletDefinition;
+import org.apache.pluto.portalImpl.services.config.Config;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limit of the concurrent invocations of each portlet definition: a portlet
+ * that hangs can't use all the threads of the servlet container.<br>
+ *
+ * The limit is defined in services.xml (<code>portletcontainer.bulkhead.maxConcurrent</code>,
+ * or <code>portletcontainer.bulkhead.maxConcurrent.&lt;portlet name&gt;</code> for a
+ * portlet definition, <code>0</code> for no limit). An invocation waits at most
+ * <code>portletcontainer.bulkhead.maxWait</code> milliseconds for a permit, then
+ * is rejected with a {@link PortletRejectedException}: the portlet isn't
+ * faulty, it isn't counted as a failure of the portlet.<br>
+ *
+ * The limits are disabled by default.
+ */
+class PortletBulkhead
+{
+    private final ConcurrentMap _mapPermits;
+    private final int _nMaxConcurrent;
+    private final long _lMaxWait;
+
+    /**
+     * Read the limits from the configuration (services.xml)
+     */
+    PortletBulkhead(  )
+    {
+        _mapPermits = new ConcurrentHashMap(  );
+        _nMaxConcurrent = Config.getParameters(  )
+                                .getInteger( LutecePlutoConstant.CONFIG_SERVICES_PARAM_BULKHEAD_MAX_CONCURRENT, 0 );
+        _lMaxWait = Config.getParameters(  ).getInteger( LutecePlutoConstant.CONFIG_SERVICES_PARAM_BULKHEAD_MAX_WAIT, 0 );
+    }
+
+    /**
+     * Acquire a permit to invoke a portlet
+     *
+     * @param portletDefinition The portlet definition
+     * @return the permits of the portlet definition (to release after the
+     *         invocation), <code>null</code> if the portlet has no limit
+     * @throws PortletRejectedException if no permit is available before the wait limit
+     */
+    Semaphore acquire( PortletDefinition portletDefinition )
+        throws PortletRejectedException
+    {
+        Semaphore permits = getPermits( portletDefinition );
+
+        if ( permits == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            if ( permits.tryAcquire( _lMaxWait, TimeUnit.MILLISECONDS ) )
+            {
+                return permits;
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+        }
+
+        throw new PortletRejectedException( "Too many concurrent invocations of portlet " +
+            portletDefinition.getName(  ) );
+    }
+
+    /**
+     * Return the permits of a portlet definition (created on first use)
+     *
+     * @param portletDefinition The portlet definition
+     * @return the permits, <code>null</code> if the portlet has no limit
+     */
+    private Semaphore getPermits( PortletDefinition portletDefinition )
+    {
+        String strDefinitionId = portletDefinition.getId(  ).toString(  );
+        Semaphore permits = (Semaphore) _mapPermits.get( strDefinitionId );
+
+        if ( permits == null )
+        {
+            int nMaxConcurrent = Config.getParameters(  )
+                                       .getInteger( LutecePlutoConstant.CONFIG_SERVICES_PARAM_BULKHEAD_MAX_CONCURRENT +
+                    "." + portletDefinition.getName(  ), _nMaxConcurrent );
+
+            if ( nMaxConcurrent <= 0 )
+            {
+                return null;
+            }
+
+            _mapPermits.putIfAbsent( strDefinitionId, new Semaphore( nMaxConcurrent ) );
+            permits = (Semaphore) _mapPermits.get( strDefinitionId );
+        }
+
+        return permits;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Circuit breaker of the portlet renders, one circuit per portlet entity.<br>
+ *
+ * The outcome of the last renders (<code>portlet.jsr168.render.circuit.window</code>)
+ * of a portlet is kept. When, for at least <code>minCalls</code> renders, the
+ * rate of failed renders reaches <code>failureRate</code> (%) or the rate of
+ * renders longer than <code>slowCall</code> (ms) reaches <code>slowCallRate</code>
+ * (%), the circuit opens: the portlet isn't rendered anymore.<br>
+ *
+ * After <code>openDuration</code> (ms), one render is allowed (half-open):
+ * the circuit closes if this render succeeds in time, and opens again otherwise.
+ */
+final class PortletCircuitBreaker
+{
+    private static final int DEFAULT_WINDOW = 20;
+    private static final int DEFAULT_MIN_CALLS = 10;
+    private static final int DEFAULT_FAILURE_RATE = 50;
+    private static final int DEFAULT_SLOW_CALL = 5000;
+    private static final int DEFAULT_SLOW_CALL_RATE = 80;
+    private static final int DEFAULT_OPEN_DURATION = 30000;
+    private static final int PERCENT = 100;
+    private static final ConcurrentMap _mapCircuits = new ConcurrentHashMap(  );
+
+    /**
+     * Utility classes have no constructor
+     */
+    private PortletCircuitBreaker(  )
+    {
+    }
+
+    /**
+     * Indicate if a portlet can be rendered
+     *
+     * @param strPortletEntityId The portlet entity ID
+     * @return <code>false</code> if the circuit of the portlet is open
+     */
+    static boolean allowRequest( String strPortletEntityId )
+    {
+        if ( !isEnabled(  ) )
+        {
+            return true;
+        }
+
+        return getCircuit( strPortletEntityId ).allowRequest( System.currentTimeMillis(  ) );
+    }
+
+    /**
+     * Record a successful render
+     *
+     * @param strPortletEntityId The portlet entity ID
+     * @param lDuration The duration of the render (ms)
+     */
+    static void recordSuccess( String strPortletEntityId, long lDuration )
+    {
+        record( strPortletEntityId, false, lDuration );
+    }
+
+    /**
+     * Record a failed render
+     *
+     * @param strPortletEntityId The portlet entity ID
+     * @param lDuration The duration of the render (ms)
+     */
+    static void recordFailure( String strPortletEntityId, long lDuration )
+    {
+        record( strPortletEntityId, true, lDuration );
+    }
+
+    /**
+     * Remove all the circuits
+     */
+    static void clear(  )
+    {
+        _mapCircuits.clear(  );
+    }
+
+    /**
+     * Record the outcome of a render, and log the changes of the circuit
+     *
+     * @param strPortletEntityId The portlet entity ID
+     * @param bFailure <code>true</code> if the render failed
+     * @param lDuration The duration of the render (ms)
+     */
+    private static void record( String strPortletEntityId, boolean bFailure, long lDuration )
+    {
+        if ( !isEnabled(  ) )
+        {
+            return;
+        }
+
+        boolean bSlow = lDuration >= AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_CIRCUIT_SLOW_CALL,
+                DEFAULT_SLOW_CALL );
+        int nNewState = getCircuit( strPortletEntityId ).record( bFailure, bSlow, System.currentTimeMillis(  ) );
+
+        if ( nNewState == Circuit.OPEN )
+        {
+            AppLogService.error( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " circuit opened, portlet " + strPortletEntityId + " isn't rendered until it recovers" );
+        }
+        else if ( nNewState == Circuit.CLOSED )
+        {
+            AppLogService.info( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_LOG_PREFIX ) +
+                " circuit closed, portlet " + strPortletEntityId + " recovered" );
+        }
+    }
+
+    /**
+     * Indicate if the circuit breaker is enabled
+     *
+     * @return <code>true</code> if the circuit breaker is enabled
+     */
+    private static boolean isEnabled(  )
+    {
+        return Boolean.valueOf( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_RENDER_CIRCUIT_ENABLED,
+                "true" ) ).booleanValue(  );
+    }
+
+    /**
+     * Return the circuit of a portlet entity (created on first use)
+     *
+     * @param strPortletEntityId The portlet entity ID
+     * @return the circuit
+     */
+    private static Circuit getCircuit( String strPortletEntityId )
+    {
+        Circuit circuit = (Circuit) _mapCircuits.get( strPortletEntityId );
+
+        if ( circuit == null )
+        {
+            // The return of putIfAbsent, not a new get: clear() may run meanwhile
+            Circuit newCircuit = new Circuit( AppPropertiesService.getPropertyInt(
+                        LutecePlutoConstant.PROPERTY_RENDER_CIRCUIT_WINDOW, DEFAULT_WINDOW ) );
+            circuit = (Circuit) _mapCircuits.putIfAbsent( strPortletEntityId, newCircuit );
+
+            if ( circuit == null )
+            {
+                circuit = newCircuit;
+            }
+        }
+
+        return circuit;
+    }
+
+    /**
+     * The circuit of a portlet entity
+     */
+    private static final class Circuit
+    {
+        static final int CLOSED = 0;
+        static final int OPEN = 1;
+        static final int HALF_OPEN = 2;
+        static final int UNCHANGED = -1;
+        private final boolean[] _failures;
+        private final boolean[] _slowCalls;
+        private int _nIndex;
+        private int _nCalls;
+        private int _nFailures;
+        private int _nSlowCalls;
+        private int _nState = CLOSED;
+        private long _lStateTime;
+
+        /**
+         * Initialize a closed circuit
+         *
+         * @param nWindow The number of renders kept
+         */
+        Circuit( int nWindow )
+        {
+            _failures = new boolean[Math.max( nWindow, 1 )];
+            _slowCalls = new boolean[_failures.length];
+        }
+
+        /**
+         * Indicate if a render is allowed. When the circuit is half-open, a
+         * single render is allowed (another one if it hasn't ended after the
+         * open duration).
+         *
+         * @param lNow The current time (ms)
+         * @return <code>true</code> if the render is allowed
+         */
+        synchronized boolean allowRequest( long lNow )
+        {
+            if ( _nState == CLOSED )
+            {
+                return true;
+            }
+
+            if ( ( lNow - _lStateTime ) < AppPropertiesService.getPropertyInt(
+                        LutecePlutoConstant.PROPERTY_RENDER_CIRCUIT_OPEN_DURATION, DEFAULT_OPEN_DURATION ) )
+            {
+                return false;
+            }
+
+            _nState = HALF_OPEN;
+            _lStateTime = lNow;
+
+            return true;
+        }
+
+        /**
+         * Record the outcome of a render
+         *
+         * @param bFailure <code>true</code> if the render failed
+         * @param bSlow <code>true</code> if the render was slow
+         * @param lNow The current time (ms)
+         * @return the new state of the circuit, or <code>UNCHANGED</code>
+         */
+        synchronized int record( boolean bFailure, boolean bSlow, long lNow )
+        {
+            int nState = _nState;
+
+            if ( _nState == HALF_OPEN )
+            {
+                if ( bFailure || bSlow )
+                {
+                    open( lNow );
+                }
+                else
+                {
+                    close(  );
+                }
+            }
+            else if ( _nState == CLOSED )
+            {
+                add( bFailure, bSlow );
+
+                if ( isOverThresholds(  ) )
+                {
+                    open( lNow );
+                }
+            }
+
+            // Renders started before the circuit opened are ignored
+            return ( _nState == nState ) ? UNCHANGED : _nState;
+        }
+
+        /**
+         * Add the outcome of a render to the window, in place of the oldest one
+         *
+         * @param bFailure <code>true</code> if the render failed
+         * @param bSlow <code>true</code> if the render was slow
+         */
+        private void add( boolean bFailure, boolean bSlow )
+        {
+            if ( _nCalls == _failures.length )
+            {
+                _nFailures -= ( _failures[_nIndex] ? 1 : 0 );
+                _nSlowCalls -= ( _slowCalls[_nIndex] ? 1 : 0 );
+            }
+            else
+            {
+                _nCalls++;
+            }
+
+            _failures[_nIndex] = bFailure;
+            _slowCalls[_nIndex] = bSlow;
+            _nFailures += ( bFailure ? 1 : 0 );
+            _nSlowCalls += ( bSlow ? 1 : 0 );
+            _nIndex = ( _nIndex + 1 ) % _failures.length;
+        }
+
+        /**
+         * Indicate if the failure rate or the slow call rate reaches its threshold
+         *
+         * @return <code>true</code> if the circuit must open
+         */
+        private boolean isOverThresholds(  )
+        {
+            if ( _nCalls < AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_CIRCUIT_MIN_CALLS,
+                        DEFAULT_MIN_CALLS ) )
+            {
+                return false;
+            }
+
+            int nFailureRate = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_CIRCUIT_FAILURE_RATE,
+                    DEFAULT_FAILURE_RATE );
+            int nSlowCallRate = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_CIRCUIT_SLOW_CALL_RATE,
+                    DEFAULT_SLOW_CALL_RATE );
+
+            return ( ( _nFailures * PERCENT ) >= ( nFailureRate * _nCalls ) ) ||
+            ( ( _nSlowCalls * PERCENT ) >= ( nSlowCallRate * _nCalls ) );
+        }
+
+        /**
+         * Open the circuit
+         *
+         * @param lNow The current time (ms)
+         */
+        private void open( long lNow )
+        {
+            _nState = OPEN;
+            _lStateTime = lNow;
+        }
+
+        /**
+         * Close the circuit, the outcomes of the previous renders are forgotten
+         */
+        private void close(  )
+        {
+            _nState = CLOSED;
+            _nIndex = 0;
+            _nCalls = 0;
+            _nFailures = 0;
+            _nSlowCalls = 0;
+        }
+    }
+}
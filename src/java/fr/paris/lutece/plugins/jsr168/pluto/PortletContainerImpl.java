@@ -50,6 +50,7 @@
 package fr.paris.lutece.plugins.jsr168.pluto;
 
 import fr.paris.lutece.plugins.jsr168.pluto.core.PortletURLProviderImpl;
+import fr.paris.lutece.plugins.jsr168.pluto.servlet.ServletRequestImpl;
 
 import org.apache.pluto.PortletContainer;
 import org.apache.pluto.PortletContainerServices;
@@ -68,6 +69,7 @@ import java.io.IOException;
 
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
 
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
@@ -95,6 +97,7 @@ public class PortletContainerImpl implements PortletContainer
     private boolean initialized;
     private boolean supportsBuffering;
     private Logger log = null;
+    private PortletBulkhead bulkhead;
 
     /**
          * @see org.apache.pluto.PortletContainer#init(java.lang.String, javax.servlet.ServletConfig, org.apache.pluto.services.PortletContainerEnvironment, java.util.Properties)
@@ -105,6 +108,7 @@ public class PortletContainerImpl implements PortletContainer
         this.uniqueContainerName = uniqueContainerName;
         PortletContainerServices.createReference( uniqueContainerName, environment );
         initialized = true;
+        bulkhead = new PortletBulkhead(  );
 
         // Initialize the Logger that we will use
         // from here forward for this Container:
@@ -142,6 +146,11 @@ public class PortletContainerImpl implements PortletContainer
         PortletContainerServices.prepare( uniqueContainerName );
 
         PortletInvoker invoker = null;
+        Semaphore permits = null;
+
+        // Values rendered: a failed render restores the last good values only if no other request changed the window
+        final PortletWindowImpl.WindowValues values = ServletRequestImpl.getWindowValues( servletRequest,
+                (PortletWindowImpl) portletWindow );
 
         if ( log.isDebugEnabled(  ) )
         {
@@ -150,6 +159,8 @@ public class PortletContainerImpl implements PortletContainer
 
         try
         {
+            permits = bulkhead.acquire( portletWindow.getPortletEntity(  ).getPortletDefinition(  ) );
+
             RenderRequest renderRequest = PortletObjectAccess.getRenderRequest( portletWindow, servletRequest,
                     servletResponse );
 
@@ -159,30 +170,53 @@ public class PortletContainerImpl implements PortletContainer
             invoker = PortletInvokerAccess.getPortletInvoker( portletWindow.getPortletEntity(  ).getPortletDefinition(  ) );
             invoker.render( renderRequest, renderResponse );
 
-            ( (PortletWindowImpl) portletWindow ).saveValues(  );
+            ( (PortletWindowImpl) portletWindow ).saveValues( values );
         }
         catch ( PortletException e )
         {
-            ( (PortletWindowImpl) portletWindow ).restoreValues(  );
+            ( (PortletWindowImpl) portletWindow ).restoreValues( values );
             throw e;
         }
         catch ( IOException e )
         {
-            ( (PortletWindowImpl) portletWindow ).restoreValues(  );
+            ( (PortletWindowImpl) portletWindow ).restoreValues( values );
             throw e;
         }
         catch ( RuntimeException e )
         {
-            ( (PortletWindowImpl) portletWindow ).restoreValues(  );
+            ( (PortletWindowImpl) portletWindow ).restoreValues( values );
             throw e;
         }
         finally
         {
+            if ( permits != null )
+            {
+                permits.release(  );
+            }
+
             PortletInvokerAccess.releasePortletInvoker( invoker );
             PortletContainerServices.release(  );
         }
     }
 
+    /**
+     * Load the portlet and render it in a single container invocation: same
+     * as <code>portletLoad</code> followed by <code>renderPortlet</code>, but
+     * the container is prepared once. There is no separate load: the render
+     * initializes the portlet on first use (see <code>PortletInvokerImpl</code>).
+     *
+     * @param portletWindow The portlet window
+     * @param servletRequest The HTTP request
+     * @param servletResponse The HTTP response
+     * @throws PortletException if the portlet can't be loaded or rendered
+     * @throws IOException if the portlet output can't be written
+     */
+    public void loadAndRenderPortlet( PortletWindow portletWindow, HttpServletRequest servletRequest,
+        HttpServletResponse servletResponse ) throws PortletException, IOException
+    {
+        renderPortlet( portletWindow, servletRequest, servletResponse );
+    }
+
     /**
          * @see org.apache.pluto.PortletContainer#processPortletAction(org.apache.pluto.om.window.PortletWindow, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
          */
@@ -200,9 +234,12 @@ public class PortletContainerImpl implements PortletContainer
 
         InternalActionResponse innerActionResponse = null;
         ActionRequest actionRequest = null;
+        Semaphore permits = null;
 
         try
         {
+            permits = bulkhead.acquire( portletWindow.getPortletEntity(  ).getPortletDefinition(  ) );
+
             /*ActionRequest*/
             actionRequest = PortletObjectAccess.getActionRequest( portletWindow, servletRequest, servletResponse );
 
@@ -267,11 +304,17 @@ public class PortletContainerImpl implements PortletContainer
         {
             try
             {
-                String strLocation = PortletURLProviderImpl.getRedirectPortalURL( servletRequest, servletResponse );
+                String strLocation = PortletURLProviderImpl.getRedirectPortalURL( servletRequest, servletResponse,
+                        (PortletWindowImpl) portletWindow );
                 sendRedirect( servletResponse, strLocation );
             }
             finally
             {
+                if ( permits != null )
+                {
+                    permits.release(  );
+                }
+
                 PortletInvokerAccess.releasePortletInvoker( invoker );
                 PortletContainerServices.release(  );
             }
@@ -0,0 +1,689 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import fr.paris.lutece.plugins.jsr168.pluto.servlet.ServletRequestImpl;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+import fr.paris.lutece.portal.service.security.SecurityService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.portal.web.constants.Parameters;
+
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+
+/**
+ * Cache of the portlet fragments, following the expiration cache of the
+ * portlets (JSR 168 PLT.18.1).<br>
+ *
+ * A fragment is kept for a portlet entity, a portlet window (mode, state and
+ * parameters), a locale and a user: the registered user, or the session for
+ * anonymous users. The fragments of an anonymous user without session are
+ * never cached: they can't be told apart from the fragments of other users.
+ * The expiration (in seconds) is the value set by the portlet at render time,
+ * or the <code>expiration-cache</code> of portlet.xml: <code>0</code>
+ * disables the cache, <code>-1</code> means never expire.<br>
+ *
+ * The cache is bounded: the least recently used fragments are evicted. It is
+ * split in segments locked independently; the fragments of a portlet window
+ * and a user are in the same segment, so they are invalidated together
+ * without scanning the cache.<br>
+ *
+ * The last good fragment of the portlets rendered with a deadline is also
+ * kept (whatever their expiration cache): it is displayed when a render
+ * doesn't end before its deadline.
+ */
+final class PortletRenderCache
+{
+    private static final int DEFAULT_MAX_SIZE = 1000;
+    private static final int SEGMENTS = 16;
+    private static final int EXPIRATION_CACHE_DISABLED = 0;
+    private static final int EXPIRATION_CACHE_NEVER = -1;
+    private static final long MILLISECONDS = 1000L;
+    private static final char KEY_SEPARATOR = '|';
+    private static final String SCOPE_USER = "user:";
+    private static final String SCOPE_SESSION = "session:";
+    private static volatile Segment[] _segmentsFragments;
+    private static volatile Segment[] _segmentsLastGoodFragments;
+
+    /**
+     * Utility classes have no constructor
+     */
+    private PortletRenderCache(  )
+    {
+    }
+
+    /**
+     * Indicate if the render cache is enabled
+     *
+     * @return <code>true</code> if the render cache is enabled
+     */
+    static boolean isEnabled(  )
+    {
+        return Boolean.valueOf( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_RENDER_CACHE_ENABLED,
+                "true" ) ).booleanValue(  );
+    }
+
+    /**
+     * Build the key of the fragment of a portlet window
+     *
+     * @param request The portlet HTTP request (parameters of the portlet)
+     * @param portletWindow The portlet window
+     * @param strPortletEntityId The portlet entity ID
+     * @return the key of the fragment, <code>null</code> if the fragment can't
+     *         be cached (anonymous user without session)
+     */
+    static Key getKey( HttpServletRequest request, PortletWindowImpl portletWindow, String strPortletEntityId )
+    {
+        String strKeyPrefix = getKeyPrefix( request, portletWindow, strPortletEntityId );
+
+        if ( strKeyPrefix == null )
+        {
+            return null;
+        }
+
+        StringBuffer sbKey = new StringBuffer( strKeyPrefix );
+        PortletWindowImpl.WindowValues values = ServletRequestImpl.getWindowValues( request, portletWindow );
+
+        // Lutece page: URLs of the fragment contain the page ID
+        sbKey.append( request.getParameter( Parameters.PAGE_ID ) ).append( KEY_SEPARATOR );
+        sbKey.append( values.getPortletMode(  ) ).append( KEY_SEPARATOR );
+        sbKey.append( values.getWindowState(  ) ).append( KEY_SEPARATOR );
+        sbKey.append( request.getLocale(  ) ).append( KEY_SEPARATOR );
+
+        // Sorted parameters: the key doesn't depend on the order of the request
+        Map mapParameters = new TreeMap( request.getParameterMap(  ) );
+
+        for ( Iterator it = mapParameters.entrySet(  ).iterator(  ); it.hasNext(  ); )
+        {
+            Map.Entry entry = (Map.Entry) it.next(  );
+            String[] values = (String[]) entry.getValue(  );
+            sbKey.append( entry.getKey(  ) ).append( '=' );
+
+            for ( int i = 0; i < values.length; i++ )
+            {
+                sbKey.append( values[i] ).append( ',' );
+            }
+
+            sbKey.append( '&' );
+        }
+
+        return new Key( strKeyPrefix, sbKey.toString(  ) );
+    }
+
+    /**
+     * Indicate if the user scope of a key is still the user scope of the
+     * request: a render may create a session, log the user in or out, and
+     * its fragment must then not be cached under the key computed before the
+     * render.
+     *
+     * @param request The HTTP request
+     * @param portletWindow The portlet window
+     * @param strPortletEntityId The portlet entity ID
+     * @param key The key computed before the render
+     * @return <code>true</code> if the key still matches the user of the request
+     */
+    static boolean isValidKey( HttpServletRequest request, PortletWindowImpl portletWindow,
+        String strPortletEntityId, Key key )
+    {
+        return key.getPrefix(  ).equals( getKeyPrefix( request, portletWindow, strPortletEntityId ) );
+    }
+
+    /**
+     * Return a fragment from the cache
+     *
+     * @param key The key of the fragment
+     * @return the fragment, or <code>null</code> if the fragment isn't in the cache (or has expired)
+     */
+    static String get( Key key )
+    {
+        Segment segment = getSegment( getFragments(  ), key );
+
+        synchronized ( segment )
+        {
+            Fragment fragment = segment.get( key );
+
+            if ( fragment == null )
+            {
+                return null;
+            }
+
+            if ( fragment.isExpired( System.currentTimeMillis(  ) ) )
+            {
+                segment.remove( key );
+
+                return null;
+            }
+
+            return fragment.getContent(  );
+        }
+    }
+
+    /**
+     * Put a fragment in the cache
+     *
+     * @param key The key of the fragment
+     * @param content The fragment
+     * @param strExpirationCache The expiration cache of the fragment (seconds)
+     */
+    static void put( Key key, CharSequence content, String strExpirationCache )
+    {
+        int nExpirationCache = parseExpirationCache( strExpirationCache );
+
+        if ( nExpirationCache == EXPIRATION_CACHE_DISABLED )
+        {
+            return;
+        }
+
+        long lExpirationTime = ( nExpirationCache == EXPIRATION_CACHE_NEVER ) ? Long.MAX_VALUE
+                                                                              : ( System.currentTimeMillis(  ) +
+            ( nExpirationCache * MILLISECONDS ) );
+        Segment segment = getSegment( getFragments(  ), key );
+
+        synchronized ( segment )
+        {
+            segment.put( key, new Fragment( content.toString(  ), lExpirationTime ) );
+        }
+    }
+
+    /**
+     * Return the last good fragment of a portlet window
+     *
+     * @param key The key of the fragment
+     * @return the last good fragment, or <code>null</code> if the portlet wasn't rendered yet
+     */
+    static String getLastGood( Key key )
+    {
+        Segment segment = getSegment( getLastGoodFragments(  ), key );
+
+        synchronized ( segment )
+        {
+            Fragment fragment = segment.get( key );
+
+            return ( fragment != null ) ? fragment.getContent(  ) : null;
+        }
+    }
+
+    /**
+     * Keep the last good fragment of a portlet window
+     *
+     * @param key The key of the fragment
+     * @param content The fragment
+     */
+    static void putLastGood( Key key, CharSequence content )
+    {
+        Segment segment = getSegment( getLastGoodFragments(  ), key );
+
+        synchronized ( segment )
+        {
+            segment.put( key, new Fragment( content.toString(  ), Long.MAX_VALUE ) );
+        }
+    }
+
+    /**
+     * Remove the fragments of a portlet window for the current user (after an
+     * action, the fragments of the portlet are expired)
+     *
+     * @param request The HTTP request
+     * @param portletWindow The portlet window
+     * @param strPortletEntityId The portlet entity ID
+     */
+    static void invalidate( HttpServletRequest request, PortletWindowImpl portletWindow, String strPortletEntityId )
+    {
+        String strKeyPrefix = getKeyPrefix( request, portletWindow, strPortletEntityId );
+
+        if ( strKeyPrefix == null )
+        {
+            return;
+        }
+
+        Segment[] segments = getFragments(  );
+        Segment segment = segments[getSegmentIndex( strKeyPrefix )];
+
+        synchronized ( segment )
+        {
+            segment.removePrefix( strKeyPrefix );
+        }
+    }
+
+    /**
+     * Remove all the fragments
+     */
+    static void clear(  )
+    {
+        _segmentsFragments = null;
+        _segmentsLastGoodFragments = null;
+    }
+
+    /**
+     * Build the beginning of the key (portlet entity, portlet window and user)
+     *
+     * @param request The HTTP request
+     * @param portletWindow The portlet window
+     * @param strPortletEntityId The portlet entity ID
+     * @return the beginning of the key of the fragments, <code>null</code> for
+     *         an anonymous user without session
+     */
+    private static String getKeyPrefix( HttpServletRequest request, PortletWindowImpl portletWindow,
+        String strPortletEntityId )
+    {
+        String strUserScope = getUserScope( request );
+
+        if ( strUserScope == null )
+        {
+            return null;
+        }
+
+        StringBuffer sbKey = new StringBuffer(  );
+        sbKey.append( strPortletEntityId ).append( KEY_SEPARATOR );
+        sbKey.append( portletWindow.getId(  ) ).append( KEY_SEPARATOR );
+        sbKey.append( strUserScope ).append( KEY_SEPARATOR );
+
+        return sbKey.toString(  );
+    }
+
+    /**
+     * Return the user scope of the fragments: a fragment is private to the
+     * registered user (or the session for anonymous users)
+     *
+     * @param request The HTTP request
+     * @return the user scope, <code>null</code> for an anonymous user without session
+     */
+    private static String getUserScope( HttpServletRequest request )
+    {
+        LuteceUser luteceUser = SecurityService.isAuthenticationEnable(  )
+            ? SecurityService.getInstance(  ).getRegisteredUser( request ) : null;
+
+        if ( luteceUser != null )
+        {
+            return SCOPE_USER + luteceUser.getName(  );
+        }
+
+        HttpSession session = request.getSession( false );
+
+        if ( session != null )
+        {
+            return SCOPE_SESSION + session.getId(  );
+        }
+
+        return null;
+    }
+
+    /**
+     * Parse an expiration cache value
+     *
+     * @param strExpirationCache The expiration cache (seconds)
+     * @return the expiration cache (<code>0</code> if the value isn't a number)
+     */
+    private static int parseExpirationCache( String strExpirationCache )
+    {
+        if ( strExpirationCache == null )
+        {
+            return EXPIRATION_CACHE_DISABLED;
+        }
+
+        try
+        {
+            int nExpirationCache = Integer.parseInt( strExpirationCache.trim(  ) );
+
+            return ( nExpirationCache < EXPIRATION_CACHE_NEVER ) ? EXPIRATION_CACHE_DISABLED : nExpirationCache;
+        }
+        catch ( NumberFormatException e )
+        {
+            return EXPIRATION_CACHE_DISABLED;
+        }
+    }
+
+    /**
+     * Return the segment of a key: the keys with the same prefix are in the
+     * same segment
+     *
+     * @param segments The segments of the cache
+     * @param key The key
+     * @return the segment
+     */
+    private static Segment getSegment( Segment[] segments, Key key )
+    {
+        return segments[getSegmentIndex( key.getPrefix(  ) )];
+    }
+
+    /**
+     * Return the index of the segment of a key prefix
+     *
+     * @param strKeyPrefix The key prefix
+     * @return the index of the segment
+     */
+    private static int getSegmentIndex( String strKeyPrefix )
+    {
+        int nHash = strKeyPrefix.hashCode(  );
+
+        // Spread the high bits: the prefixes often differ by their last characters only
+        nHash ^= ( nHash >>> 16 );
+
+        return ( nHash & 0x7fffffff ) % SEGMENTS;
+    }
+
+    /**
+     * Return the segments of the fragments (created on first use)
+     *
+     * @return the segments of the fragments
+     */
+    private static Segment[] getFragments(  )
+    {
+        Segment[] segments = _segmentsFragments;
+
+        if ( segments == null )
+        {
+            synchronized ( PortletRenderCache.class )
+            {
+                if ( _segmentsFragments == null )
+                {
+                    _segmentsFragments = createSegments(  );
+                }
+
+                segments = _segmentsFragments;
+            }
+        }
+
+        return segments;
+    }
+
+    /**
+     * Return the segments of the last good fragments (created on first use)
+     *
+     * @return the segments of the last good fragments
+     */
+    private static Segment[] getLastGoodFragments(  )
+    {
+        Segment[] segments = _segmentsLastGoodFragments;
+
+        if ( segments == null )
+        {
+            synchronized ( PortletRenderCache.class )
+            {
+                if ( _segmentsLastGoodFragments == null )
+                {
+                    _segmentsLastGoodFragments = createSegments(  );
+                }
+
+                segments = _segmentsLastGoodFragments;
+            }
+        }
+
+        return segments;
+    }
+
+    /**
+     * Create the segments of a cache, the cache size is shared between the
+     * segments
+     *
+     * @return the segments
+     */
+    private static Segment[] createSegments(  )
+    {
+        int nMaxSize = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_CACHE_MAX_SIZE,
+                DEFAULT_MAX_SIZE );
+        int nSegmentMaxSize = Math.max( 1, ( nMaxSize + SEGMENTS - 1 ) / SEGMENTS );
+        Segment[] segments = new Segment[SEGMENTS];
+
+        for ( int i = 0; i < SEGMENTS; i++ )
+        {
+            segments[i] = new Segment( nSegmentMaxSize );
+        }
+
+        return segments;
+    }
+
+    /**
+     * The key of a fragment: the key prefix (portlet entity, portlet window
+     * and user) followed by the render values
+     */
+    static final class Key
+    {
+        private final String _strPrefix;
+        private final String _strKey;
+
+        /**
+         * Initialize a key
+         *
+         * @param strPrefix The key prefix
+         * @param strKey The whole key
+         */
+        Key( String strPrefix, String strKey )
+        {
+            _strPrefix = strPrefix;
+            _strKey = strKey;
+        }
+
+        /**
+         * Return the key prefix
+         *
+         * @return the key prefix
+         */
+        String getPrefix(  )
+        {
+            return _strPrefix;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean equals( Object object )
+        {
+            return ( object instanceof Key ) && _strKey.equals( ( (Key) object )._strKey );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int hashCode(  )
+        {
+            return _strKey.hashCode(  );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String toString(  )
+        {
+            return _strKey;
+        }
+    }
+
+    /**
+     * A segment of the cache: the least recently used fragments are removed
+     * when the segment is full. The keys are indexed by prefix. A segment
+     * isn't thread safe, callers synchronize on it.
+     */
+    private static final class Segment
+    {
+        private final Map _mapFragments;
+        private final Map _mapKeysByPrefix = new HashMap(  );
+
+        /**
+         * Initialize a segment
+         *
+         * @param nMaxSize The maximum number of fragments of the segment
+         */
+        Segment( final int nMaxSize )
+        {
+            // Access order: the eldest entry is the least recently used
+            _mapFragments = new LinkedHashMap( 16, 0.75f, true )
+                    {
+                        protected boolean removeEldestEntry( Map.Entry eldest )
+                        {
+                            if ( size(  ) > nMaxSize )
+                            {
+                                unindex( (Key) eldest.getKey(  ) );
+
+                                return true;
+                            }
+
+                            return false;
+                        }
+                    };
+        }
+
+        /**
+         * Return a fragment
+         *
+         * @param key The key of the fragment
+         * @return the fragment, <code>null</code> if not found
+         */
+        Fragment get( Key key )
+        {
+            return (Fragment) _mapFragments.get( key );
+        }
+
+        /**
+         * Put a fragment
+         *
+         * @param key The key of the fragment
+         * @param fragment The fragment
+         */
+        void put( Key key, Fragment fragment )
+        {
+            Set setKeys = (Set) _mapKeysByPrefix.get( key.getPrefix(  ) );
+
+            if ( setKeys == null )
+            {
+                setKeys = new HashSet(  );
+                _mapKeysByPrefix.put( key.getPrefix(  ), setKeys );
+            }
+
+            setKeys.add( key );
+            _mapFragments.put( key, fragment );
+        }
+
+        /**
+         * Remove a fragment
+         *
+         * @param key The key of the fragment
+         */
+        void remove( Key key )
+        {
+            if ( _mapFragments.remove( key ) != null )
+            {
+                unindex( key );
+            }
+        }
+
+        /**
+         * Remove the fragments of a key prefix
+         *
+         * @param strPrefix The key prefix
+         */
+        void removePrefix( String strPrefix )
+        {
+            Set setKeys = (Set) _mapKeysByPrefix.remove( strPrefix );
+
+            if ( setKeys != null )
+            {
+                _mapFragments.keySet(  ).removeAll( setKeys );
+            }
+        }
+
+        /**
+         * Remove a key from the prefix index
+         *
+         * @param key The key
+         */
+        private void unindex( Key key )
+        {
+            Set setKeys = (Set) _mapKeysByPrefix.get( key.getPrefix(  ) );
+
+            if ( setKeys != null )
+            {
+                setKeys.remove( key );
+
+                if ( setKeys.isEmpty(  ) )
+                {
+                    _mapKeysByPrefix.remove( key.getPrefix(  ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * A fragment in the cache
+     */
+    private static final class Fragment
+    {
+        private final String _strContent;
+        private final long _lExpirationTime;
+
+        /**
+         * Initialize a fragment
+         *
+         * @param strContent The content of the fragment
+         * @param lExpirationTime The expiration time (milliseconds)
+         */
+        Fragment( String strContent, long lExpirationTime )
+        {
+            _strContent = strContent;
+            _lExpirationTime = lExpirationTime;
+        }
+
+        /**
+         * Return the content of the fragment
+         *
+         * @return the content of the fragment
+         */
+        String getContent(  )
+        {
+            return _strContent;
+        }
+
+        /**
+         * Indicate if the fragment has expired
+         *
+         * @param lTime The current time (milliseconds)
+         * @return <code>true</code> if the fragment has expired
+         */
+        boolean isExpired( long lTime )
+        {
+            return lTime >= _lExpirationTime;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import fr.paris.lutece.plugins.jsr168.pluto.core.NavigationalState;
+import fr.paris.lutece.plugins.jsr168.pluto.store.WindowStateStoreService;
+
+import org.apache.pluto.om.common.ObjectID;
+import org.apache.pluto.om.entity.PortletEntity;
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+import org.apache.pluto.portalImpl.services.portletentityregistry.PortletEntityRegistry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Portlet window and portlet entity of a Lutece portlet, resolved once per
+ * request: the render, the buttons and the render threads of a page share
+ * the same context.<br>
+ *
+ * The windows are read from the window state store
+ * ({@link WindowStateStoreService}).<br>
+ *
+ * In stateless mode, the windows are always request-scoped, filled with the
+ * navigational state of the page URL.
+ */
+final class PortletRenderContext
+{
+    private final String _strPortletEntityId;
+    private final PortletWindowImpl _portletWindow;
+    private final PortletEntity _portletEntity;
+
+    /**
+     * Resolve the context of a portlet
+     *
+     * @param request The HTTP request
+     * @param nPortletID Lutece portlet ID
+     * @param strPortletName JSR 168 portlet name (ID)
+     */
+    private PortletRenderContext( HttpServletRequest request, int nPortletID, String strPortletName )
+    {
+        String strPortletId = String.valueOf( nPortletID );
+
+        if ( NavigationalState.isEnabled(  ) )
+        {
+            _portletWindow = NavigationalState.getNavigationalState( request ).getWindow( strPortletId );
+        }
+        else
+        {
+            _portletWindow = WindowStateStoreService.getStore(  ).getPortletWindow( request, strPortletId );
+        }
+
+        _strPortletEntityId = LutecePlutoConstant.WEBAPP + "." + strPortletName;
+
+        ObjectID objectID = org.apache.pluto.portalImpl.util.ObjectID.createFromString( _strPortletEntityId );
+        _portletEntity = PortletEntityRegistry.getPortletEntity( objectID );
+        _portletWindow.setPortletEntity( _portletEntity );
+    }
+
+    /**
+     * Return the context of a portlet for the current request (resolved on
+     * first use)
+     *
+     * @param request The HTTP request
+     * @param nPortletID Lutece portlet ID
+     * @param strPortletName JSR 168 portlet name (ID)
+     * @return the context of the portlet
+     */
+    static PortletRenderContext getContext( HttpServletRequest request, int nPortletID, String strPortletName )
+    {
+        Map mapContexts = getContexts( request );
+        Integer portletId = Integer.valueOf( nPortletID );
+
+        synchronized ( mapContexts )
+        {
+            PortletRenderContext context = (PortletRenderContext) mapContexts.get( portletId );
+
+            if ( context == null )
+            {
+                context = new PortletRenderContext( request, nPortletID, strPortletName );
+                mapContexts.put( portletId, context );
+            }
+
+            return context;
+        }
+    }
+
+    /**
+     * Return the portlet entity ID
+     *
+     * @return the portlet entity ID
+     */
+    String getPortletEntityId(  )
+    {
+        return _strPortletEntityId;
+    }
+
+    /**
+     * Return the portlet window
+     *
+     * @return the portlet window
+     */
+    PortletWindowImpl getPortletWindow(  )
+    {
+        return _portletWindow;
+    }
+
+    /**
+     * Return the portlet entity
+     *
+     * @return the portlet entity
+     */
+    PortletEntity getPortletEntity(  )
+    {
+        return _portletEntity;
+    }
+
+    /**
+     * Return the contexts of the current request. The map is shared with the
+     * snapshots of the request taken for the render threads.
+     *
+     * @param request The HTTP request
+     * @return the contexts map
+     */
+    private static Map getContexts( HttpServletRequest request )
+    {
+        synchronized ( request )
+        {
+            Map mapContexts = (Map) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_RENDER_CONTEXTS );
+
+            if ( mapContexts == null )
+            {
+                mapContexts = Collections.synchronizedMap( new HashMap(  ) );
+                request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_RENDER_CONTEXTS, mapContexts );
+            }
+
+            return mapContexts;
+        }
+    }
+}
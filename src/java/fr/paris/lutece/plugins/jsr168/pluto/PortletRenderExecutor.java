@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Bounded thread pool used to render JSR 168 portlets outside of the request thread.<br>
+ *
+ * When the pool and its queue are full, the render is rejected: it is never
+ * done by the calling thread, whose deadline would not be kept.
+ */
+final class PortletRenderExecutor
+{
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_QUEUE_SIZE = 64;
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+    private static final String THREAD_NAME_PREFIX = "jsr168-render-";
+    private static ThreadPoolExecutor _executor;
+
+    /**
+     * Utility classes have no constructor
+     */
+    private PortletRenderExecutor(  )
+    {
+    }
+
+    /**
+     * Submit a render task
+     *
+     * @param task The render task
+     * @return The future result of the render
+     * @throws RejectedExecutionException if the pool and its queue are full
+     */
+    static Future submit( Callable task )
+    {
+        return getExecutor(  ).submit( task );
+    }
+
+    /**
+     * Stop the render threads: the running renders end (the portlets are not
+     * interrupted), the queued renders are cancelled (their pages display the
+     * render problem message)
+     */
+    static synchronized void shutdown(  )
+    {
+        if ( _executor != null )
+        {
+            _executor.shutdown(  );
+
+            List listQueued = new ArrayList(  );
+            _executor.getQueue(  ).drainTo( listQueued );
+
+            for ( Iterator it = listQueued.iterator(  ); it.hasNext(  ); )
+            {
+                ( (Future) it.next(  ) ).cancel( false );
+            }
+
+            _executor = null;
+        }
+    }
+
+    /**
+     * Return the executor (created on first use)
+     *
+     * @return the executor
+     */
+    private static synchronized ThreadPoolExecutor getExecutor(  )
+    {
+        if ( _executor == null )
+        {
+            int nThreads = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_PARALLEL_THREADS,
+                    DEFAULT_THREADS );
+            int nQueueSize = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_PARALLEL_QUEUE_SIZE,
+                    DEFAULT_QUEUE_SIZE );
+
+            _executor = new ThreadPoolExecutor( nThreads, nThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue( nQueueSize ), new RenderThreadFactory(  ),
+                    new ThreadPoolExecutor.AbortPolicy(  ) );
+
+            AppLogService.info( "JSR168 / render executor started (" + nThreads + " threads, queue " + nQueueSize +
+                ")" );
+        }
+
+        return _executor;
+    }
+
+    /**
+     * Create daemon threads bound to the web application class loader
+     * (portlets classes are loaded with the context class loader).
+     */
+    private static final class RenderThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger _nThreadCount = new AtomicInteger(  );
+        private final ClassLoader _classLoader = Thread.currentThread(  ).getContextClassLoader(  );
+
+        /**
+         * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+         */
+        public Thread newThread( Runnable runnable )
+        {
+            Thread thread = new Thread( runnable, THREAD_NAME_PREFIX + _nThreadCount.incrementAndGet(  ) );
+            thread.setDaemon( true );
+            thread.setContextClassLoader( _classLoader );
+
+            return thread;
+        }
+    }
+}
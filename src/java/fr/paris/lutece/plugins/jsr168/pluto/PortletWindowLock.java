@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import fr.paris.lutece.plugins.jsr168.pluto.core.NavigationalState;
+import fr.paris.lutece.plugins.jsr168.pluto.exception.PortletRejectedException;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+import fr.paris.lutece.portal.service.security.SecurityService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+
+/**
+ * Serialization of the updates of the state of a portlet window (filled from
+ * the URL of an action or of a change of mode or state, stored after the
+ * action) made by the simultaneous requests of a user (several tabs). The
+ * lock is not held during the action of the portlet. The renders don't lock:
+ * they read a single snapshot of the values of the window.<br>
+ *
+ * A lock is kept per session (or registered user without session) and
+ * window ID, whatever the window object of the request, and is removed when
+ * no request uses it. In stateless mode, and for a visitor without session,
+ * the window belongs to the request: nothing is locked.<br>
+ *
+ * An update waits at most <code>portlet.jsr168.window.lock.maxWait</code>
+ * milliseconds for the lock, then is rejected with a
+ * {@link PortletRejectedException}.
+ */
+final class PortletWindowLock
+{
+    private static final int DEFAULT_MAX_WAIT = 2000;
+    private static final char KEY_SEPARATOR = '|';
+    private static final ConcurrentMap LOCKS = new ConcurrentHashMap(  );
+
+    /**
+     * Private constructor
+     */
+    private PortletWindowLock(  )
+    {
+    }
+
+    /**
+     * Acquire the lock of a portlet window
+     *
+     * @param request The HTTP request
+     * @param portletWindow The portlet window
+     * @return the lock (to release after the update), <code>null</code> if
+     *         the window isn't shared with other requests
+     * @throws PortletRejectedException if the lock isn't available before the wait limit
+     */
+    static Lock acquire( HttpServletRequest request, PortletWindowImpl portletWindow )
+        throws PortletRejectedException
+    {
+        String strOwner = getOwner( request );
+
+        if ( strOwner == null )
+        {
+            return null;
+        }
+
+        WindowLock lock = reference( strOwner + KEY_SEPARATOR + portletWindow.getId(  ) );
+        int nMaxWait = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_WINDOW_LOCK_MAX_WAIT,
+                DEFAULT_MAX_WAIT );
+
+        try
+        {
+            if ( lock.tryLock( nMaxWait, TimeUnit.MILLISECONDS ) )
+            {
+                return lock;
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+        }
+
+        dereference( lock );
+
+        throw new PortletRejectedException( "Portlet window " + portletWindow.getId(  ) +
+            " busy with another request" );
+    }
+
+    /**
+     * Return the owner of the windows of the request
+     *
+     * @param request The HTTP request
+     * @return the session ID, the name of the registered user without session,
+     *         or <code>null</code> if the windows belong to the request
+     */
+    private static String getOwner( HttpServletRequest request )
+    {
+        if ( NavigationalState.isEnabled(  ) )
+        {
+            return null;
+        }
+
+        HttpSession session = request.getSession( false );
+
+        if ( session != null )
+        {
+            return session.getId(  );
+        }
+
+        LuteceUser luteceUser = SecurityService.getInstance(  ).getRegisteredUser( request );
+
+        return ( luteceUser != null ) ? luteceUser.getName(  ) : null;
+    }
+
+    /**
+     * Return the lock of a window, created if no request uses it
+     *
+     * @param strKey The key of the window
+     * @return the lock, referenced by the current request
+     */
+    private static WindowLock reference( String strKey )
+    {
+        while ( true )
+        {
+            WindowLock lock = (WindowLock) LOCKS.get( strKey );
+
+            if ( lock == null )
+            {
+                lock = new WindowLock( strKey );
+
+                if ( LOCKS.putIfAbsent( strKey, lock ) == null )
+                {
+                    return lock;
+                }
+            }
+            else
+            {
+                synchronized ( lock )
+                {
+                    // A lock without user is being removed: a new one is created
+                    if ( lock._nUsers > 0 )
+                    {
+                        lock._nUsers++;
+
+                        return lock;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the reference of a request to a lock, removed when it is not
+     * used anymore
+     *
+     * @param lock The lock
+     */
+    private static void dereference( WindowLock lock )
+    {
+        synchronized ( lock )
+        {
+            lock._nUsers--;
+
+            if ( lock._nUsers == 0 )
+            {
+                LOCKS.remove( lock._strKey, lock );
+            }
+        }
+    }
+
+    /**
+     * Lock of a window, with the count of the requests using it
+     */
+    private static final class WindowLock extends ReentrantLock
+    {
+        private static final long serialVersionUID = 1L;
+        private final String _strKey;
+        private int _nUsers = 1;
+
+        /**
+         * Create the lock of a window, referenced by the current request
+         *
+         * @param strKey The key of the window
+         */
+        WindowLock( String strKey )
+        {
+            _strKey = strKey;
+        }
+
+        /**
+         * Release the lock and the reference of the request
+         *
+         * @see java.util.concurrent.locks.ReentrantLock#unlock()
+         */
+        public void unlock(  )
+        {
+            super.unlock(  );
+            dereference( this );
+        }
+    }
+}
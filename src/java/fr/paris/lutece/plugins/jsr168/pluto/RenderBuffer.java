@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * Output buffer of a portlet render, made of fixed size chunks.<br>
+ *
+ * The chunks are taken from a global pool and given back by
+ * {@link #release()}: the output of a render doesn't grow (and copy) a single
+ * array, and the chunks are reused by the next renders.
+ */
+final class RenderBuffer
+{
+    private static final int CHUNK_SIZE = 8192;
+    private static final int DEFAULT_POOL_SIZE = 256;
+    private static final LinkedList _listPool = new LinkedList(  );
+    private static int _nPoolSize = -1;
+    private final List _listChunks;
+    private byte[] _currentChunk;
+    private int _nCurrentCount;
+    private int _nSize;
+    private int _nSizeHint;
+
+    /**
+     * Create an empty buffer
+     */
+    RenderBuffer(  )
+    {
+        _listChunks = new ArrayList(  );
+    }
+
+    /**
+     * Give a sizing hint: the next chunk is allocated with this size when it's
+     * bigger than the pooled chunks (the content fits in one chunk).
+     *
+     * @param nSize The expected size of the content
+     */
+    void setSizeHint( int nSize )
+    {
+        _nSizeHint = nSize;
+    }
+
+    /**
+     * Write a byte
+     *
+     * @param b The byte
+     */
+    void write( int b )
+    {
+        if ( ( _currentChunk == null ) || ( _nCurrentCount == _currentChunk.length ) )
+        {
+            nextChunk(  );
+        }
+
+        _currentChunk[_nCurrentCount++] = (byte) b;
+        _nSize++;
+    }
+
+    /**
+     * Write bytes
+     *
+     * @param bytes The bytes
+     * @param nOffset The start offset in the bytes
+     * @param nLength The number of bytes to write
+     */
+    void write( byte[] bytes, int nOffset, int nLength )
+    {
+        int nOff = nOffset;
+        int nRemaining = nLength;
+
+        while ( nRemaining > 0 )
+        {
+            if ( ( _currentChunk == null ) || ( _nCurrentCount == _currentChunk.length ) )
+            {
+                nextChunk(  );
+            }
+
+            int nCount = Math.min( nRemaining, _currentChunk.length - _nCurrentCount );
+            System.arraycopy( bytes, nOff, _currentChunk, _nCurrentCount, nCount );
+            _nCurrentCount += nCount;
+            nOff += nCount;
+            nRemaining -= nCount;
+        }
+
+        _nSize += nLength;
+    }
+
+    /**
+     * Return the number of bytes written
+     *
+     * @return the number of bytes written
+     */
+    int size(  )
+    {
+        return _nSize;
+    }
+
+    /**
+     * Decode the content of the buffer
+     *
+     * @param strCharset The charset of the content
+     * @return the content of the buffer
+     * @throws UnsupportedEncodingException if the charset isn't supported
+     */
+    String toString( String strCharset ) throws UnsupportedEncodingException
+    {
+        if ( _listChunks.size(  ) == 1 )
+        {
+            return new String( _currentChunk, 0, _nCurrentCount, strCharset );
+        }
+
+        // Chunks are joined before decoding (a character may be split on two chunks)
+        byte[] bytes = new byte[_nSize];
+        int nOffset = 0;
+
+        for ( int i = 0; i < _listChunks.size(  ); i++ )
+        {
+            byte[] chunk = (byte[]) _listChunks.get( i );
+            int nCount = ( chunk == _currentChunk ) ? _nCurrentCount : chunk.length;
+            System.arraycopy( chunk, 0, bytes, nOffset, nCount );
+            nOffset += nCount;
+        }
+
+        return new String( bytes, 0, nOffset, strCharset );
+    }
+
+    /**
+     * Clear the content of the buffer (the chunks are given back to the pool)
+     */
+    void reset(  )
+    {
+        release(  );
+    }
+
+    /**
+     * Give the chunks back to the pool: the content of the buffer is lost
+     */
+    void release(  )
+    {
+        synchronized ( _listPool )
+        {
+            for ( int i = 0; i < _listChunks.size(  ); i++ )
+            {
+                byte[] chunk = (byte[]) _listChunks.get( i );
+
+                if ( ( chunk.length == CHUNK_SIZE ) && ( _listPool.size(  ) < getPoolSize(  ) ) )
+                {
+                    _listPool.addLast( chunk );
+                }
+            }
+        }
+
+        _listChunks.clear(  );
+        _currentChunk = null;
+        _nCurrentCount = 0;
+        _nSize = 0;
+    }
+
+    /**
+     * Add a chunk to the buffer: a chunk of the pool, or a new chunk of the
+     * size given by the sizing hint
+     */
+    private void nextChunk(  )
+    {
+        byte[] chunk = null;
+
+        if ( ( _nSizeHint > CHUNK_SIZE ) && ( _listChunks.isEmpty(  ) ) )
+        {
+            chunk = new byte[_nSizeHint];
+        }
+        else
+        {
+            synchronized ( _listPool )
+            {
+                if ( !_listPool.isEmpty(  ) )
+                {
+                    chunk = (byte[]) _listPool.removeLast(  );
+                }
+            }
+
+            if ( chunk == null )
+            {
+                chunk = new byte[CHUNK_SIZE];
+            }
+        }
+
+        _listChunks.add( chunk );
+        _currentChunk = chunk;
+        _nCurrentCount = 0;
+    }
+
+    /**
+     * Return the maximum number of chunks kept in the pool
+     *
+     * @return the maximum number of chunks kept in the pool
+     */
+    private static int getPoolSize(  )
+    {
+        if ( _nPoolSize < 0 )
+        {
+            _nPoolSize = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_RENDER_BUFFER_POOL_SIZE,
+                    DEFAULT_POOL_SIZE );
+        }
+
+        return _nPoolSize;
+    }
+}
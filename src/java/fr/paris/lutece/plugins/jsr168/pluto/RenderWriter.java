@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import java.io.Writer;
+
+
+/**
+ * Writer of a portlet render: the characters are kept in a growable
+ * character buffer (no encoding to bytes).
+ */
+final class RenderWriter extends Writer
+{
+    private final StringBuilder _sbContent;
+
+    /**
+     * Create an empty writer
+     */
+    RenderWriter(  )
+    {
+        _sbContent = new StringBuilder(  );
+    }
+
+    /**
+     * @see java.io.Writer#write(int)
+     */
+    public void write( int c )
+    {
+        _sbContent.append( (char) c );
+    }
+
+    /**
+     * @see java.io.Writer#write(char[], int, int)
+     */
+    public void write( char[] chars, int nOffset, int nLength )
+    {
+        _sbContent.append( chars, nOffset, nLength );
+    }
+
+    /**
+     * @see java.io.Writer#write(java.lang.String, int, int)
+     */
+    public void write( String str, int nOffset, int nLength )
+    {
+        _sbContent.append( str, nOffset, nOffset + nLength );
+    }
+
+    /**
+     * @see java.io.Writer#flush()
+     */
+    public void flush(  )
+    {
+    }
+
+    /**
+     * @see java.io.Writer#close()
+     */
+    public void close(  )
+    {
+    }
+
+    /**
+     * Give a sizing hint for the content
+     *
+     * @param nSize The expected number of characters
+     */
+    void setSizeHint( int nSize )
+    {
+        _sbContent.ensureCapacity( nSize );
+    }
+
+    /**
+     * Return the number of characters written
+     *
+     * @return the number of characters written
+     */
+    int length(  )
+    {
+        return _sbContent.length(  );
+    }
+
+    /**
+     * Return the characters written (not copied)
+     *
+     * @return the characters written
+     */
+    CharSequence getContent(  )
+    {
+        return _sbContent;
+    }
+
+    /**
+     * Clear the content
+     */
+    void reset(  )
+    {
+        _sbContent.setLength( 0 );
+    }
+}
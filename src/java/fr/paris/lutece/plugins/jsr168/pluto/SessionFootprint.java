@@ -0,0 +1,641 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import org.apache.pluto.om.entity.PortletEntity;
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.servlet.http.HttpSession;
+
+
+/**
+ * Estimation of the heap cost of the JSR 168 state of the sessions: the
+ * portlet windows of each {@link PlutoSession} and the portlet-scoped
+ * attributes of the <code>PortletSession</code>s. The figures (size
+ * percentiles of a session, portlet definitions using the most memory) are
+ * published as an MBean (<code>fr.paris.lutece.plugins.jsr168:type=SessionFootprint</code>).<br>
+ *
+ * The sizes are estimations, for a 64 bits JVM: the attributes not made of
+ * strings, arrays and collections are measured by their serialized size.
+ * The figures are computed on demand, at most every
+ * <code>portlet.jsr168.session.footprint.refreshInterval</code> ms.
+ */
+public final class SessionFootprint implements SessionFootprintMBean
+{
+    private static final String OBJECT_NAME = "fr.paris.lutece.plugins.jsr168:type=SessionFootprint";
+    private static final int DEFAULT_REFRESH_INTERVAL = 10000;
+    private static final int TOP_DEFINITIONS = 10;
+
+    // Prefix of the portlet-scoped attributes in the HTTP session (Pluto PortletSessionImpl)
+    private static final String PORTLET_SCOPE_PREFIX = "javax.portlet.p.";
+    private static final char PORTLET_SCOPE_SEPARATOR = '?';
+    private static final String UNKNOWN_DEFINITION = "?";
+
+    // Estimated sizes (bytes)
+    private static final int OBJECT_HEADER = 16;
+    private static final int ARRAY_HEADER = 24;
+    private static final int REFERENCE = 8;
+    private static final int MAP_ENTRY = 48;
+    private static final int WINDOW = 200;
+    private static final int MAX_DEPTH = 8;
+    private static SessionFootprint _instance;
+    private Snapshot _snapshot;
+
+    /**
+     * Private constructor: see {@link #register()}
+     */
+    private SessionFootprint(  )
+    {
+    }
+
+    /**
+     * Register the MBean in the platform MBean server
+     */
+    static synchronized void register(  )
+    {
+        if ( _instance != null )
+        {
+            return;
+        }
+
+        try
+        {
+            SessionFootprint footprint = new SessionFootprint(  );
+            ManagementFactory.getPlatformMBeanServer(  ).registerMBean( footprint, new ObjectName( OBJECT_NAME ) );
+            _instance = footprint;
+            PlutoSession.setLiveSessionsTracked( true );
+        }
+        catch ( Exception e )
+        {
+            AppLogService.error( "JSR168 / session footprint MBean not registered: " + e.getMessage(  ), e );
+        }
+    }
+
+    /**
+     * Unregister the MBean
+     */
+    static synchronized void unregister(  )
+    {
+        if ( _instance == null )
+        {
+            return;
+        }
+
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer(  );
+            ObjectName objectName = new ObjectName( OBJECT_NAME );
+
+            if ( server.isRegistered( objectName ) )
+            {
+                server.unregisterMBean( objectName );
+            }
+        }
+        catch ( Exception e )
+        {
+            AppLogService.error( "JSR168 / session footprint MBean not unregistered: " + e.getMessage(  ), e );
+        }
+
+        PlutoSession.setLiveSessionsTracked( false );
+        _instance = null;
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#getSessionCount()
+     */
+    public int getSessionCount(  )
+    {
+        return getSnapshot(  ).getSessionBytes(  ).length;
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#getWindowCount()
+     */
+    public int getWindowCount(  )
+    {
+        return getSnapshot(  ).getWindowCount(  );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#getEvictedWindowCount()
+     */
+    public long getEvictedWindowCount(  )
+    {
+        return PlutoSession.getEvictedWindowCount(  );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#getTotalBytes()
+     */
+    public long getTotalBytes(  )
+    {
+        return getSnapshot(  ).getTotalBytes(  );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#getSessionBytesP50()
+     */
+    public long getSessionBytesP50(  )
+    {
+        return getSnapshot(  ).getPercentile( 0.5 );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#getSessionBytesP99()
+     */
+    public long getSessionBytesP99(  )
+    {
+        return getSnapshot(  ).getPercentile( 0.99 );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#getSessionBytesMax()
+     */
+    public long getSessionBytesMax(  )
+    {
+        return getSnapshot(  ).getPercentile( 1.0 );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#getTopPortletDefinitions()
+     */
+    public String[] getTopPortletDefinitions(  )
+    {
+        return getSnapshot(  ).getTopDefinitions(  );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.SessionFootprintMBean#refresh()
+     */
+    public synchronized void refresh(  )
+    {
+        _snapshot = computeSnapshot(  );
+    }
+
+    /**
+     * Return the last figures, computed again if they are too old
+     *
+     * @return the figures
+     */
+    private synchronized Snapshot getSnapshot(  )
+    {
+        int nRefreshInterval = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_SESSION_FOOTPRINT_REFRESH_INTERVAL,
+                DEFAULT_REFRESH_INTERVAL );
+
+        if ( ( _snapshot == null ) || ( System.currentTimeMillis(  ) >= ( _snapshot.getTime(  ) + nRefreshInterval ) ) )
+        {
+            _snapshot = computeSnapshot(  );
+        }
+
+        return _snapshot;
+    }
+
+    /**
+     * Measure the live sessions
+     *
+     * @return the figures
+     */
+    private static Snapshot computeSnapshot(  )
+    {
+        Map mapSessions = PlutoSession.getLiveSessions(  );
+        Map mapDefinitionBytes = new HashMap(  );
+        long[] sessionBytes = new long[mapSessions.size(  )];
+        int nSession = 0;
+        int nWindows = 0;
+
+        for ( Iterator it = mapSessions.entrySet(  ).iterator(  ); it.hasNext(  ); )
+        {
+            Map.Entry entry = (Map.Entry) it.next(  );
+            PlutoSession plutoSession = (PlutoSession) entry.getKey(  );
+            Map mapWindows = plutoSession.getPortletWindows(  );
+            long lBytes = 0;
+
+            for ( Iterator itWindows = mapWindows.values(  ).iterator(  ); itWindows.hasNext(  ); )
+            {
+                PortletWindowImpl portletWindow = (PortletWindowImpl) itWindows.next(  );
+                long lWindowBytes = WINDOW + sizeOfMap( portletWindow.getRenderParameters(  ), 0 );
+                addBytes( mapDefinitionBytes, getDefinitionId( portletWindow ), lWindowBytes );
+                lBytes += lWindowBytes;
+                nWindows++;
+            }
+
+            lBytes += sizeOfAttributes( (HttpSession) entry.getValue(  ), mapWindows, mapDefinitionBytes );
+            sessionBytes[nSession++] = lBytes;
+        }
+
+        Arrays.sort( sessionBytes );
+
+        return new Snapshot( sessionBytes, nWindows, getTopDefinitions( mapDefinitionBytes ) );
+    }
+
+    /**
+     * Measure the portlet-scoped attributes of a session
+     *
+     * @param session The HTTP session (<code>null</code> if unknown)
+     * @param mapWindows The portlet windows of the session (key: window ID)
+     * @param mapDefinitionBytes The sizes by portlet definition, updated
+     * @return the size of the attributes (bytes)
+     */
+    private static long sizeOfAttributes( HttpSession session, Map mapWindows, Map mapDefinitionBytes )
+    {
+        if ( session == null )
+        {
+            return 0;
+        }
+
+        long lBytes = 0;
+
+        try
+        {
+            for ( Enumeration names = session.getAttributeNames(  ); names.hasMoreElements(  ); )
+            {
+                String strName = (String) names.nextElement(  );
+
+                if ( !strName.startsWith( PORTLET_SCOPE_PREFIX ) )
+                {
+                    continue;
+                }
+
+                int nSeparator = strName.indexOf( PORTLET_SCOPE_SEPARATOR );
+                String strWindowId = ( nSeparator > 0 )
+                    ? strName.substring( PORTLET_SCOPE_PREFIX.length(  ), nSeparator ) : null;
+                PortletWindowImpl portletWindow = ( strWindowId != null )
+                    ? (PortletWindowImpl) mapWindows.get( strWindowId ) : null;
+                long lAttributeBytes = REFERENCE + sizeOfString( strName ) +
+                    sizeOf( session.getAttribute( strName ), 0 );
+
+                addBytes( mapDefinitionBytes,
+                    ( portletWindow != null ) ? getDefinitionId( portletWindow ) : UNKNOWN_DEFINITION, lAttributeBytes );
+                lBytes += lAttributeBytes;
+            }
+        }
+        catch ( IllegalStateException e )
+        {
+            // Session invalidated meanwhile
+        }
+
+        return lBytes;
+    }
+
+    /**
+     * Return the ID of the portlet definition of a window
+     *
+     * @param portletWindow The portlet window
+     * @return the definition ID, or {@link #UNKNOWN_DEFINITION} if the window
+     *         hasn't been used since it was deserialized
+     */
+    private static String getDefinitionId( PortletWindowImpl portletWindow )
+    {
+        PortletEntity portletEntity = portletWindow.getPortletEntity(  );
+
+        if ( ( portletEntity == null ) || ( portletEntity.getPortletDefinition(  ) == null ) )
+        {
+            return UNKNOWN_DEFINITION;
+        }
+
+        return portletEntity.getPortletDefinition(  ).getId(  ).toString(  );
+    }
+
+    /**
+     * Add a size to a portlet definition
+     *
+     * @param mapDefinitionBytes The sizes by portlet definition
+     * @param strDefinitionId The portlet definition ID
+     * @param lBytes The size to add (bytes)
+     */
+    private static void addBytes( Map mapDefinitionBytes, String strDefinitionId, long lBytes )
+    {
+        Long total = (Long) mapDefinitionBytes.get( strDefinitionId );
+        mapDefinitionBytes.put( strDefinitionId, new Long( ( ( total != null ) ? total.longValue(  ) : 0L ) + lBytes ) );
+    }
+
+    /**
+     * Return the portlet definitions using the most memory
+     *
+     * @param mapDefinitionBytes The sizes by portlet definition
+     * @return the portlet definitions, as <code>definition ID: bytes</code>, largest first
+     */
+    private static String[] getTopDefinitions( Map mapDefinitionBytes )
+    {
+        List listEntries = new ArrayList( mapDefinitionBytes.entrySet(  ) );
+        Collections.sort( listEntries,
+            new Comparator(  )
+            {
+                public int compare( Object o1, Object o2 )
+                {
+                    return ( (Long) ( (Map.Entry) o2 ).getValue(  ) ).compareTo( (Long) ( (Map.Entry) o1 ).getValue(  ) );
+                }
+            } );
+
+        String[] topDefinitions = new String[Math.min( listEntries.size(  ), TOP_DEFINITIONS )];
+
+        for ( int i = 0; i < topDefinitions.length; i++ )
+        {
+            Map.Entry entry = (Map.Entry) listEntries.get( i );
+            topDefinitions[i] = entry.getKey(  ) + ": " + entry.getValue(  );
+        }
+
+        return topDefinitions;
+    }
+
+    /**
+     * Estimate the size of an object
+     *
+     * @param object The object
+     * @param nDepth The depth of the object in the measured graph
+     * @return the size (bytes)
+     */
+    private static long sizeOf( Object object, int nDepth )
+    {
+        if ( object == null )
+        {
+            return 0;
+        }
+
+        if ( object instanceof String )
+        {
+            return sizeOfString( (String) object );
+        }
+
+        if ( ( object instanceof Number ) || ( object instanceof Boolean ) || ( object instanceof Character ) )
+        {
+            return OBJECT_HEADER + 8;
+        }
+
+        if ( nDepth < MAX_DEPTH )
+        {
+            try
+            {
+                if ( object instanceof Object[] )
+                {
+                    return sizeOfCollection( Arrays.asList( (Object[]) object ), nDepth ) - OBJECT_HEADER;
+                }
+
+                if ( object instanceof Map )
+                {
+                    return sizeOfMap( (Map) object, nDepth );
+                }
+
+                if ( object instanceof Collection )
+                {
+                    return sizeOfCollection( (Collection) object, nDepth );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                // Collection modified by a request meanwhile: measured by serialization
+            }
+        }
+
+        if ( object instanceof Serializable )
+        {
+            return sizeOfSerialized( object );
+        }
+
+        return OBJECT_HEADER;
+    }
+
+    /**
+     * Estimate the size of a string
+     *
+     * @param strValue The string
+     * @return the size (bytes)
+     */
+    private static long sizeOfString( String strValue )
+    {
+        return OBJECT_HEADER + 8 + ARRAY_HEADER + ( 2L * strValue.length(  ) );
+    }
+
+    /**
+     * Estimate the size of a map
+     *
+     * @param map The map
+     * @param nDepth The depth of the map in the measured graph
+     * @return the size (bytes)
+     */
+    private static long sizeOfMap( Map map, int nDepth )
+    {
+        long lBytes = OBJECT_HEADER + ARRAY_HEADER;
+
+        for ( Iterator it = map.entrySet(  ).iterator(  ); it.hasNext(  ); )
+        {
+            Map.Entry entry = (Map.Entry) it.next(  );
+            lBytes += ( MAP_ENTRY + REFERENCE + sizeOf( entry.getKey(  ), nDepth + 1 ) +
+            sizeOf( entry.getValue(  ), nDepth + 1 ) );
+        }
+
+        return lBytes;
+    }
+
+    /**
+     * Estimate the size of a collection
+     *
+     * @param collection The collection
+     * @param nDepth The depth of the collection in the measured graph
+     * @return the size (bytes)
+     */
+    private static long sizeOfCollection( Collection collection, int nDepth )
+    {
+        long lBytes = OBJECT_HEADER + ARRAY_HEADER;
+
+        for ( Iterator it = collection.iterator(  ); it.hasNext(  ); )
+        {
+            lBytes += ( REFERENCE + sizeOf( it.next(  ), nDepth + 1 ) );
+        }
+
+        return lBytes;
+    }
+
+    /**
+     * Estimate the size of an object by its serialized size
+     *
+     * @param object The object
+     * @return the size (bytes)
+     */
+    private static long sizeOfSerialized( Object object )
+    {
+        CountingOutputStream out = new CountingOutputStream(  );
+
+        try
+        {
+            ObjectOutputStream objectOut = new ObjectOutputStream( out );
+            objectOut.writeObject( object );
+            objectOut.close(  );
+
+            return out.getCount(  );
+        }
+        catch ( IOException e )
+        {
+            return OBJECT_HEADER;
+        }
+        catch ( RuntimeException e )
+        {
+            return OBJECT_HEADER;
+        }
+    }
+
+    /**
+     * Output stream counting the bytes written
+     */
+    private static final class CountingOutputStream extends OutputStream
+    {
+        private long _lCount;
+
+        /**
+         * @see java.io.OutputStream#write(int)
+         */
+        public void write( int b )
+        {
+            _lCount++;
+        }
+
+        /**
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        public void write( byte[] b, int off, int len )
+        {
+            _lCount += len;
+        }
+
+        /**
+         * Return the number of bytes written
+         *
+         * @return the number of bytes
+         */
+        long getCount(  )
+        {
+            return _lCount;
+        }
+    }
+
+    /**
+     * Figures computed at a given time
+     */
+    private static final class Snapshot
+    {
+        private final long _lTime;
+        private final long[] _sessionBytes;
+        private final int _nWindowCount;
+        private final String[] _topDefinitions;
+
+        /**
+         * Initialize the figures
+         *
+         * @param sessionBytes The sizes of the sessions, sorted
+         * @param nWindowCount The number of windows
+         * @param topDefinitions The portlet definitions using the most memory
+         */
+        Snapshot( long[] sessionBytes, int nWindowCount, String[] topDefinitions )
+        {
+            _lTime = System.currentTimeMillis(  );
+            _sessionBytes = sessionBytes;
+            _nWindowCount = nWindowCount;
+            _topDefinitions = topDefinitions;
+        }
+
+        long getTime(  )
+        {
+            return _lTime;
+        }
+
+        long[] getSessionBytes(  )
+        {
+            return _sessionBytes;
+        }
+
+        int getWindowCount(  )
+        {
+            return _nWindowCount;
+        }
+
+        String[] getTopDefinitions(  )
+        {
+            return (String[]) _topDefinitions.clone(  );
+        }
+
+        long getTotalBytes(  )
+        {
+            long lTotal = 0;
+
+            for ( int i = 0; i < _sessionBytes.length; i++ )
+            {
+                lTotal += _sessionBytes[i];
+            }
+
+            return lTotal;
+        }
+
+        /**
+         * Return a percentile of the session sizes
+         *
+         * @param dQuantile The quantile (0 to 1)
+         * @return the size (bytes), <code>0</code> if there is no session
+         */
+        long getPercentile( double dQuantile )
+        {
+            if ( _sessionBytes.length == 0 )
+            {
+                return 0;
+            }
+
+            int nIndex = (int) Math.ceil( dQuantile * _sessionBytes.length ) - 1;
+
+            return _sessionBytes[Math.max( 0, Math.min( nIndex, _sessionBytes.length - 1 ) )];
+        }
+    }
+}
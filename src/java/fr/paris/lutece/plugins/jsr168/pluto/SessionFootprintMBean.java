@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+
+/**
+ * Management interface of {@link SessionFootprint}: estimated heap cost of
+ * the JSR 168 state of the sessions (bytes)
+ */
+public interface SessionFootprintMBean
+{
+    /**
+     * Return the number of live Pluto sessions
+     *
+     * @return the number of sessions
+     */
+    int getSessionCount(  );
+
+    /**
+     * Return the number of portlet windows of all the sessions
+     *
+     * @return the number of windows
+     */
+    int getWindowCount(  );
+
+    /**
+     * Return the number of windows evicted from the sessions since startup
+     *
+     * @return the number of evicted windows
+     */
+    long getEvictedWindowCount(  );
+
+    /**
+     * Return the estimated size of the JSR 168 state of all the sessions
+     *
+     * @return the size (bytes)
+     */
+    long getTotalBytes(  );
+
+    /**
+     * Return the median estimated size of a session
+     *
+     * @return the size (bytes)
+     */
+    long getSessionBytesP50(  );
+
+    /**
+     * Return the 99th percentile of the estimated size of a session
+     *
+     * @return the size (bytes)
+     */
+    long getSessionBytesP99(  );
+
+    /**
+     * Return the estimated size of the largest session
+     *
+     * @return the size (bytes)
+     */
+    long getSessionBytesMax(  );
+
+    /**
+     * Return the portlet definitions using the most session memory (windows
+     * and portlet-scoped <code>PortletSession</code> attributes), largest first
+     *
+     * @return the portlet definitions, as <code>definition ID: bytes</code>
+     */
+    String[] getTopPortletDefinitions(  );
+
+    /**
+     * Compute the figures again now
+     */
+    void refresh(  );
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.core;
+
+import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+
+import org.apache.pluto.portalImpl.services.config.Config;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Resolution of the base of the portal URLs (protocol, host and port), as
+ * defined by <code>host.mode</code> in services.xml:
+ * <ul>
+ * <li><code>static</code>: the host and ports defined in services.xml
+ * (<code>host.name</code>, <code>host.port.http</code>, <code>host.port.https</code>)</li>
+ * <li><code>request</code>: the scheme, host and port of the request, or of the
+ * <code>X-Forwarded-*</code> headers if <code>host.forwarded</code> is
+ * <code>true</code> (behind a reverse proxy or a load balancer). Several
+ * virtual hosts can be served by the same node.</li>
+ * <li><code>relative</code>: no base, the URLs are relative to the server</li>
+ * </ul>
+ * The bases of the request mode are not kept (the hosts come from the
+ * clients): they are computed once per request by the URL providers.
+ */
+final class BaseURLResolver
+{
+    private static final String MODE_STATIC = "static";
+    private static final String MODE_RELATIVE = "relative";
+    private static final String SCHEME_HTTP = "http";
+    private static final String SCHEME_HTTPS = "https";
+    private static final int PORT_HTTP = 80;
+    private static final int PORT_HTTPS = 443;
+    private static final String HEADER_FORWARDED_PROTO = "X-Forwarded-Proto";
+    private static final String HEADER_FORWARDED_HOST = "X-Forwarded-Host";
+    private static final String HEADER_FORWARDED_PORT = "X-Forwarded-Port";
+    private static final String _strMode;
+    private static final boolean _bForwarded;
+    private static final String _strHostName;
+    private static final int _nPortHTTP;
+    private static final int _nPortHTTPS;
+    private static final String _strStaticBaseHTTP;
+    private static final String _strStaticBaseHTTPS;
+
+    static
+    {
+        _strMode = Config.getParameters(  ).getString( LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_MODE, MODE_STATIC )
+                         .trim(  );
+        _bForwarded = Config.getParameters(  )
+                            .getBoolean( LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_FORWARDED, Boolean.FALSE )
+                            .booleanValue(  );
+        _strHostName = Config.getParameters(  )
+                             .getString( LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_NAME,
+                LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_NAME_DEFAULT );
+        _nPortHTTP = parsePort( Config.getParameters(  )
+                                      .getString( LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_PORT_HTTP,
+                    LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_PORT_HTTP_DEFAULT ), PORT_HTTP );
+        _nPortHTTPS = parsePort( Config.getParameters(  )
+                                       .getString( LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_PORT_HTTPS,
+                    LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_PORT_HTTPS_DEFAULT ), PORT_HTTPS );
+        _strStaticBaseHTTP = buildBaseURL( SCHEME_HTTP, _strHostName, _nPortHTTP );
+        _strStaticBaseHTTPS = buildBaseURL( SCHEME_HTTPS, _strHostName, _nPortHTTPS );
+    }
+
+    /**
+     * Private constructor
+     */
+    private BaseURLResolver(  )
+    {
+    }
+
+    /**
+     * Return the base of the portal URLs for a request (for example
+     * <code>&quot;http://www.example.org&quot;</code>)
+     *
+     * @param request The HTTP request
+     * @param bSecure <code>true</code> for an HTTPS URL
+     * @return the base URL, or an empty string for relative URLs
+     */
+    static String getBaseURL( HttpServletRequest request, boolean bSecure )
+    {
+        if ( MODE_RELATIVE.equals( _strMode ) )
+        {
+            return "";
+        }
+
+        if ( MODE_STATIC.equals( _strMode ) )
+        {
+            return bSecure ? _strStaticBaseHTTPS : _strStaticBaseHTTP;
+        }
+
+        String strForwardedScheme = getHeader( request, HEADER_FORWARDED_PROTO );
+        String strHost = getHeader( request, HEADER_FORWARDED_HOST );
+        String strPort = getHeader( request, HEADER_FORWARDED_PORT );
+        String strScheme = ( strForwardedScheme != null ) ? strForwardedScheme : request.getScheme(  );
+
+        if ( ( strHost == null ) || !isValidHost( strHost ) )
+        {
+            strHost = request.getServerName(  );
+
+            // The port of the server is the one of the client only if the proxy sent neither its port nor its scheme
+            if ( ( strPort == null ) && ( strForwardedScheme == null ) )
+            {
+                strPort = String.valueOf( request.getServerPort(  ) );
+            }
+        }
+
+        return resolveBaseURL( strScheme, strHost, strPort, bSecure );
+    }
+
+    /**
+     * Build the base URL of a virtual host
+     *
+     * @param strScheme The scheme of the request
+     * @param strHost The host of the request (may contain the port)
+     * @param strPort The port of the request (or <code>null</code>)
+     * @param bSecure <code>true</code> for an HTTPS URL
+     * @return the base URL
+     */
+    private static String resolveBaseURL( String strScheme, String strHost, String strPort, boolean bSecure )
+    {
+        if ( !isValidHost( strHost ) )
+        {
+            return bSecure ? _strStaticBaseHTTPS : _strStaticBaseHTTP;
+        }
+
+        String strHostName = strHost;
+        int nPort = -1;
+        int nPortSeparator = strHost.lastIndexOf( ':' );
+
+        // Port in the host ("host:port"), not in an IPv6 address ("[::1]")
+        if ( ( nPortSeparator > 0 ) && ( strHost.indexOf( ']', nPortSeparator ) < 0 ) )
+        {
+            strHostName = strHost.substring( 0, nPortSeparator );
+            nPort = parsePort( strHost.substring( nPortSeparator + 1 ), -1 );
+        }
+
+        if ( ( nPort < 0 ) && ( strPort != null ) )
+        {
+            nPort = parsePort( strPort, -1 );
+        }
+
+        boolean bRequestSecure = SCHEME_HTTPS.equalsIgnoreCase( strScheme );
+
+        if ( bSecure && !bRequestSecure )
+        {
+            // Switch to HTTPS: the port of the request is the HTTP one
+            return buildBaseURL( SCHEME_HTTPS, strHostName, _nPortHTTPS );
+        }
+
+        String strBaseScheme = bRequestSecure ? SCHEME_HTTPS : SCHEME_HTTP;
+
+        return buildBaseURL( strBaseScheme, strHostName,
+            ( nPort > 0 ) ? nPort : ( bRequestSecure ? PORT_HTTPS : PORT_HTTP ) );
+    }
+
+    /**
+     * Build a base URL, without the default port of the scheme
+     *
+     * @param strScheme The scheme
+     * @param strHostName The host name
+     * @param nPort The port
+     * @return the base URL
+     */
+    private static String buildBaseURL( String strScheme, String strHostName, int nPort )
+    {
+        StringBuilder sbBase = new StringBuilder( strScheme ).append( "://" ).append( strHostName );
+        int nDefaultPort = SCHEME_HTTPS.equals( strScheme ) ? PORT_HTTPS : PORT_HTTP;
+
+        if ( nPort != nDefaultPort )
+        {
+            sbBase.append( ':' ).append( nPort );
+        }
+
+        return sbBase.toString(  );
+    }
+
+    /**
+     * Return the first value of a forwarded header, if the forwarded headers are trusted
+     *
+     * @param request The HTTP request
+     * @param strName The header name
+     * @return the value, or <code>null</code>
+     */
+    private static String getHeader( HttpServletRequest request, String strName )
+    {
+        if ( !_bForwarded )
+        {
+            return null;
+        }
+
+        String strValue = request.getHeader( strName );
+
+        if ( strValue == null )
+        {
+            return null;
+        }
+
+        // Several proxies: the first one received the client request
+        int nComma = strValue.indexOf( ',' );
+
+        strValue = ( ( nComma >= 0 ) ? strValue.substring( 0, nComma ) : strValue ).trim(  );
+
+        return ( strValue.length(  ) > 0 ) ? strValue : null;
+    }
+
+    /**
+     * Indicate if a host name received from a client can be used in an URL
+     *
+     * @param strHost The host name (may contain a port)
+     * @return <code>true</code> if the host contains only letters, digits and <code>.-:[]</code>
+     */
+    private static boolean isValidHost( String strHost )
+    {
+        if ( strHost.length(  ) == 0 )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < strHost.length(  ); i++ )
+        {
+            char c = strHost.charAt( i );
+
+            if ( !( ( ( c >= 'a' ) && ( c <= 'z' ) ) || ( ( c >= 'A' ) && ( c <= 'Z' ) ) ||
+                    ( ( c >= '0' ) && ( c <= '9' ) ) || ( c == '.' ) || ( c == '-' ) || ( c == ':' ) ||
+                    ( c == '[' ) || ( c == ']' ) ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parse a port number
+     *
+     * @param strPort The port
+     * @param nDefault The value if the port is empty or invalid
+     * @return the port
+     */
+    private static int parsePort( String strPort, int nDefault )
+    {
+        try
+        {
+            int nPort = Integer.parseInt( strPort.trim(  ) );
+
+            return ( ( nPort > 0 ) && ( nPort <= 65535 ) ) ? nPort : nDefault;
+        }
+        catch ( NumberFormatException e )
+        {
+            return nDefault;
+        }
+    }
+}
@@ -88,6 +88,7 @@
 package fr.paris.lutece.plugins.jsr168.pluto.core;
 
 import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+import fr.paris.lutece.plugins.jsr168.pluto.servlet.ServletRequestImpl;
 
 import org.apache.pluto.om.window.PortletWindow;
 import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
@@ -115,6 +116,7 @@ public class DynamicInformationProviderImpl implements DynamicInformationProvide
 {
     private static final int NumberOfKnownMimetypes = 15;
     private final HttpServletRequest _request;
+    private final HttpServletRequest _windowRequest;
     private PortalEnvironment _env;
 
     /**
@@ -126,15 +128,42 @@ public class DynamicInformationProviderImpl implements DynamicInformationProvide
     DynamicInformationProviderImpl( HttpServletRequest request )
     {
         _request = request;
+        _windowRequest = request;
         _env = PortalEnvironment.getPortalEnvironment( request );
     }
 
+    /**
+     * Initialize a view of a provider for the request of a portlet window
+     * (see {@link ServletRequestImpl}): the mode and the state are read from
+     * the values of the window seen by this request
+     *
+     * @param provider The provider of the HTTP request
+     * @param windowRequest The request of the portlet window
+     */
+    DynamicInformationProviderImpl( DynamicInformationProviderImpl provider, HttpServletRequest windowRequest )
+    {
+        _request = provider._request;
+        _windowRequest = windowRequest;
+        _env = provider._env;
+    }
+
+    /**
+     * Return the current HTTP request
+     *
+     * @return the current HTTP request
+     */
+    HttpServletRequest getRequest(  )
+    {
+        return _request;
+    }
+
     /**
      * @see org.apache.pluto.services.information.DynamicInformationProvider#getPortletMode(org.apache.pluto.om.window.PortletWindow)
      */
     public PortletMode getPortletMode( PortletWindow portletWindow )
     {
-        return ( (PortletWindowImpl) portletWindow ).getPortletMode(  );
+        return ServletRequestImpl.getWindowValues( _windowRequest, (PortletWindowImpl) portletWindow )
+                                 .getPortletMode(  );
     }
 
     /**
@@ -201,7 +230,8 @@ public class DynamicInformationProviderImpl implements DynamicInformationProvide
      */
     public WindowState getWindowState( final PortletWindow portletWindow )
     {
-        return ( (PortletWindowImpl) portletWindow ).getWindowState(  );
+        return ServletRequestImpl.getWindowValues( _windowRequest, (PortletWindowImpl) portletWindow )
+                                 .getWindowState(  );
     }
 
     /**
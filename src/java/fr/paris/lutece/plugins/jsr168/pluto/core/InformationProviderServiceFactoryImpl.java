@@ -132,7 +132,7 @@ public class InformationProviderServiceFactoryImpl implements InformationProvide
          */
     public DynamicInformationProvider getDynamicProvider( HttpServletRequest request )
     {
-        DynamicInformationProvider provider = (DynamicInformationProvider) request.getAttribute( 
+        DynamicInformationProviderImpl provider = (DynamicInformationProviderImpl) request.getAttribute( 
                 "fr.paris.lutece.plugins.jsr168.dynamicInformationProvider" );
 
         if ( provider == null )
@@ -140,6 +140,11 @@ public class InformationProviderServiceFactoryImpl implements InformationProvide
             provider = new DynamicInformationProviderImpl( request );
             request.setAttribute( "fr.paris.lutece.plugins.jsr168.dynamicInformationProvider", provider );
         }
+        else if ( provider.getRequest(  ) != request )
+        {
+            // Request of a portlet window: the window is read from the snapshot of this request
+            return new DynamicInformationProviderImpl( provider, request );
+        }
 
         return provider;
     }
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.core;
+
+import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLDecoder;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Navigational state of the portlet windows of a page, encoded in the page URL
+ * (stateless mode): a rendered page depends only on its URL.<br>
+ *
+ * The state of a window is the request parameter <code>_ns&lt;window ID&gt;</code>,
+ * with the value <code>mode;state;parameters</code>: the mode and the state are
+ * empty for <code>view</code> and <code>normal</code>, the parameters are URL
+ * encoded (<code>name=value&amp;name=value</code>, UTF-8). A window in its
+ * initial state has no parameter; a window whose state can't be decoded
+ * (truncated or forged URL) keeps its initial state.
+ */
+public final class NavigationalState
+{
+    private static final String KEY_PREFIX = PortalURL.PREFIX + "ns";
+    private static final String FIELD_SEPARATOR = ";";
+    private static final String PARAMETER_SEPARATOR = "&";
+    private static final char VALUE_SEPARATOR = '=';
+
+    /**
+     * Encoded state of the windows (window ID, state)
+     */
+    private final Map _mapStates;
+
+    /**
+     * Read the navigational state of the windows from the page request
+     *
+     * @param request The HTTP request of the page
+     */
+    private NavigationalState( HttpServletRequest request )
+    {
+        _mapStates = new HashMap(  );
+
+        for ( Enumeration names = request.getParameterNames(  ); names.hasMoreElements(  ); )
+        {
+            String strName = (String) names.nextElement(  );
+            String strValue = request.getParameter( strName );
+
+            if ( strName.startsWith( KEY_PREFIX ) && ( strValue != null ) && ( strValue.length(  ) > 0 ) )
+            {
+                _mapStates.put( strName.substring( KEY_PREFIX.length(  ) ), strValue );
+            }
+        }
+    }
+
+    /**
+     * Indicate if the navigational state is kept in the URLs (instead of the
+     * session)
+     *
+     * @return <code>true</code> if the stateless mode is enabled
+     */
+    public static boolean isEnabled(  )
+    {
+        return Boolean.valueOf( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_URL_STATELESS, "false" ) )
+                      .booleanValue(  );
+    }
+
+    /**
+     * Return the navigational state of the current request (read on first use)
+     *
+     * @param request The HTTP request of the page
+     * @return the navigational state
+     */
+    public static NavigationalState getNavigationalState( HttpServletRequest request )
+    {
+        NavigationalState navigationalState = (NavigationalState) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_NAVIGATIONAL_STATE );
+
+        if ( navigationalState == null )
+        {
+            navigationalState = new NavigationalState( request );
+            request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_NAVIGATIONAL_STATE, navigationalState );
+        }
+
+        return navigationalState;
+    }
+
+    /**
+     * Fill a portlet window with its state in the URL (mode, state and render
+     * parameters)
+     *
+     * @param portletWindow The portlet window (in its initial state)
+     */
+    public void fillWindow( PortletWindowImpl portletWindow )
+    {
+        String strState = (String) _mapStates.get( portletWindow.getId(  ).toString(  ) );
+
+        if ( strState != null )
+        {
+            decode( strState, portletWindow );
+        }
+
+        portletWindow.saveValues(  );
+    }
+
+    /**
+     * Return a portlet window filled with its state in the URL
+     *
+     * @param strWindowId The window ID
+     * @return the portlet window
+     */
+    public PortletWindowImpl getWindow( String strWindowId )
+    {
+        PortletWindowImpl portletWindow = new PortletWindowImpl( strWindowId );
+        fillWindow( portletWindow );
+
+        return portletWindow;
+    }
+
+    /**
+     * Return the window state of a window
+     *
+     * @param strWindowId The window ID
+     * @return the window state
+     */
+    public WindowState getWindowState( String strWindowId )
+    {
+        String strState = (String) _mapStates.get( strWindowId );
+
+        if ( strState == null )
+        {
+            return WindowState.NORMAL;
+        }
+
+        WindowState windowState = PortalContextProviderImpl.getSupportedWindowState( splitFields( strState )[1] );
+
+        return ( windowState != null ) ? windowState : WindowState.NORMAL;
+    }
+
+    /**
+     * Build the URL parameters of the navigational state of the page, with a
+     * new state for a window
+     *
+     * @param strWindowId The window ID of the new state (<code>null</code> for
+     *        the state of the page unchanged)
+     * @param portletMode The new portlet mode of the window
+     * @param windowState The new window state of the window
+     * @param parameters The new render parameters of the window
+     * @return the URL parameters (beginning with <code>&amp;</code>), or an empty string
+     */
+    public String buildParams( String strWindowId, PortletMode portletMode, WindowState windowState, Map parameters )
+    {
+        StringBuilder sbParams = new StringBuilder(  );
+
+        for ( Iterator it = _mapStates.entrySet(  ).iterator(  ); it.hasNext(  ); )
+        {
+            Map.Entry entry = (Map.Entry) it.next(  );
+
+            if ( !entry.getKey(  ).equals( strWindowId ) )
+            {
+                appendParam( sbParams, (String) entry.getKey(  ), (String) entry.getValue(  ) );
+            }
+        }
+
+        if ( strWindowId != null )
+        {
+            String strState = encode( portletMode, windowState, parameters );
+
+            if ( strState != null )
+            {
+                appendParam( sbParams, strWindowId, strState );
+            }
+        }
+
+        return sbParams.toString(  );
+    }
+
+    /**
+     * Encode the state of a window
+     *
+     * @param portletMode The portlet mode
+     * @param windowState The window state
+     * @param parameters The render parameters
+     * @return the encoded state, or <code>null</code> for the initial state
+     */
+    public static String encode( PortletMode portletMode, WindowState windowState, Map parameters )
+    {
+        String strMode = ( ( portletMode == null ) || PortletMode.VIEW.equals( portletMode ) ) ? ""
+                                                                                                : portletMode.toString(  );
+        String strState = ( ( windowState == null ) || WindowState.NORMAL.equals( windowState ) ) ? ""
+                                                                                                  : windowState.toString(  );
+        String strParameters = ( parameters == null ) ? "" : PortalURL.buildParameterParam( parameters );
+
+        if ( ( strMode.length(  ) == 0 ) && ( strState.length(  ) == 0 ) && ( strParameters.length(  ) == 0 ) )
+        {
+            return null;
+        }
+
+        return strMode + FIELD_SEPARATOR + strState + FIELD_SEPARATOR + strParameters;
+    }
+
+    /**
+     * Fill a portlet window with an encoded state (the window is unchanged if
+     * the state can't be decoded)
+     *
+     * @param strState The encoded state
+     * @param portletWindow The portlet window
+     */
+    public static void decode( String strState, PortletWindowImpl portletWindow )
+    {
+        String[] fields = splitFields( strState );
+        Map mapParameters;
+
+        try
+        {
+            mapParameters = decodeParameters( fields[2] );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            AppLogService.debug( "JSR168 / invalid navigational state ignored (window " + portletWindow.getId(  ) +
+                "): " + e.getMessage(  ) );
+
+            return;
+        }
+
+        // An unsupported mode or state is replaced by the default one
+        if ( fields[0].length(  ) > 0 )
+        {
+            portletWindow.setPortletMode( PortalContextProviderImpl.getSupportedPortletMode( fields[0] ) );
+        }
+
+        if ( fields[1].length(  ) > 0 )
+        {
+            portletWindow.setWindowState( PortalContextProviderImpl.getSupportedWindowState( fields[1] ) );
+        }
+
+        portletWindow.setRenderParameter( mapParameters );
+    }
+
+    /**
+     * Append the state of a window to URL parameters
+     *
+     * @param sbParams The URL parameters
+     * @param strWindowId The window ID
+     * @param strState The encoded state of the window
+     */
+    private static void appendParam( StringBuilder sbParams, String strWindowId, String strState )
+    {
+        sbParams.append( PARAMETER_SEPARATOR ).append( KEY_PREFIX ).append( strWindowId ).append( VALUE_SEPARATOR );
+        PortalURL.appendEncoded( sbParams, strState );
+    }
+
+    /**
+     * Split an encoded state in mode, state and parameters
+     *
+     * @param strState The encoded state
+     * @return the mode, the state and the parameters (empty strings if missing)
+     */
+    private static String[] splitFields( String strState )
+    {
+        String[] fields = new String[] { "", "", "" };
+        int nStart = 0;
+
+        for ( int i = 0; i < ( fields.length - 1 ); i++ )
+        {
+            int nEnd = strState.indexOf( FIELD_SEPARATOR, nStart );
+
+            if ( nEnd < 0 )
+            {
+                fields[i] = strState.substring( nStart );
+
+                return fields;
+            }
+
+            fields[i] = strState.substring( nStart, nEnd );
+            nStart = nEnd + 1;
+        }
+
+        fields[fields.length - 1] = strState.substring( nStart );
+
+        return fields;
+    }
+
+    /**
+     * Decode the render parameters of a window
+     *
+     * @param strParameters The URL encoded parameters
+     * @return the parameters (name, values)
+     * @throws IllegalArgumentException if a parameter isn't correctly encoded
+     */
+    private static Map decodeParameters( String strParameters )
+    {
+        Map mapValues = new HashMap(  );
+
+        for ( StringTokenizer st = new StringTokenizer( strParameters, PARAMETER_SEPARATOR ); st.hasMoreTokens(  ); )
+        {
+            String strParameter = st.nextToken(  );
+            int nSeparator = strParameter.indexOf( VALUE_SEPARATOR );
+
+            if ( nSeparator > 0 )
+            {
+                String strName = decodeValue( strParameter.substring( 0, nSeparator ) );
+                List listValues = (List) mapValues.get( strName );
+
+                if ( listValues == null )
+                {
+                    listValues = new ArrayList(  );
+                    mapValues.put( strName, listValues );
+                }
+
+                listValues.add( decodeValue( strParameter.substring( nSeparator + 1 ) ) );
+            }
+        }
+
+        Map mapParameters = new HashMap(  );
+
+        for ( Iterator it = mapValues.entrySet(  ).iterator(  ); it.hasNext(  ); )
+        {
+            Map.Entry entry = (Map.Entry) it.next(  );
+            List listValues = (List) entry.getValue(  );
+            mapParameters.put( entry.getKey(  ), listValues.toArray( new String[listValues.size(  )] ) );
+        }
+
+        return mapParameters;
+    }
+
+    /**
+     * Decode an URL encoded name or value of a parameter
+     *
+     * @param strValue The URL encoded string
+     * @return the decoded string
+     * @throws IllegalArgumentException if the string isn't correctly encoded
+     */
+    private static String decodeValue( String strValue )
+    {
+        try
+        {
+            return URLDecoder.decode( strValue, PortalURL.URL_ENCODING );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            // UTF-8 is always supported
+            throw new IllegalStateException( e.getMessage(  ) );
+        }
+    }
+}
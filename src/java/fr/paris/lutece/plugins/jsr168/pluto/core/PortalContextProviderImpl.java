@@ -94,7 +94,9 @@ import org.apache.pluto.services.information.PortalContextProvider;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -107,6 +109,17 @@ import javax.portlet.WindowState;
  */
 public class PortalContextProviderImpl implements PortalContextProvider
 {
+    /** standard portlet modes and window states, by name */
+    private static final PortletMode[] STANDARD_MODES = { PortletMode.VIEW, PortletMode.EDIT, PortletMode.HELP };
+    private static final WindowState[] STANDARD_STATES =
+        { WindowState.NORMAL, WindowState.MAXIMIZED, WindowState.MINIMIZED };
+
+    /** supported portlet modes by name (one instance per mode, read once from the configuration) */
+    private static Map _mapSupportedModes;
+
+    /** supported window states by name (one instance per state, read once from the configuration) */
+    private static Map _mapSupportedStates;
+
     /** Portal information */
     private String _strInfo;
 
@@ -182,6 +195,30 @@ public class PortalContextProviderImpl implements PortalContextProvider
         return _strInfo;
     }
 
+    /**
+     * Return the supported portlet mode of a name
+     *
+     * @param strMode The name of the portlet mode
+     * @return the portlet mode (the standard modes are the <code>PortletMode</code>
+     *         constants), or <code>null</code> if the mode isn't supported
+     */
+    public static PortletMode getSupportedPortletMode( String strMode )
+    {
+        return (PortletMode) getSupportedModes(  ).get( strMode );
+    }
+
+    /**
+     * Return the supported window state of a name
+     *
+     * @param strState The name of the window state
+     * @return the window state (the standard states are the <code>WindowState</code>
+     *         constants), or <code>null</code> if the state isn't supported
+     */
+    public static WindowState getSupportedWindowState( String strState )
+    {
+        return (WindowState) getSupportedStates(  ).get( strState );
+    }
+
     /**
      * Return default portlet supported modes
      *
@@ -189,17 +226,7 @@ public class PortalContextProviderImpl implements PortalContextProvider
      */
     private List getDefaultModes(  )
     {
-        List m = new ArrayList(  );
-
-        String[] supportedModes = Config.getParameters(  )
-                                        .getStrings( LutecePlutoConstant.CONFIG_SERVICES_PARAM_SUPPORTED_PORTLETMODE );
-
-        for ( int i = 0; i < supportedModes.length; i++ )
-        {
-            m.add( new PortletMode( supportedModes[i].toString(  ).toLowerCase(  ) ) );
-        }
-
-        return m;
+        return new ArrayList( getSupportedModes(  ).values(  ) );
     }
 
     /**
@@ -209,17 +236,77 @@ public class PortalContextProviderImpl implements PortalContextProvider
      */
     private List getDefaultStates(  )
     {
-        List s = new ArrayList(  );
+        return new ArrayList( getSupportedStates(  ).values(  ) );
+    }
+
+    /**
+     * Return the supported portlet modes (read from the configuration on first use)
+     *
+     * @return the supported portlet modes by name
+     */
+    private static synchronized Map getSupportedModes(  )
+    {
+        if ( _mapSupportedModes == null )
+        {
+            Map mapModes = new LinkedHashMap(  );
+            String[] supportedModes = Config.getParameters(  )
+                                            .getStrings( LutecePlutoConstant.CONFIG_SERVICES_PARAM_SUPPORTED_PORTLETMODE );
+
+            for ( int i = 0; i < supportedModes.length; i++ )
+            {
+                String strMode = supportedModes[i].toString(  ).toLowerCase(  );
+                PortletMode mode = new PortletMode( strMode );
+
+                for ( int j = 0; j < STANDARD_MODES.length; j++ )
+                {
+                    if ( STANDARD_MODES[j].equals( mode ) )
+                    {
+                        mode = STANDARD_MODES[j];
+                    }
+                }
+
+                mapModes.put( strMode, mode );
+            }
+
+            _mapSupportedModes = Collections.unmodifiableMap( mapModes );
+        }
 
-        String[] supportedStates = Config.getParameters(  )
-                                         .getStrings( LutecePlutoConstant.CONFIG_SERVICES_PARAM_SUPPORTED_WINDOWSTATE );
+        return _mapSupportedModes;
+    }
 
-        for ( int i = 0; i < supportedStates.length; i++ )
+    /**
+     * Return the supported window states (read from the configuration on first use)
+     *
+     * @return the supported window states by name
+     */
+    private static synchronized Map getSupportedStates(  )
+    {
+        if ( _mapSupportedStates == null )
         {
-            s.add( new WindowState( supportedStates[i].toString(  ).toLowerCase(  ) ) );
+            Map mapStates = new LinkedHashMap(  );
+            String[] supportedStates = Config.getParameters(  )
+                                             .getStrings( LutecePlutoConstant.CONFIG_SERVICES_PARAM_SUPPORTED_WINDOWSTATE );
+
+            for ( int i = 0; i < supportedStates.length; i++ )
+            {
+                String strState = supportedStates[i].toString(  ).toLowerCase(  );
+                WindowState state = new WindowState( strState );
+
+                for ( int j = 0; j < STANDARD_STATES.length; j++ )
+                {
+                    if ( STANDARD_STATES[j].equals( state ) )
+                    {
+                        state = STANDARD_STATES[j];
+                    }
+                }
+
+                mapStates.put( strState, state );
+            }
+
+            _mapSupportedStates = Collections.unmodifiableMap( mapStates );
         }
 
-        return s;
+        return _mapSupportedStates;
     }
 
     /**
@@ -33,13 +33,20 @@
  */
 package fr.paris.lutece.plugins.jsr168.pluto.core;
 
+import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
 import org.apache.pluto.om.common.ObjectID;
 import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
 
+import java.io.UnsupportedEncodingException;
+
 import java.net.URLEncoder;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.portlet.PortletMode;
 import javax.portlet.WindowState;
@@ -77,6 +84,92 @@ public class PortalURL
      */
     private static final String ACTION = "ac";
 
+    /**
+     * Portlet ID of the window changed by the previous request (request
+     * parameter name): the window is read again from its store
+     */
+    private static final String REFRESH = "rf";
+
+    /**
+     * Parameter names and constant parameters, encoded once
+     */
+    private static final String PORTLET_ID_KEY = PREFIX + PORTLET_ID;
+    private static final String MODE_KEY = PREFIX + MODE;
+    private static final String STATE_KEY = PREFIX + STATE;
+    private static final String ACTION_KEY = PREFIX + ACTION;
+    private static final String ACTION_PARAM = ACTION_KEY + "=1";
+    private static final String REFRESH_KEY = PREFIX + REFRESH;
+
+    /**
+     * Mode and state parameters (key: mode or state, value: URL fragment),
+     * bounded: the custom modes and states are few
+     */
+    private static final ConcurrentMap MODE_STATE_PARAMS = new ConcurrentHashMap(  );
+    private static final int MODE_STATE_PARAMS_MAX_SIZE = 64;
+
+    /**
+     * Characters left unchanged by the URL encoding (as {@link URLEncoder})
+     */
+    private static final boolean[] UNRESERVED = new boolean[128];
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray(  );
+
+    /**
+     * Encoding of the non ASCII characters of the URLs, whatever the platform
+     * (the navigational state is decoded with the same encoding)
+     */
+    static final String URL_ENCODING = "UTF-8";
+
+    /**
+     * URL buffer of the current thread, reused by the URLs of a render
+     */
+    private static final int BUILDER_INITIAL_CAPACITY = 256;
+    private static final int BUILDER_MAX_CAPACITY = 8192;
+    private static final ThreadLocal BUILDER = new ThreadLocal(  )
+        {
+            protected Object initialValue(  )
+            {
+                return new StringBuilder( BUILDER_INITIAL_CAPACITY );
+            }
+        };
+
+    static
+    {
+        for ( char c = 'a'; c <= 'z'; c++ )
+        {
+            UNRESERVED[c] = true;
+            UNRESERVED[Character.toUpperCase( c )] = true;
+        }
+
+        for ( char c = '0'; c <= '9'; c++ )
+        {
+            UNRESERVED[c] = true;
+        }
+
+        UNRESERVED['.'] = true;
+        UNRESERVED['-'] = true;
+        UNRESERVED['*'] = true;
+        UNRESERVED['_'] = true;
+
+        PortletMode[] modes = { PortletMode.VIEW, PortletMode.EDIT, PortletMode.HELP };
+
+        for ( int i = 0; i < modes.length; i++ )
+        {
+            MODE_STATE_PARAMS.put( modes[i], MODE_KEY + "=" + modes[i] );
+        }
+
+        WindowState[] states = { WindowState.NORMAL, WindowState.MAXIMIZED, WindowState.MINIMIZED };
+
+        for ( int i = 0; i < states.length; i++ )
+        {
+            MODE_STATE_PARAMS.put( states[i], STATE_KEY + "=" + states[i] );
+        }
+    }
+
+    /**
+     * Portlet ID targeted by this portal URL
+     */
+    private final String _strPortletId;
+
     /**
      * Indicate if it's a portal action URL
      */
@@ -93,7 +186,14 @@ public class PortalURL
     private final WindowState _windowState;
 
     /**
-     * Construct a PortletURL instance<br>
+     * Portlet ID of the window changed by the previous request
+     */
+    private final String _strRefreshedPortletId;
+
+    /**
+     * Construct a PortletURL instance: the control parameters of the request
+     * are read in one pass (see {@link #getPortalURL(HttpServletRequest)}
+     * for the instance shared by the request)<br>
      *
      * TODO need to extract render parameters?
      *
@@ -101,9 +201,52 @@ public class PortalURL
      */
     public PortalURL( HttpServletRequest request )
     {
+        _strPortletId = request.getParameter( getPortletIdKey(  ) );
         _bAction = extractAction( request );
         _portletMode = extractMode( request );
         _windowState = extractState( request );
+        _strRefreshedPortletId = request.getParameter( REFRESH_KEY );
+    }
+
+    /**
+     * Return the portal URL of a request, decoded on first use and shared by
+     * all the readers of the request
+     *
+     * @param request The HTTP request
+     * @return the portal URL of the request
+     */
+    public static PortalURL getPortalURL( HttpServletRequest request )
+    {
+        PortalURL portalURL = (PortalURL) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PORTAL_URL );
+
+        if ( portalURL == null )
+        {
+            portalURL = new PortalURL( request );
+            request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_PORTAL_URL, portalURL );
+        }
+
+        return portalURL;
+    }
+
+    /**
+     * Return the portlet ID targeted by this URL.
+     *
+     * @return the portlet ID, or <code>null</code> if the URL targets no portlet
+     */
+    public String getPortletId(  )
+    {
+        return _strPortletId;
+    }
+
+    /**
+     * Return the portlet ID of the window changed by the previous request (the
+     * action redirected to this URL)
+     *
+     * @return the portlet ID, or <code>null</code> if no window was changed
+     */
+    public String getRefreshedPortletId(  )
+    {
+        return _strRefreshedPortletId;
     }
 
     /**
@@ -172,135 +315,171 @@ public class PortalURL
     public static String buildParams( ObjectID portletID, boolean bAction, PortletMode portletMode,
         WindowState windowState, Map parameters )
     {
-        StringBuffer buf = new StringBuffer(  );
-        String sep = "";
+        StringBuilder sbParams = new StringBuilder(  );
+        appendParams( sbParams, portletID, bAction, portletMode, windowState, parameters );
 
-        String portletIdParam = buildPortletIDParam( portletID );
+        return sbParams.toString(  );
+    }
 
-        if ( ( portletIdParam != null ) && ( portletIdParam.length(  ) > 0 ) )
+    /**
+     * Append the URL parameters list to an URL (see
+     * {@link #buildParams(ObjectID, boolean, PortletMode, WindowState, Map)})
+     *
+     * @param sbUrl The URL
+     * @param portletID Portlet ID of the portlet target
+     * @param bAction Indicate an action URL (vs a render URL)
+     * @param portletMode Current portlet mode
+     * @param windowState Current portlet window state
+     * @param parameters Map of parameters (may be <code>null</code>)
+     */
+    static void appendParams( StringBuilder sbUrl, ObjectID portletID, boolean bAction, PortletMode portletMode,
+        WindowState windowState, Map parameters )
+    {
+        int nStart = sbUrl.length(  );
+
+        if ( portletID != null )
         {
-            buf.append( sep ).append( portletIdParam );
-            sep = "&";
+            sbUrl.append( PORTLET_ID_KEY ).append( '=' ).append( portletID.toString(  ) );
         }
 
-        String actionParam = buildActionParam( bAction );
-
-        if ( ( actionParam != null ) && ( actionParam.length(  ) > 0 ) )
+        if ( bAction )
         {
-            buf.append( sep ).append( actionParam );
-            sep = "&";
+            appendSeparator( sbUrl, nStart ).append( ACTION_PARAM );
         }
 
-        String modeParam = buildModeParam( portletMode );
-
-        if ( ( modeParam != null ) && ( modeParam.length(  ) > 0 ) )
+        if ( portletMode != null )
         {
-            buf.append( sep ).append( modeParam );
-            sep = "&";
+            appendSeparator( sbUrl, nStart ).append( getModeStateParam( portletMode, MODE_KEY ) );
         }
 
-        String stateParam = buildStateParam( windowState );
-
-        if ( ( stateParam != null ) && ( stateParam.length(  ) > 0 ) )
+        if ( windowState != null )
         {
-            buf.append( sep ).append( stateParam );
-            sep = "&";
+            appendSeparator( sbUrl, nStart ).append( getModeStateParam( windowState, STATE_KEY ) );
         }
 
-        String renderParams = buildParameterParam( parameters );
-
-        if ( ( renderParams != null ) && ( renderParams.length(  ) > 0 ) )
+        if ( parameters != null )
         {
-            buf.append( sep ).append( renderParams );
-            sep = "&";
+            appendParameterParams( sbUrl, parameters, sbUrl.length(  ) > nStart );
         }
-
-        return buf.toString(  );
     }
 
     /**
-     * Extract the porlet ID from an HTTP request
+     * Append the parameter indicating the window changed by the request (see
+     * {@link #getRefreshedPortletId()})
      *
-     * @param servletRequest The HTTP request
-     * @return the porlet ID defined by an HTTP request
+     * @param sbUrl The URL
+     * @param portletID Portlet ID of the window changed
      */
-    public static String extractPortletId( HttpServletRequest servletRequest )
+    static void appendRefreshParam( StringBuilder sbUrl, ObjectID portletID )
     {
-        return servletRequest.getParameter( getPortletIdKey(  ) );
+        sbUrl.append( '&' ).append( REFRESH_KEY ).append( '=' ).append( portletID.toString(  ) );
     }
 
     /**
-     * Indicate if an HTTP request is an action
+     * Return the URL buffer of the current thread, emptied. The buffer must be
+     * released (converted to a string) before any other use in the thread.
      *
-     * @param servletRequest The HTTP request
-     * @return <code>true</code> if the HTTP request is a portlet action request
+     * @return the URL buffer
      */
-    public static boolean isActionURL( HttpServletRequest servletRequest )
+    static StringBuilder getBuilder(  )
     {
-        final String actionParam = servletRequest.getParameter( getActionKey(  ) );
+        StringBuilder sbUrl = (StringBuilder) BUILDER.get(  );
 
-        return ( actionParam != null );
+        if ( sbUrl.capacity(  ) > BUILDER_MAX_CAPACITY )
+        {
+            sbUrl = new StringBuilder( BUILDER_INITIAL_CAPACITY );
+            BUILDER.set( sbUrl );
+        }
+
+        sbUrl.setLength( 0 );
+
+        return sbUrl;
     }
 
     /**
-     * Build URL parameters fragment that contain the &quot;portlet ID&quot;
+     * Encode a string for an URL, as <code>URLEncoder</code> (the ASCII
+     * strings, most of the values, are encoded without intermediate objects)
      *
-     * @param portletID Portlet ID of the portlet target
-     * @return The URL fragment that contain portlet ID
+     * @param sbUrl The URL
+     * @param strValue The string to encode
      */
-    private static String buildPortletIDParam( ObjectID portletID )
+    static void appendEncoded( StringBuilder sbUrl, String strValue )
     {
-        if ( portletID != null )
+        int nLength = strValue.length(  );
+
+        for ( int i = 0; i < nLength; i++ )
         {
-            return getPortletIdKey(  ) + "=" + portletID;
-        }
+            char c = strValue.charAt( i );
 
-        return null;
+            if ( c >= UNRESERVED.length )
+            {
+                appendEncodedNonAscii( sbUrl, strValue.substring( i ) );
+
+                return;
+            }
+
+            if ( UNRESERVED[c] )
+            {
+                sbUrl.append( c );
+            }
+            else if ( c == ' ' )
+            {
+                sbUrl.append( '+' );
+            }
+            else
+            {
+                sbUrl.append( '%' ).append( HEX_DIGITS[c >> 4] ).append( HEX_DIGITS[c & 0xF] );
+            }
+        }
     }
 
     /**
-     * Build URL parameters fragment that contain the indication of &quot;action portlet request&quot;
+     * Encode a string for an URL
      *
-     * @param bAction Indicate an action URL (vs a render URL)
-     * @return The URL fragment that contain action identification
+     * @param strValue The string to encode
+     * @return the encoded string
      */
-    private static String buildActionParam( final boolean bAction )
+    static String encode( String strValue )
     {
-        if ( bAction )
-        {
-            return getActionKey(  ) + "=" + 1;
-        }
+        StringBuilder sbValue = new StringBuilder( strValue.length(  ) + 16 );
+        appendEncoded( sbValue, strValue );
 
-        return null;
+        return sbValue.toString(  );
     }
 
     /**
-     * Indicate if an HTTP request is an action portlet request
+     * Extract the porlet ID from an HTTP request
      *
      * @param servletRequest The HTTP request
-     * @return <code>true</code> if the request is an action portlet request
+     * @return the porlet ID defined by an HTTP request
      */
-    private static boolean extractAction( HttpServletRequest servletRequest )
+    public static String extractPortletId( HttpServletRequest servletRequest )
     {
-        String actionStr = servletRequest.getParameter( getActionKey(  ) );
+        return getPortalURL( servletRequest ).getPortletId(  );
+    }
 
-        return ( actionStr != null );
+    /**
+     * Indicate if an HTTP request is an action
+     *
+     * @param servletRequest The HTTP request
+     * @return <code>true</code> if the HTTP request is a portlet action request
+     */
+    public static boolean isActionURL( HttpServletRequest servletRequest )
+    {
+        return getPortalURL( servletRequest ).isAction(  );
     }
 
     /**
-     * Build URL parameters fragment that contain the &quot;portlet mode&quot;
+     * Indicate if an HTTP request is an action portlet request
      *
-     * @param portletMode Portlet mode to encode
-     * @return The URL fragment that contain the encoded portlet mode
+     * @param servletRequest The HTTP request
+     * @return <code>true</code> if the request is an action portlet request
      */
-    private static String buildModeParam( PortletMode portletMode )
+    private static boolean extractAction( HttpServletRequest servletRequest )
     {
-        if ( portletMode != null )
-        {
-            return getModeKey(  ) + "=" + portletMode;
-        }
+        String actionStr = servletRequest.getParameter( getActionKey(  ) );
 
-        return null;
+        return ( actionStr != null );
     }
 
     /**
@@ -314,28 +493,45 @@ public class PortalURL
     {
         String mode = servletRequest.getParameter( getModeKey(  ) );
 
-        if ( mode != null )
+        if ( mode == null )
         {
-            return new PortletMode( mode );
+            return null;
         }
 
-        return null;
+        // Only the supported modes are accepted (no instance per request)
+        PortletMode portletMode = PortalContextProviderImpl.getSupportedPortletMode( mode );
+
+        if ( portletMode == null )
+        {
+            AppLogService.debug( "JSR168 / unsupported portlet mode ignored: " + mode );
+        }
+
+        return portletMode;
     }
 
     /**
-    * Build URL parameters fragment that contain the &quot;window state&quot;
-    *
-    * @param windowState Portlet mode to encode
-    * @return The URL fragment that contain the encoded window state
+     * Return the URL fragment of a portlet mode or a window state
+     *
+     * @param modeOrState The portlet mode or the window state
+     * @param strKey The parameter name
+     * @return the URL fragment (<code>key=value</code>)
      */
-    private static String buildStateParam( WindowState windowState )
+    private static String getModeStateParam( Object modeOrState, String strKey )
     {
-        if ( windowState != null )
+        String strParam = (String) MODE_STATE_PARAMS.get( modeOrState );
+
+        if ( strParam == null )
         {
-            return getStateKey(  ) + "=" + windowState;
+            // Custom mode or state: the name is encoded as any parameter value
+            strParam = strKey + "=" + encode( modeOrState.toString(  ) );
+
+            if ( MODE_STATE_PARAMS.size(  ) < MODE_STATE_PARAMS_MAX_SIZE )
+            {
+                MODE_STATE_PARAMS.putIfAbsent( modeOrState, strParam );
+            }
         }
 
-        return null;
+        return strParam;
     }
 
     /**
@@ -349,12 +545,20 @@ public class PortalURL
     {
         String state = servletRequest.getParameter( getStateKey(  ) );
 
-        if ( state != null )
+        if ( state == null )
+        {
+            return null;
+        }
+
+        // Only the supported states are accepted (no instance per request)
+        WindowState windowState = PortalContextProviderImpl.getSupportedWindowState( state );
+
+        if ( windowState == null )
         {
-            return new WindowState( state );
+            AppLogService.debug( "JSR168 / unsupported window state ignored: " + state );
         }
 
-        return null;
+        return windowState;
     }
 
     /**
@@ -363,10 +567,25 @@ public class PortalURL
      * @param mapRenderParams The list of parameters
      * @return URL of parameters list
      */
-    private static String buildParameterParam( Map mapRenderParams )
+    static String buildParameterParam( Map mapRenderParams )
     {
-        String sep = "";
-        StringBuffer buf = new StringBuffer(  );
+        StringBuilder sbParams = new StringBuilder(  );
+        appendParameterParams( sbParams, mapRenderParams, false );
+
+        return sbParams.toString(  );
+    }
+
+    /**
+     * Append the URL parameters for parameters contained in <code>renderParams</code>
+     *
+     * @param sbUrl The URL
+     * @param mapRenderParams The list of parameters
+     * @param bSeparator <code>true</code> if the first parameter must be
+     *        preceded by a separator
+     */
+    private static void appendParameterParams( StringBuilder sbUrl, Map mapRenderParams, boolean bSeparator )
+    {
+        boolean bSep = bSeparator;
         Iterator entriesIt = mapRenderParams.entrySet(  ).iterator(  );
 
         while ( entriesIt.hasNext(  ) )
@@ -389,15 +608,11 @@ public class PortalURL
                 continue;
             }
 
-            final String encKey = URLEncoder.encode( (String) key );
-
             // TODO key is encoded... reading the key will be safe to decode the key (JSR 168 PLT.7.1) 
             if ( val instanceof String )
             {
-                String vals = (String) val;
-                String encVal = URLEncoder.encode( (String) vals );
-                buf.append( sep ).append( encKey ).append( '=' ).append( encVal );
-                sep = "&";
+                appendParameter( sbUrl, (String) key, (String) val, bSep );
+                bSep = true;
             }
             else if ( val instanceof String[] )
             {
@@ -405,14 +620,71 @@ public class PortalURL
 
                 for ( int i = 0; i < vals.length; ++i )
                 {
-                    String encVal = URLEncoder.encode( (String) vals[i] );
-                    buf.append( sep ).append( encKey ).append( '=' ).append( encVal );
-                    sep = "&";
+                    if ( vals[i] != null )
+                    {
+                        appendParameter( sbUrl, (String) key, vals[i], bSep );
+                        bSep = true;
+                    }
                 }
             }
         }
+    }
+
+    /**
+     * Append an encoded parameter to an URL
+     *
+     * @param sbUrl The URL
+     * @param strKey The parameter name
+     * @param strValue The parameter value
+     * @param bSeparator <code>true</code> if the parameter must be preceded by a separator
+     */
+    private static void appendParameter( StringBuilder sbUrl, String strKey, String strValue, boolean bSeparator )
+    {
+        if ( bSeparator )
+        {
+            sbUrl.append( '&' );
+        }
+
+        appendEncoded( sbUrl, strKey );
+        sbUrl.append( '=' );
+        appendEncoded( sbUrl, strValue );
+    }
+
+    /**
+     * Append a parameter separator, unless the parameter is the first one
+     *
+     * @param sbUrl The URL
+     * @param nStart The start of the parameters in the URL
+     * @return the URL
+     */
+    private static StringBuilder appendSeparator( StringBuilder sbUrl, int nStart )
+    {
+        if ( sbUrl.length(  ) > nStart )
+        {
+            sbUrl.append( '&' );
+        }
+
+        return sbUrl;
+    }
 
-        return buf.toString(  );
+    /**
+     * Encode a string containing non ASCII characters, with the encoding of
+     * the URLs
+     *
+     * @param sbUrl The URL
+     * @param strValue The string to encode
+     */
+    private static void appendEncodedNonAscii( StringBuilder sbUrl, String strValue )
+    {
+        try
+        {
+            sbUrl.append( URLEncoder.encode( strValue, URL_ENCODING ) );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            // UTF-8 is always supported
+            throw new IllegalStateException( e.getMessage(  ) );
+        }
     }
 
     /**
@@ -422,7 +694,7 @@ public class PortalURL
      */
     private static String getActionKey(  )
     {
-        return PREFIX + ACTION;
+        return ACTION_KEY;
     }
 
     /**
@@ -432,7 +704,7 @@ public class PortalURL
      */
     private static String getPortletIdKey(  )
     {
-        return PREFIX + PORTLET_ID;
+        return PORTLET_ID_KEY;
     }
 
     /**
@@ -442,7 +714,7 @@ public class PortalURL
      */
     private static String getModeKey(  )
     {
-        return PREFIX + MODE;
+        return MODE_KEY;
     }
 
     /**
@@ -452,6 +724,6 @@ public class PortalURL
      */
     private static String getStateKey(  )
     {
-        return PREFIX + STATE;
+        return STATE_KEY;
     }
 }
@@ -34,12 +34,12 @@
 package fr.paris.lutece.plugins.jsr168.pluto.core;
 
 import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+import fr.paris.lutece.plugins.jsr168.pluto.store.WindowStateStoreService;
 import fr.paris.lutece.portal.web.constants.Parameters;
 
 import org.apache.pluto.om.common.ObjectID;
 import org.apache.pluto.om.window.PortletWindow;
 import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
-import org.apache.pluto.portalImpl.services.config.Config;
 import org.apache.pluto.services.information.PortletURLProvider;
 
 import java.util.Collections;
@@ -59,43 +59,8 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class PortletURLProviderImpl implements PortletURLProvider
 {
-    private static final String _hostNameHTTP;
-    private static final String _hostNameHTTPS;
-
-    static
-    {
-        final String hostName = Config.getParameters(  )
-                                      .getString( LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_NAME,
-                LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_NAME_DEFAULT );
-        final String hostPortHTTP = Config.getParameters(  )
-                                          .getString( LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_PORT_HTTP,
-                LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_PORT_HTTP_DEFAULT );
-        final String hostPortHTTPS = Config.getParameters(  )
-                                           .getString( LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_PORT_HTTPS,
-                LutecePlutoConstant.CONFIG_SERVICES_PARAM_HOST_PORT_HTTPS_DEFAULT );
-
-        final StringBuffer hostHTTP = new StringBuffer( "http://" );
-        hostHTTP.append( hostName );
-
-        if ( !"80".equals( hostPortHTTP ) )
-        {
-            hostHTTP.append( ':' );
-            hostHTTP.append( hostPortHTTP );
-        }
-
-        _hostNameHTTP = hostHTTP.toString(  );
-
-        final StringBuffer hostHTTPS = new StringBuffer( "https://" );
-        hostHTTPS.append( hostName );
-
-        if ( !"443".equals( hostPortHTTPS ) )
-        {
-            hostHTTPS.append( ':' );
-            hostHTTPS.append( hostPortHTTPS );
-        }
-
-        _hostNameHTTPS = hostHTTPS.toString(  );
-    }
+    // Index of the page ID parameter in the URL prefixes of a request (after the 4 prefixes)
+    private static final int PAGE_ID_PARAM_INDEX = 4;
 
     private final HttpServletRequest _request;
     private final DynamicInformationProviderImpl _provider;
@@ -194,11 +159,18 @@ public class PortletURLProviderImpl implements PortletURLProvider
          */
     public String toString(  )
     {
-        StringBuffer urlBuf = new StringBuffer(  );
+        if ( NavigationalState.isEnabled(  ) && !_bAction )
+        {
+            // Stateless render URL: the page itself, with the new state of the window
+            PortletMode mode = ( _mode != null ) ? _mode : _portletWindow.getPortletMode(  );
+            WindowState state = ( _state != null ) ? _state : _portletWindow.getWindowState(  );
+            Map parameters = ( _parameters != null ) ? _parameters : Collections.EMPTY_MAP;
 
-        urlBuf.append( _secure ? _hostNameHTTPS : _hostNameHTTP );
-        urlBuf.append( _request.getContextPath(  ) );
-        urlBuf.append( LutecePlutoConstant.URL_JSR168_ACTION );
+            return getStatelessPortalURL( _request, PortalEnvironment.getPortalEnvironment( _request ).getResponse(  ),
+                _portletWindow.getId(  ).toString(  ), mode, state, parameters, _secure );
+        }
+
+        StringBuilder urlBuf = startURL( _request, _secure, true );
 
         // Vestige du portail de Pluto: les parametres sont
         // conservés dans la session (et plus dans le PathInfo),
@@ -208,24 +180,19 @@ public class PortletURLProviderImpl implements PortletURLProvider
         {
         }
         */
-        String params = PortalURL.buildParams( _portletWindow.getId(  ), _bAction, _mode, _state, _parameters );
-
-        if ( ( params != null ) && ( params.length(  ) > 0 ) )
-        {
-            urlBuf.append( params );
-        }
+        PortalURL.appendParams( urlBuf, _portletWindow.getId(  ), _bAction, _mode, _state, _parameters );
 
         // /////////////////////////////////////////////////////
         // 
         //    Lutece parameter's
         // 
         // /////////////////////////////////////////////////////        
-        if ( _request.getParameter( Parameters.PAGE_ID ) != null )
+        appendPageIdParam( urlBuf, _request, true );
+
+        if ( NavigationalState.isEnabled(  ) )
         {
-            urlBuf.append( '&' );
-            urlBuf.append( Parameters.PAGE_ID );
-            urlBuf.append( '=' );
-            urlBuf.append( _request.getParameter( Parameters.PAGE_ID ) );
+            // The action is processed with the navigational state of the page
+            urlBuf.append( NavigationalState.getNavigationalState( _request ).buildParams( null, null, null, null ) );
         }
 
         PortalEnvironment environment = PortalEnvironment.getPortalEnvironment( _request );
@@ -233,17 +200,6 @@ public class PortletURLProviderImpl implements PortletURLProvider
         return environment.getResponse(  ).encodeURL( urlBuf.toString(  ) );
     }
 
-    /**
-     * Return the URL base for all URL construction (protocol and server name,
-     * for example <code>&quot;http://localhost/lutece&quot;</code>)
-     *
-     * @return the URL base for all URL construction
-     */
-    static String getBaseURLexcludeContext(  )
-    {
-        return _hostNameHTTP;
-    }
-
     /**
      * Return an URL string for redirect user to Lutece portal (used after action request for
      * process render)
@@ -254,25 +210,42 @@ public class PortletURLProviderImpl implements PortletURLProvider
      */
     public static String getRedirectPortalURL( HttpServletRequest request, final HttpServletResponse response )
     {
-        StringBuffer urlBuf = new StringBuffer(  );
+        return getRedirectPortalURL( request, response, null );
+    }
+
+    /**
+     * Return the URL of the portal page after an action. In stateless mode,
+     * the URL contains the navigational state of the page, with the state of
+     * the portlet window after the action.
+     *
+     * @param request The HTTP request
+     * @param response The HTTP response
+     * @param portletWindow The portlet window of the action (or <code>null</code>)
+     * @return the URL of the portal page
+     */
+    public static String getRedirectPortalURL( HttpServletRequest request, final HttpServletResponse response,
+        PortletWindowImpl portletWindow )
+    {
+        if ( NavigationalState.isEnabled(  ) && ( portletWindow != null ) )
+        {
+            return getStatelessPortalURL( request, response, portletWindow.getId(  ).toString(  ),
+                portletWindow.getPortletMode(  ), portletWindow.getWindowState(  ),
+                portletWindow.getRenderParameters(  ), false );
+        }
 
-        urlBuf.append( _hostNameHTTP );
-        urlBuf.append( request.getContextPath(  ) );
-        urlBuf.append( LutecePlutoConstant.URL_LUTECE_PORTAL );
+        StringBuilder urlBuf = startURL( request, false, false );
 
         // /////////////////////////////////////////////////////
         // 
         //    Lutece parameter's
         // 
         // /////////////////////////////////////////////////////        
-        String pageIdParam = request.getParameter( Parameters.PAGE_ID );
+        appendPageIdParam( urlBuf, request, true );
 
-        if ( pageIdParam != null )
+        if ( ( portletWindow != null ) && WindowStateStoreService.getStore(  ).isRefreshedAfterAction(  ) )
         {
-            urlBuf.append( '&' );
-            urlBuf.append( Parameters.PAGE_ID );
-            urlBuf.append( '=' );
-            urlBuf.append( pageIdParam );
+            // The window is read again by the next request, whatever the node
+            PortalURL.appendRefreshParam( urlBuf, portletWindow.getId(  ) );
         }
 
         return response.encodeURL( urlBuf.toString(  ) );
@@ -291,34 +264,162 @@ public class PortletURLProviderImpl implements PortletURLProvider
     public static String getRenderURL( HttpServletRequest request, HttpServletResponse response, PortletMode mode,
         WindowState state, ObjectID portletID )
     {
-        StringBuffer urlBuf = new StringBuffer(  );
-
-        urlBuf.append( _hostNameHTTP );
-        urlBuf.append( request.getContextPath(  ) );
-        urlBuf.append( LutecePlutoConstant.URL_JSR168_ACTION );
-
-        String params = PortalURL.buildParams( portletID, false, mode, state, Collections.EMPTY_MAP );
-
-        if ( ( params != null ) && ( params.length(  ) > 0 ) )
+        if ( NavigationalState.isEnabled(  ) )
         {
-            urlBuf.append( params );
+            // The render parameters of the window are kept, as in the session
+            PortletWindowImpl portletWindow = NavigationalState.getNavigationalState( request )
+                                                               .getWindow( portletID.toString(  ) );
+
+            return getStatelessPortalURL( request, response, portletID.toString(  ),
+                ( mode != null ) ? mode : portletWindow.getPortletMode(  ),
+                ( state != null ) ? state : portletWindow.getWindowState(  ), portletWindow.getRenderParameters(  ),
+                false );
         }
 
+        StringBuilder urlBuf = startURL( request, false, true );
+
+        PortalURL.appendParams( urlBuf, portletID, false, mode, state, null );
+
         // /////////////////////////////////////////////////////
         // 
         //    Parametre propre à Lutece
         // 
         // /////////////////////////////////////////////////////
-        String pageIdParam = request.getParameter( Parameters.PAGE_ID );
+        appendPageIdParam( urlBuf, request, true );
+
+        return response.encodeURL( urlBuf.toString(  ) );
+    }
 
-        if ( pageIdParam != null )
+    /**
+     * Return a render URL to a new portlet mode or window state, with the URL
+     * parameters of the mode or state already computed (see
+     * {@link PortalURL#buildParams(ObjectID, boolean, PortletMode, WindowState, Map)}):
+     * only the prefix of the current request and the portlet ID are added
+     *
+     * @param request Current HTTP request
+     * @param response Current HTTP response
+     * @param mode Portlet mode for URL
+     * @param state Window state for URL
+     * @param portletID Portlet ID
+     * @param strModeStateParams URL parameters of the mode and state
+     * @return an URL string making a render request
+     */
+    public static String getRenderURL( HttpServletRequest request, HttpServletResponse response, PortletMode mode,
+        WindowState state, ObjectID portletID, String strModeStateParams )
+    {
+        if ( NavigationalState.isEnabled(  ) )
         {
-            urlBuf.append( '&' );
-            urlBuf.append( Parameters.PAGE_ID );
-            urlBuf.append( '=' );
-            urlBuf.append( pageIdParam );
+            // The URL holds the state of all the windows of the page
+            return getRenderURL( request, response, mode, state, portletID );
         }
 
+        StringBuilder urlBuf = startURL( request, false, true );
+
+        PortalURL.appendParams( urlBuf, portletID, false, null, null, null );
+        urlBuf.append( '&' ).append( strModeStateParams );
+        appendPageIdParam( urlBuf, request, true );
+
+        return response.encodeURL( urlBuf.toString(  ) );
+    }
+
+    /**
+     * Build the URL of the portal page with the navigational state of the
+     * page, and a new state for a portlet window (stateless mode)
+     *
+     * @param request The HTTP request
+     * @param response The HTTP response
+     * @param strWindowId The window ID
+     * @param mode The new portlet mode of the window
+     * @param state The new window state of the window
+     * @param parameters The new render parameters of the window
+     * @param bSecure <code>true</code> for an HTTPS URL
+     * @return the URL of the portal page
+     */
+    private static String getStatelessPortalURL( HttpServletRequest request, HttpServletResponse response,
+        String strWindowId, PortletMode mode, WindowState state, Map parameters, boolean bSecure )
+    {
+        String strNavigationalParams = NavigationalState.getNavigationalState( request )
+                                                        .buildParams( strWindowId, mode, state, parameters );
+        StringBuilder urlBuf = startURL( request, bSecure, false );
+
+        appendPageIdParam( urlBuf, request, false );
+        urlBuf.append( strNavigationalParams );
+
         return response.encodeURL( urlBuf.toString(  ) );
     }
+
+    /**
+     * Start an URL in the URL buffer of the current thread, with the prefix
+     * (protocol, host, context and JSP) computed once per request
+     *
+     * @param request The HTTP request
+     * @param bSecure <code>true</code> for an HTTPS URL
+     * @param bAction <code>true</code> for the action JSP, <code>false</code> for the portal JSP
+     * @return the URL buffer, to convert to a string before any other URL is built
+     */
+    private static StringBuilder startURL( HttpServletRequest request, boolean bSecure, boolean bAction )
+    {
+        String[] prefixes = getURLPrefixes( request );
+        int nIndex = ( bSecure ? 1 : 0 ) + ( bAction ? 2 : 0 );
+        String strPrefix = prefixes[nIndex];
+
+        if ( strPrefix == null )
+        {
+            strPrefix = BaseURLResolver.getBaseURL( request, bSecure ) + request.getContextPath(  ) +
+                ( bAction ? LutecePlutoConstant.URL_JSR168_ACTION : LutecePlutoConstant.URL_LUTECE_PORTAL );
+            prefixes[nIndex] = strPrefix;
+        }
+
+        return PortalURL.getBuilder(  ).append( strPrefix );
+    }
+
+    /**
+     * Append the Lutece page ID parameter of the current request, if any
+     *
+     * @param urlBuf The URL
+     * @param request The HTTP request
+     * @param bSeparator <code>true</code> if the parameter must be preceded by a separator
+     */
+    private static void appendPageIdParam( StringBuilder urlBuf, HttpServletRequest request, boolean bSeparator )
+    {
+        String[] prefixes = getURLPrefixes( request );
+        String strPageIdParam = prefixes[PAGE_ID_PARAM_INDEX];
+
+        if ( strPageIdParam == null )
+        {
+            String strPageId = request.getParameter( Parameters.PAGE_ID );
+            strPageIdParam = ( strPageId != null ) ? ( Parameters.PAGE_ID + "=" + strPageId ) : "";
+            prefixes[PAGE_ID_PARAM_INDEX] = strPageIdParam;
+        }
+
+        if ( strPageIdParam.length(  ) > 0 )
+        {
+            if ( bSeparator )
+            {
+                urlBuf.append( '&' );
+            }
+
+            urlBuf.append( strPageIdParam );
+        }
+    }
+
+    /**
+     * Return the URL prefixes of the current request: HTTP and HTTPS, portal
+     * and action JSP, then the page ID parameter (computed on first use)
+     *
+     * @param request The HTTP request
+     * @return the URL prefixes
+     */
+    private static String[] getURLPrefixes( HttpServletRequest request )
+    {
+        String[] prefixes = (String[]) request.getAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_URL_PREFIXES );
+
+        if ( prefixes == null )
+        {
+            prefixes = new String[PAGE_ID_PARAM_INDEX + 1];
+            request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_URL_PREFIXES, prefixes );
+        }
+
+        return prefixes;
+    }
 }
@@ -114,7 +114,7 @@ public class ResourceURLProviderImpl implements ResourceURLProvider
     ResourceURLProviderImpl( DynamicInformationProviderImpl provider, PortletWindow portletWindow )
     {
         _portletWindow = portletWindow;
-        _strBase = PortletURLProviderImpl.getBaseURLexcludeContext(  );
+        _strBase = BaseURLResolver.getBaseURL( provider.getRequest(  ), false );
     }
 
     /**
@@ -140,6 +140,12 @@ public class ResourceURLProviderImpl implements ResourceURLProvider
     {
         URL url = null;
 
+        // Relative URL (relative host mode)
+        if ( _strUrl.startsWith( "/" ) )
+        {
+            return _strUrl;
+        }
+
         if ( !"".equals( _strUrl ) )
         {
             try
@@ -33,6 +33,7 @@
  */
 package fr.paris.lutece.plugins.jsr168.pluto.services.portletdefinitionregistry;
 
+import fr.paris.lutece.plugins.jsr168.pluto.Buttons;
 import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
 
 import org.apache.pluto.om.common.ObjectID;
@@ -243,12 +244,15 @@ public class PortletDefinitionRegistryServiceFileImpl extends PortletDefinitionR
     }
 
     /**
-     * Find all portlet definition from <code>portlet.xml</code> descriptors.
+     * Find all portlet definition from <code>portlet.xml</code> descriptors,
+     * and compute their title bar buttons.
      */
     private void fill(  )
     {
         Iterator iterator = _registry.iterator(  );
 
+        Buttons.reset(  );
+
         while ( iterator.hasNext(  ) )
         {
             PortletApplicationDefinition papp = (PortletApplicationDefinition) iterator.next(  );
@@ -260,6 +264,7 @@ public class PortletDefinitionRegistryServiceFileImpl extends PortletDefinitionR
             {
                 PortletDefinition portlet = (PortletDefinition) portlets.next(  );
                 _mapPortletsKeyObjectId.put( portlet.getId(  ), portlet );
+                Buttons.prepare( portlet );
             }
         }
     }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.services.property;
+
+import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+
+import org.apache.pluto.om.window.PortletWindow;
+import org.apache.pluto.services.property.PropertyManagerService;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.portlet.RenderResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Lutece/Pluto implementation of {@link org.apache.pluto.services.property.PropertyManagerService}.<br>
+ *
+ * Only the expiration cache property set by a portlet at render time
+ * (<code>RenderResponse.EXPIRATION_CACHE</code>) is kept: it is stored
+ * in the request for the render cache of
+ * {@link fr.paris.lutece.plugins.jsr168.pluto.LuteceToPlutoConnector}.
+ */
+public class PropertyManagerServiceImpl implements PropertyManagerService
+{
+    /**
+     * @see org.apache.pluto.services.property.PropertyManagerService#setResponseProperties(org.apache.pluto.om.window.PortletWindow, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, java.util.Map)
+     */
+    public void setResponseProperties( PortletWindow window, HttpServletRequest request, HttpServletResponse response,
+        Map properties )
+    {
+        String[] values = (String[]) properties.get( RenderResponse.EXPIRATION_CACHE );
+
+        if ( ( values != null ) && ( values.length > 0 ) )
+        {
+            request.setAttribute( LutecePlutoConstant.LUTECEPLUTO_REQUEST_EXPIRATION_CACHE + window.getId(  ),
+                values[0] );
+        }
+    }
+
+    /**
+     * @see org.apache.pluto.services.property.PropertyManagerService#getRequestProperties(org.apache.pluto.om.window.PortletWindow, javax.servlet.http.HttpServletRequest)
+     */
+    public Map getRequestProperties( PortletWindow window, HttpServletRequest request )
+    {
+        return Collections.EMPTY_MAP;
+    }
+}
@@ -0,0 +1,743 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+import java.security.Principal;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+
+/**
+ * Snapshot of an HTTP request used to render a portlet outside of the
+ * request thread.<br>
+ *
+ * Everything a render reads (request line, headers, locales, parameters,
+ * attributes, cookies, user and session) is copied once per page, in the
+ * request thread. The snapshot never calls the original request, which the
+ * servlet container recycles at the end of the request while a late render
+ * may still be running.<br>
+ *
+ * Each render uses its own view of the page snapshot
+ * ({@link #RequestSnapshot(RequestSnapshot)}): the copied values are shared,
+ * the attributes are copied, so that portlets rendered in parallel don't
+ * share (and overwrite) the attributes set by the portlet container.<br>
+ *
+ * No session is created from a snapshot: servlet containers don't support
+ * session creation outside of the request thread, once the response may be
+ * committed.
+ */
+public class RequestSnapshot extends HttpServletRequestWrapper
+{
+    private final RequestValues _values;
+
+    /**
+     * Build the snapshot of the request
+     *
+     * @param request The original HTTP request (must be called in the request thread)
+     * @param context The servlet context (request dispatchers)
+     * @param collectionRoles The roles the renders may check (<code>isUserInRole</code>)
+     */
+    public RequestSnapshot( HttpServletRequest request, ServletContext context, Collection collectionRoles )
+    {
+        this( new RequestValues( request, context, collectionRoles ) );
+    }
+
+    /**
+     * Build the view of a page snapshot for a render
+     *
+     * @param snapshot The page snapshot
+     */
+    public RequestSnapshot( RequestSnapshot snapshot )
+    {
+        this( snapshot._values );
+    }
+
+    /**
+     * Build a snapshot from the copied values
+     *
+     * @param values The copied values
+     */
+    private RequestSnapshot( RequestValues values )
+    {
+        super( (HttpServletRequest) SnapshotUtil.newDetachedObject( HttpServletRequest.class,
+                new DetachedRequest( values ) ) );
+        _values = values;
+    }
+
+    /**
+     * Values of the request copied in the request thread
+     */
+    private static final class RequestValues
+    {
+        private static final String[] DATE_FORMATS =
+            {
+                "EEE, dd MMM yyyy HH:mm:ss zzz", "EEEEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMMM d HH:mm:ss yyyy"
+            };
+        private final ServletContext _context;
+        private final Map _mapAttributes;
+        private final Map _mapParameters;
+        private final List _listHeaderNames;
+        private final Map _mapHeaders;
+        private final List _listLocales;
+        private final Cookie[] _cookies;
+        private final Set _setRoles;
+        private final HttpSession _session;
+        private final String _strRequestedSessionId;
+        private final boolean _bRequestedSessionIdValid;
+        private final boolean _bRequestedSessionIdFromCookie;
+        private final boolean _bRequestedSessionIdFromURL;
+        private final Principal _userPrincipal;
+        private final String _strRemoteUser;
+        private final String _strAuthType;
+        private final String _strMethod;
+        private final String _strProtocol;
+        private final String _strScheme;
+        private final boolean _bSecure;
+        private final String _strServerName;
+        private final int _nServerPort;
+        private final String _strContextPath;
+        private final String _strServletPath;
+        private final String _strPathInfo;
+        private final String _strPathTranslated;
+        private final String _strQueryString;
+        private final String _strRequestURI;
+        private final String _strRequestURL;
+        private final String _strCharacterEncoding;
+        private final String _strContentType;
+        private final int _nContentLength;
+        private final String _strRemoteAddr;
+        private final String _strRemoteHost;
+        private final int _nRemotePort;
+        private final String _strLocalAddr;
+        private final String _strLocalName;
+        private final int _nLocalPort;
+
+        /**
+         * Copy the values of a request
+         *
+         * @param request The original HTTP request
+         * @param context The servlet context
+         * @param collectionRoles The roles to check
+         */
+        RequestValues( HttpServletRequest request, ServletContext context, Collection collectionRoles )
+        {
+            _context = context;
+
+            Map mapAttributes = new HashMap(  );
+
+            for ( Enumeration names = request.getAttributeNames(  ); names.hasMoreElements(  ); )
+            {
+                String strName = (String) names.nextElement(  );
+                mapAttributes.put( strName, request.getAttribute( strName ) );
+            }
+
+            _mapAttributes = Collections.unmodifiableMap( mapAttributes );
+
+            // Parameters are parsed now, in the request thread
+            _mapParameters = Collections.unmodifiableMap( new HashMap( request.getParameterMap(  ) ) );
+
+            List listHeaderNames = new ArrayList(  );
+            Map mapHeaders = new HashMap(  );
+
+            for ( Enumeration names = request.getHeaderNames(  ); ( names != null ) && names.hasMoreElements(  ); )
+            {
+                String strName = (String) names.nextElement(  );
+                List listValues = new ArrayList(  );
+
+                for ( Enumeration values = request.getHeaders( strName ); values.hasMoreElements(  ); )
+                {
+                    listValues.add( values.nextElement(  ) );
+                }
+
+                listHeaderNames.add( strName );
+                mapHeaders.put( strName.toLowerCase( Locale.ENGLISH ), Collections.unmodifiableList( listValues ) );
+            }
+
+            _listHeaderNames = Collections.unmodifiableList( listHeaderNames );
+            _mapHeaders = mapHeaders;
+
+            List listLocales = new ArrayList(  );
+
+            for ( Enumeration locales = request.getLocales(  ); locales.hasMoreElements(  ); )
+            {
+                listLocales.add( locales.nextElement(  ) );
+            }
+
+            _listLocales = Collections.unmodifiableList( listLocales );
+
+            Cookie[] cookies = request.getCookies(  );
+            _cookies = ( cookies != null ) ? (Cookie[]) cookies.clone(  ) : null;
+
+            Set setRoles = new HashSet(  );
+
+            for ( Iterator it = collectionRoles.iterator(  ); it.hasNext(  ); )
+            {
+                String strRole = (String) it.next(  );
+
+                if ( request.isUserInRole( strRole ) )
+                {
+                    setRoles.add( strRole );
+                }
+            }
+
+            _setRoles = setRoles;
+            _session = request.getSession( false );
+            _strRequestedSessionId = request.getRequestedSessionId(  );
+            _bRequestedSessionIdValid = request.isRequestedSessionIdValid(  );
+            _bRequestedSessionIdFromCookie = request.isRequestedSessionIdFromCookie(  );
+            _bRequestedSessionIdFromURL = request.isRequestedSessionIdFromURL(  );
+            _userPrincipal = request.getUserPrincipal(  );
+            _strRemoteUser = request.getRemoteUser(  );
+            _strAuthType = request.getAuthType(  );
+            _strMethod = request.getMethod(  );
+            _strProtocol = request.getProtocol(  );
+            _strScheme = request.getScheme(  );
+            _bSecure = request.isSecure(  );
+            _strServerName = request.getServerName(  );
+            _nServerPort = request.getServerPort(  );
+            _strContextPath = request.getContextPath(  );
+            _strServletPath = request.getServletPath(  );
+            _strPathInfo = request.getPathInfo(  );
+            _strPathTranslated = request.getPathTranslated(  );
+            _strQueryString = request.getQueryString(  );
+            _strRequestURI = request.getRequestURI(  );
+            _strRequestURL = request.getRequestURL(  ).toString(  );
+            _strCharacterEncoding = request.getCharacterEncoding(  );
+            _strContentType = request.getContentType(  );
+            _nContentLength = request.getContentLength(  );
+            _strRemoteAddr = request.getRemoteAddr(  );
+            _strRemoteHost = request.getRemoteHost(  );
+            _nRemotePort = request.getRemotePort(  );
+            _strLocalAddr = request.getLocalAddr(  );
+            _strLocalName = request.getLocalName(  );
+            _nLocalPort = request.getLocalPort(  );
+        }
+
+        /**
+         * Return the values of a header
+         *
+         * @param strName The header name
+         * @return the values (empty if the header isn't defined)
+         */
+        List getHeaders( String strName )
+        {
+            List listValues = ( strName != null ) ? (List) _mapHeaders.get( strName.toLowerCase( Locale.ENGLISH ) )
+                                                  : null;
+
+            return ( listValues != null ) ? listValues : Collections.EMPTY_LIST;
+        }
+
+        /**
+         * Return the first value of a header
+         *
+         * @param strName The header name
+         * @return the value, or <code>null</code>
+         */
+        String getHeader( String strName )
+        {
+            List listValues = getHeaders( strName );
+
+            return listValues.isEmpty(  ) ? null : (String) listValues.get( 0 );
+        }
+
+        /**
+         * Return the value of a date header
+         *
+         * @param strName The header name
+         * @return the date (milliseconds), <code>-1</code> if the header isn't defined
+         */
+        long getDateHeader( String strName )
+        {
+            String strValue = getHeader( strName );
+
+            if ( strValue == null )
+            {
+                return -1L;
+            }
+
+            for ( int i = 0; i < DATE_FORMATS.length; i++ )
+            {
+                SimpleDateFormat format = new SimpleDateFormat( DATE_FORMATS[i], Locale.US );
+                format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+
+                try
+                {
+                    return format.parse( strValue ).getTime(  );
+                }
+                catch ( ParseException e )
+                {
+                    // Next format
+                }
+            }
+
+            throw new IllegalArgumentException( "Invalid date header " + strName + ": " + strValue );
+        }
+
+        /**
+         * Return a request dispatcher, for a path relative to the context or
+         * to the current servlet
+         *
+         * @param strPath The path
+         * @return the request dispatcher, or <code>null</code>
+         */
+        RequestDispatcher getRequestDispatcher( String strPath )
+        {
+            if ( strPath == null )
+            {
+                return null;
+            }
+
+            if ( strPath.startsWith( "/" ) )
+            {
+                return _context.getRequestDispatcher( strPath );
+            }
+
+            String strServletPath = ( _strPathInfo != null ) ? ( _strServletPath + _strPathInfo ) : _strServletPath;
+            String strDirectory = strServletPath.substring( 0, strServletPath.lastIndexOf( '/' ) + 1 );
+
+            return _context.getRequestDispatcher( strDirectory + strPath );
+        }
+    }
+
+    /**
+     * The detached request wrapped by a snapshot: answers from the copied
+     * values, with its own attributes
+     */
+    private static final class DetachedRequest implements InvocationHandler
+    {
+        private final RequestValues _values;
+        private final Map _mapAttributes;
+        private String _strCharacterEncoding;
+
+        /**
+         * Build a detached request
+         *
+         * @param values The copied values
+         */
+        DetachedRequest( RequestValues values )
+        {
+            _values = values;
+            _mapAttributes = new HashMap( values._mapAttributes );
+            _strCharacterEncoding = values._strCharacterEncoding;
+        }
+
+        /**
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        public Object invoke( Object proxy, Method method, Object[] args )
+        {
+            String strMethod = method.getName(  );
+            Object objectValue = SnapshotUtil.invokeObjectMethod( proxy, strMethod, args, this );
+
+            if ( objectValue != null )
+            {
+                return objectValue;
+            }
+
+            objectValue = invokeAttributeMethod( strMethod, args );
+
+            if ( objectValue != null )
+            {
+                return objectValue;
+            }
+
+            objectValue = invokeRequestMethod( strMethod, args );
+
+            if ( objectValue != null )
+            {
+                return objectValue;
+            }
+
+            return SnapshotUtil.getDefaultValue( method.getReturnType(  ) );
+        }
+
+        /**
+         * Answer the attribute methods
+         *
+         * @param strMethod The method name
+         * @param args The arguments
+         * @return the answer (<code>this</code> for a method without result),
+         * or <code>null</code>
+         */
+        private synchronized Object invokeAttributeMethod( String strMethod, Object[] args )
+        {
+            if ( "getAttribute".equals( strMethod ) )
+            {
+                return _mapAttributes.get( args[0] );
+            }
+
+            if ( "getAttributeNames".equals( strMethod ) )
+            {
+                return Collections.enumeration( new ArrayList( _mapAttributes.keySet(  ) ) );
+            }
+
+            if ( "setAttribute".equals( strMethod ) )
+            {
+                if ( args[1] == null )
+                {
+                    _mapAttributes.remove( args[0] );
+                }
+                else
+                {
+                    _mapAttributes.put( args[0], args[1] );
+                }
+
+                return this;
+            }
+
+            if ( "removeAttribute".equals( strMethod ) )
+            {
+                _mapAttributes.remove( args[0] );
+
+                return this;
+            }
+
+            if ( "setCharacterEncoding".equals( strMethod ) )
+            {
+                _strCharacterEncoding = (String) args[0];
+
+                return this;
+            }
+
+            if ( "getCharacterEncoding".equals( strMethod ) )
+            {
+                return _strCharacterEncoding;
+            }
+
+            return null;
+        }
+
+        /**
+         * Answer the methods of the request from the copied values
+         *
+         * @param strMethod The method name
+         * @param args The arguments
+         * @return the answer, or <code>null</code>
+         */
+        private Object invokeRequestMethod( String strMethod, Object[] args )
+        {
+            RequestValues values = _values;
+
+            if ( "getParameter".equals( strMethod ) )
+            {
+                String[] strValues = (String[]) values._mapParameters.get( args[0] );
+
+                return ( ( strValues != null ) && ( strValues.length > 0 ) ) ? strValues[0] : null;
+            }
+
+            if ( "getParameterValues".equals( strMethod ) )
+            {
+                return values._mapParameters.get( args[0] );
+            }
+
+            if ( "getParameterMap".equals( strMethod ) )
+            {
+                return values._mapParameters;
+            }
+
+            if ( "getParameterNames".equals( strMethod ) )
+            {
+                return Collections.enumeration( values._mapParameters.keySet(  ) );
+            }
+
+            if ( "getHeader".equals( strMethod ) )
+            {
+                return values.getHeader( (String) args[0] );
+            }
+
+            if ( "getHeaders".equals( strMethod ) )
+            {
+                return Collections.enumeration( values.getHeaders( (String) args[0] ) );
+            }
+
+            if ( "getHeaderNames".equals( strMethod ) )
+            {
+                return Collections.enumeration( values._listHeaderNames );
+            }
+
+            if ( "getIntHeader".equals( strMethod ) )
+            {
+                String strValue = values.getHeader( (String) args[0] );
+
+                return Integer.valueOf( ( strValue != null ) ? Integer.parseInt( strValue.trim(  ) ) : ( -1 ) );
+            }
+
+            if ( "getDateHeader".equals( strMethod ) )
+            {
+                return Long.valueOf( values.getDateHeader( (String) args[0] ) );
+            }
+
+            if ( "getLocale".equals( strMethod ) )
+            {
+                return values._listLocales.isEmpty(  ) ? Locale.getDefault(  ) : values._listLocales.get( 0 );
+            }
+
+            if ( "getLocales".equals( strMethod ) )
+            {
+                return Collections.enumeration( values._listLocales.isEmpty(  )
+                    ? Collections.singletonList( Locale.getDefault(  ) ) : values._listLocales );
+            }
+
+            if ( "getCookies".equals( strMethod ) )
+            {
+                return ( values._cookies != null ) ? values._cookies.clone(  ) : null;
+            }
+
+            if ( "isUserInRole".equals( strMethod ) )
+            {
+                return Boolean.valueOf( values._setRoles.contains( args[0] ) );
+            }
+
+            if ( "getSession".equals( strMethod ) )
+            {
+                boolean bCreate = ( args == null ) || ( (Boolean) args[0] ).booleanValue(  );
+
+                if ( ( values._session == null ) && bCreate )
+                {
+                    throw new IllegalStateException(
+                        "A session can't be created by a portlet rendered outside of the request thread" );
+                }
+
+                return values._session;
+            }
+
+            if ( "getRequestDispatcher".equals( strMethod ) )
+            {
+                return values.getRequestDispatcher( (String) args[0] );
+            }
+
+            if ( "getRealPath".equals( strMethod ) )
+            {
+                return values._context.getRealPath( (String) args[0] );
+            }
+
+            if ( "getServletContext".equals( strMethod ) )
+            {
+                return values._context;
+            }
+
+            if ( "getInputStream".equals( strMethod ) || "getReader".equals( strMethod ) )
+            {
+                throw new IllegalStateException( "The body of the request isn't available to a portlet render" );
+            }
+
+            if ( "getRequestURL".equals( strMethod ) )
+            {
+                return new StringBuffer( values._strRequestURL );
+            }
+
+            return invokeValueMethod( strMethod );
+        }
+
+        /**
+         * Answer the methods without argument returning a copied value
+         *
+         * @param strMethod The method name
+         * @return the answer, or <code>null</code>
+         */
+        private Object invokeValueMethod( String strMethod )
+        {
+            RequestValues values = _values;
+
+            if ( "getRequestedSessionId".equals( strMethod ) )
+            {
+                return values._strRequestedSessionId;
+            }
+
+            if ( "isRequestedSessionIdValid".equals( strMethod ) )
+            {
+                return Boolean.valueOf( values._bRequestedSessionIdValid );
+            }
+
+            if ( "isRequestedSessionIdFromCookie".equals( strMethod ) )
+            {
+                return Boolean.valueOf( values._bRequestedSessionIdFromCookie );
+            }
+
+            if ( "isRequestedSessionIdFromURL".equals( strMethod ) || "isRequestedSessionIdFromUrl".equals( strMethod ) )
+            {
+                return Boolean.valueOf( values._bRequestedSessionIdFromURL );
+            }
+
+            if ( "getUserPrincipal".equals( strMethod ) )
+            {
+                return values._userPrincipal;
+            }
+
+            if ( "getRemoteUser".equals( strMethod ) )
+            {
+                return values._strRemoteUser;
+            }
+
+            if ( "getAuthType".equals( strMethod ) )
+            {
+                return values._strAuthType;
+            }
+
+            if ( "getMethod".equals( strMethod ) )
+            {
+                return values._strMethod;
+            }
+
+            if ( "getProtocol".equals( strMethod ) )
+            {
+                return values._strProtocol;
+            }
+
+            if ( "getScheme".equals( strMethod ) )
+            {
+                return values._strScheme;
+            }
+
+            if ( "isSecure".equals( strMethod ) )
+            {
+                return Boolean.valueOf( values._bSecure );
+            }
+
+            if ( "getServerName".equals( strMethod ) )
+            {
+                return values._strServerName;
+            }
+
+            if ( "getServerPort".equals( strMethod ) )
+            {
+                return Integer.valueOf( values._nServerPort );
+            }
+
+            if ( "getContextPath".equals( strMethod ) )
+            {
+                return values._strContextPath;
+            }
+
+            if ( "getServletPath".equals( strMethod ) )
+            {
+                return values._strServletPath;
+            }
+
+            if ( "getPathInfo".equals( strMethod ) )
+            {
+                return values._strPathInfo;
+            }
+
+            if ( "getPathTranslated".equals( strMethod ) )
+            {
+                return values._strPathTranslated;
+            }
+
+            if ( "getQueryString".equals( strMethod ) )
+            {
+                return values._strQueryString;
+            }
+
+            if ( "getRequestURI".equals( strMethod ) )
+            {
+                return values._strRequestURI;
+            }
+
+            if ( "getContentType".equals( strMethod ) )
+            {
+                return values._strContentType;
+            }
+
+            if ( "getContentLength".equals( strMethod ) )
+            {
+                return Integer.valueOf( values._nContentLength );
+            }
+
+            if ( "getRemoteAddr".equals( strMethod ) )
+            {
+                return values._strRemoteAddr;
+            }
+
+            if ( "getRemoteHost".equals( strMethod ) )
+            {
+                return values._strRemoteHost;
+            }
+
+            if ( "getRemotePort".equals( strMethod ) )
+            {
+                return Integer.valueOf( values._nRemotePort );
+            }
+
+            if ( "getLocalAddr".equals( strMethod ) )
+            {
+                return values._strLocalAddr;
+            }
+
+            if ( "getLocalName".equals( strMethod ) )
+            {
+                return values._strLocalName;
+            }
+
+            if ( "getLocalPort".equals( strMethod ) )
+            {
+                return Integer.valueOf( values._nLocalPort );
+            }
+
+            return null;
+        }
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        public String toString(  )
+        {
+            return "RequestSnapshot[" + _values._strRequestURI + "]";
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+
+/**
+ * Snapshot of an HTTP response used to render a portlet outside of the
+ * request thread.<br>
+ *
+ * The character encoding, the content type, the locale and the session ID
+ * encoding of URLs are copied once per page, in the request thread; the
+ * original response is never called. The headers and cookies set by a
+ * render are ignored: the response may already be sent when the render ends.
+ * A snapshot has no state of its own and is shared by the renders of a page.
+ */
+public class ResponseSnapshot extends HttpServletResponseWrapper
+{
+    /**
+     * Build the snapshot of the response
+     *
+     * @param request The original HTTP request
+     * @param response The original HTTP response (must be called in the request thread)
+     */
+    public ResponseSnapshot( HttpServletRequest request, HttpServletResponse response )
+    {
+        super( (HttpServletResponse) SnapshotUtil.newDetachedObject( HttpServletResponse.class,
+                new DetachedResponse( request, response ) ) );
+    }
+
+    /**
+     * The detached response wrapped by a snapshot
+     */
+    private static final class DetachedResponse implements InvocationHandler
+    {
+        private static final String SCHEME_SEPARATOR = "://";
+        private final String _strCharacterEncoding;
+        private final String _strContentType;
+        private final Locale _locale;
+        private final String _strServerName;
+        private final String _strContextPath;
+
+        // Path parameter added by the container to the URLs (session ID), if any
+        private final String _strSessionIdParam;
+
+        /**
+         * Copy the values of a response
+         *
+         * @param request The original HTTP request
+         * @param response The original HTTP response
+         */
+        DetachedResponse( HttpServletRequest request, HttpServletResponse response )
+        {
+            _strCharacterEncoding = response.getCharacterEncoding(  );
+            _strContentType = response.getContentType(  );
+            _locale = response.getLocale(  );
+            _strServerName = request.getServerName(  );
+            _strContextPath = request.getContextPath(  );
+
+            // The container tells how it encodes the URLs of the context for this client
+            String strPath = _strContextPath + "/";
+            String strEncodedPath = response.encodeURL( strPath );
+
+            _strSessionIdParam = ( strEncodedPath.startsWith( strPath ) &&
+                ( strEncodedPath.length(  ) > strPath.length(  ) ) ) ? strEncodedPath.substring( strPath.length(  ) ) : "";
+        }
+
+        /**
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        public Object invoke( Object proxy, Method method, Object[] args )
+        {
+            String strMethod = method.getName(  );
+            Object objectValue = SnapshotUtil.invokeObjectMethod( proxy, strMethod, args, this );
+
+            if ( objectValue != null )
+            {
+                return objectValue;
+            }
+
+            if ( strMethod.startsWith( "encode" ) && ( args != null ) && ( args.length == 1 ) )
+            {
+                return encodeURL( (String) args[0] );
+            }
+
+            if ( "getCharacterEncoding".equals( strMethod ) )
+            {
+                return _strCharacterEncoding;
+            }
+
+            if ( "getContentType".equals( strMethod ) )
+            {
+                return _strContentType;
+            }
+
+            if ( "getLocale".equals( strMethod ) )
+            {
+                return _locale;
+            }
+
+            if ( "isCommitted".equals( strMethod ) )
+            {
+                return Boolean.TRUE;
+            }
+
+            if ( "getWriter".equals( strMethod ) || "getOutputStream".equals( strMethod ) ||
+                    strMethod.startsWith( "send" ) )
+            {
+                throw new IllegalStateException( "The response isn't available to a portlet render" );
+            }
+
+            // Headers, cookies and status are ignored
+            return SnapshotUtil.getDefaultValue( method.getReturnType(  ) );
+        }
+
+        /**
+         * Add the session ID to an URL of the context, as the container does
+         *
+         * @param strURL The URL
+         * @return the encoded URL
+         */
+        private String encodeURL( String strURL )
+        {
+            if ( ( strURL == null ) || ( _strSessionIdParam.length(  ) == 0 ) || !isContextURL( strURL ) ||
+                    ( strURL.indexOf( _strSessionIdParam ) >= 0 ) )
+            {
+                return strURL;
+            }
+
+            int nQuery = strURL.indexOf( '?' );
+            int nAnchor = strURL.indexOf( '#' );
+            int nEnd = ( ( nQuery >= 0 ) && ( ( nAnchor < 0 ) || ( nQuery < nAnchor ) ) ) ? nQuery : nAnchor;
+
+            if ( nEnd < 0 )
+            {
+                return strURL + _strSessionIdParam;
+            }
+
+            StringBuilder sbURL = new StringBuilder( strURL.length(  ) + _strSessionIdParam.length(  ) );
+            sbURL.append( strURL, 0, nEnd ).append( _strSessionIdParam ).append( strURL, nEnd, strURL.length(  ) );
+
+            return sbURL.toString(  );
+        }
+
+        /**
+         * Indicate if an URL targets the context (relative URL, or absolute
+         * URL of the server and the context)
+         *
+         * @param strURL The URL
+         * @return <code>true</code> if the URL targets the context
+         */
+        private boolean isContextURL( String strURL )
+        {
+            if ( strURL.startsWith( "#" ) )
+            {
+                return false;
+            }
+
+            String strPath = strURL;
+            int nSchemeEnd = strURL.indexOf( SCHEME_SEPARATOR );
+
+            if ( nSchemeEnd >= 0 )
+            {
+                int nHostStart = nSchemeEnd + SCHEME_SEPARATOR.length(  );
+                int nPathStart = strURL.indexOf( '/', nHostStart );
+                String strHost = ( nPathStart >= 0 ) ? strURL.substring( nHostStart, nPathStart )
+                                                     : strURL.substring( nHostStart );
+                int nPort = strHost.lastIndexOf( ':' );
+
+                if ( ( nPort >= 0 ) && ( strHost.indexOf( ']', nPort ) < 0 ) )
+                {
+                    strHost = strHost.substring( 0, nPort );
+                }
+
+                if ( !strHost.equalsIgnoreCase( _strServerName ) )
+                {
+                    return false;
+                }
+
+                strPath = ( nPathStart >= 0 ) ? strURL.substring( nPathStart ) : "/";
+            }
+
+            return !strPath.startsWith( "/" ) || strPath.startsWith( _strContextPath + "/" );
+        }
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        public String toString(  )
+        {
+            return "ResponseSnapshot[" + _strContextPath + "]";
+        }
+    }
+}
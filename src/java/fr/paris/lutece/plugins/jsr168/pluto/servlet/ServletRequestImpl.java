@@ -96,15 +96,21 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
 
 /**
- * Http servlet wrapper
+ * Http servlet wrapper. The request reads a single snapshot of the values
+ * of the window (mode, state and render parameters): a render is consistent
+ * even if another request changes the window meanwhile.
  */
 public class ServletRequestImpl extends HttpServletRequestWrapper
 {
+    private final PortletWindowImpl _window;
+    private final PortletWindowImpl.WindowValues _windowValues;
     private final Map _mapParameters;
 
     /**
@@ -117,10 +123,13 @@ public class ServletRequestImpl extends HttpServletRequestWrapper
     {
         super( servletRequest );
 
+        _window = window;
+        _windowValues = getWindowValues( servletRequest, window );
+
         //get control params
         Map portletParameters = new HashMap(  );
 
-        portletParameters.putAll( window.getRenderParameters(  ) );
+        portletParameters.putAll( _windowValues.getRenderParameters(  ) );
 
         // Get only parameter targetted to portlet 
         String pid = PortalURL.extractPortletId( (HttpServletRequest) servletRequest );
@@ -154,6 +163,32 @@ public class ServletRequestImpl extends HttpServletRequestWrapper
         _mapParameters = Collections.unmodifiableMap( portletParameters );
     }
 
+    /**
+     * Return the values of a window read by a request: the snapshot of the
+     * first wrapper of the request for this window, else the current values
+     *
+     * @param request The HTTP request
+     * @param window The portlet window
+     * @return the values of the window
+     */
+    public static PortletWindowImpl.WindowValues getWindowValues( ServletRequest request, PortletWindowImpl window )
+    {
+        ServletRequest wrappedRequest = request;
+
+        while ( wrappedRequest instanceof ServletRequestWrapper )
+        {
+            if ( wrappedRequest instanceof ServletRequestImpl &&
+                    ( ( (ServletRequestImpl) wrappedRequest )._window == window ) )
+            {
+                return ( (ServletRequestImpl) wrappedRequest )._windowValues;
+            }
+
+            wrappedRequest = ( (ServletRequestWrapper) wrappedRequest ).getRequest(  );
+        }
+
+        return window.getValues(  );
+    }
+
     /**
          * @see javax.servlet.ServletRequest#getContentType()
          */
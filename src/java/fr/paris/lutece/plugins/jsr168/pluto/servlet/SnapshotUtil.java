@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+
+
+/**
+ * Helpers for the snapshots of the request and of the response: the
+ * snapshots wrap a detached object, answering from values copied in the
+ * request thread, instead of the objects of the servlet container (which
+ * are recycled at the end of the request).
+ */
+final class SnapshotUtil
+{
+    /**
+     * Utility classes have no constructor
+     */
+    private SnapshotUtil(  )
+    {
+    }
+
+    /**
+     * Create a detached object
+     *
+     * @param type The interface of the object
+     * @param handler The handler answering the calls
+     * @return the detached object
+     */
+    static Object newDetachedObject( Class type, InvocationHandler handler )
+    {
+        return Proxy.newProxyInstance( type.getClassLoader(  ), new Class[] { type }, handler );
+    }
+
+    /**
+     * Return the value of a method without copied value (servlet API methods
+     * meaningless outside of the request thread)
+     *
+     * @param type The return type of the method
+     * @return <code>null</code>, <code>false</code> or <code>0</code>
+     */
+    static Object getDefaultValue( Class type )
+    {
+        if ( !type.isPrimitive(  ) || ( type == Void.TYPE ) )
+        {
+            return null;
+        }
+
+        if ( type == Boolean.TYPE )
+        {
+            return Boolean.FALSE;
+        }
+
+        if ( type == Character.TYPE )
+        {
+            return Character.valueOf( (char) 0 );
+        }
+
+        if ( type == Long.TYPE )
+        {
+            return Long.valueOf( 0L );
+        }
+
+        if ( type == Float.TYPE )
+        {
+            return Float.valueOf( 0F );
+        }
+
+        if ( type == Double.TYPE )
+        {
+            return Double.valueOf( 0D );
+        }
+
+        if ( type == Byte.TYPE )
+        {
+            return Byte.valueOf( (byte) 0 );
+        }
+
+        if ( type == Short.TYPE )
+        {
+            return Short.valueOf( (short) 0 );
+        }
+
+        return Integer.valueOf( 0 );
+    }
+
+    /**
+     * Indicate if a call is one of the <code>Object</code> methods of the
+     * detached object, and answer it
+     *
+     * @param proxy The detached object
+     * @param strMethod The method name
+     * @param args The arguments
+     * @param handler The handler of the detached object
+     * @return the answer, or <code>null</code> for another method
+     */
+    static Object invokeObjectMethod( Object proxy, String strMethod, Object[] args, InvocationHandler handler )
+    {
+        if ( "equals".equals( strMethod ) && ( args != null ) && ( args.length == 1 ) )
+        {
+            return Boolean.valueOf( proxy == args[0] );
+        }
+
+        if ( "hashCode".equals( strMethod ) && ( args == null ) )
+        {
+            return Integer.valueOf( System.identityHashCode( proxy ) );
+        }
+
+        if ( "toString".equals( strMethod ) && ( args == null ) )
+        {
+            return handler.toString(  );
+        }
+
+        return null;
+    }
+}
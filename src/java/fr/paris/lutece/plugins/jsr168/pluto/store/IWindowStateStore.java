@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.store;
+
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Store of the portlet windows of the users (mode, window state and render
+ * parameters). The store is defined by the property
+ * <code>portlet.jsr168.window.store</code>.
+ */
+public interface IWindowStateStore
+{
+    /**
+     * Return the portlet window of the current user (created if needed)
+     *
+     * @param request The HTTP request
+     * @param strPortletId The portlet ID (Lutece ID)
+     * @return the portlet window
+     */
+    PortletWindowImpl getPortletWindow( HttpServletRequest request, String strPortletId );
+
+    /**
+     * Return the portlet window of the current user, if the user already has
+     * a state (no session is created)
+     *
+     * @param request The HTTP request
+     * @param strPortletId The portlet ID (Lutece ID)
+     * @return the portlet window, or <code>null</code>
+     */
+    PortletWindowImpl findPortletWindow( HttpServletRequest request, String strPortletId );
+
+    /**
+     * Keep the state of a portlet window after a change (action, new mode or
+     * window state)
+     *
+     * @param request The HTTP request
+     * @param portletWindow The portlet window
+     */
+    void storePortletWindow( HttpServletRequest request, PortletWindowImpl portletWindow );
+
+    /**
+     * Indicate if the window changed by an action must be read again by the
+     * request following the action (the store keeps a cache on each node):
+     * the redirect after the action then names the window
+     *
+     * @return <code>true</code> if the window must be read again
+     */
+    boolean isRefreshedAfterAction(  );
+
+    /**
+     * Release the resources of the store
+     */
+    void shutdown(  );
+}
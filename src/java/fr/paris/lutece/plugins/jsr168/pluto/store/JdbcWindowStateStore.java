@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.store;
+
+import fr.paris.lutece.plugins.jsr168.business.window.PortletWindowData;
+import fr.paris.lutece.plugins.jsr168.business.window.PortletWindowDataHome;
+import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+import fr.paris.lutece.plugins.jsr168.pluto.core.NavigationalState;
+import fr.paris.lutece.plugins.jsr168.pluto.core.PortalURL;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+import fr.paris.lutece.portal.service.security.SecurityService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Store of the portlet windows in the database, keyed by Lutece user and
+ * portlet: the state of the windows survives a restart and is shared by the
+ * nodes of a cluster. The windows of the visitors not logged in are kept in
+ * the session.<br>
+ *
+ * The windows read are kept in a local cache (<code>cacheSize</code> windows,
+ * for <code>cacheTtl</code> ms). The changes made by a render are written by
+ * a background thread: successive changes of a window waiting to be written
+ * are merged. The changes made by an action or a change of mode or state are
+ * written at once, and the window is read again from the database by the
+ * request following the action: the next request may be served by another
+ * node.
+ */
+public class JdbcWindowStateStore implements IWindowStateStore
+{
+    private static final int DEFAULT_CACHE_SIZE = 1000;
+    private static final int DEFAULT_CACHE_TTL = 60000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10L;
+    private static final char KEY_SEPARATOR = '|';
+    private static final String THREAD_NAME = "jsr168-window-store";
+    private static final int WRITE_LOCKS_COUNT = 16;
+    private final IWindowStateStore _sessionStore;
+    private final Map _mapCache;
+    private final ConcurrentMap _mapPendingWrites;
+    private final ExecutorService _writer;
+    private final Object[] _writeLocks = new Object[WRITE_LOCKS_COUNT];
+
+    /**
+     * Initialize the store
+     */
+    public JdbcWindowStateStore(  )
+    {
+        final int nCacheSize = AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_WINDOW_STORE_CACHE_SIZE,
+                DEFAULT_CACHE_SIZE );
+
+        _sessionStore = new SessionWindowStateStore(  );
+        _mapPendingWrites = new ConcurrentHashMap(  );
+
+        for ( int i = 0; i < _writeLocks.length; i++ )
+        {
+            _writeLocks[i] = new Object(  );
+        }
+
+        // Access order: the eldest entry is the least recently used
+        _mapCache = new LinkedHashMap( 16, 0.75f, true )
+                {
+                    protected boolean removeEldestEntry( Map.Entry eldest )
+                    {
+                        return size(  ) > nCacheSize;
+                    }
+                };
+
+        final ClassLoader classLoader = Thread.currentThread(  ).getContextClassLoader(  );
+        _writer = Executors.newSingleThreadExecutor( new ThreadFactory(  )
+                {
+                    public Thread newThread( Runnable runnable )
+                    {
+                        Thread thread = new Thread( runnable, THREAD_NAME );
+                        thread.setDaemon( true );
+                        thread.setContextClassLoader( classLoader );
+
+                        return thread;
+                    }
+                } );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#getPortletWindow(javax.servlet.http.HttpServletRequest, java.lang.String)
+     */
+    public PortletWindowImpl getPortletWindow( HttpServletRequest request, String strPortletId )
+    {
+        LuteceUser luteceUser = SecurityService.getInstance(  ).getRegisteredUser( request );
+
+        if ( luteceUser == null )
+        {
+            return _sessionStore.getPortletWindow( request, strPortletId );
+        }
+
+        String strKey = luteceUser.getName(  ) + KEY_SEPARATOR + strPortletId;
+        long lNow = System.currentTimeMillis(  );
+
+        // The window changed by the previous request may be stale in the cache of this node
+        if ( !strPortletId.equals( PortalURL.getPortalURL( request ).getRefreshedPortletId(  ) ) )
+        {
+            synchronized ( _mapCache )
+            {
+                CachedWindow cachedWindow = (CachedWindow) _mapCache.get( strKey );
+
+                if ( ( cachedWindow != null ) && !cachedWindow.isExpired( lNow ) )
+                {
+                    return cachedWindow.getPortletWindow(  );
+                }
+            }
+        }
+
+        // Read through: a change waiting to be written is more recent than the database
+        PortletWindowData windowData = (PortletWindowData) _mapPendingWrites.get( strKey );
+
+        if ( windowData == null )
+        {
+            windowData = PortletWindowDataHome.findByPrimaryKey( luteceUser.getName(  ),
+                    Integer.parseInt( strPortletId ) );
+        }
+
+        PortletWindowImpl portletWindow = new PortletWindowImpl( strPortletId );
+
+        if ( ( windowData != null ) && ( windowData.getWindowState(  ) != null ) )
+        {
+            NavigationalState.decode( windowData.getWindowState(  ), portletWindow );
+        }
+
+        // The state read is the stored one: nothing to write back
+        portletWindow.saveValues(  );
+        portletWindow.clearDirty(  );
+        putInCache( strKey, portletWindow, lNow );
+
+        return portletWindow;
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#findPortletWindow(javax.servlet.http.HttpServletRequest, java.lang.String)
+     */
+    public PortletWindowImpl findPortletWindow( HttpServletRequest request, String strPortletId )
+    {
+        if ( SecurityService.getInstance(  ).getRegisteredUser( request ) == null )
+        {
+            return _sessionStore.findPortletWindow( request, strPortletId );
+        }
+
+        return getPortletWindow( request, strPortletId );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#storePortletWindow(javax.servlet.http.HttpServletRequest, org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl)
+     */
+    public void storePortletWindow( HttpServletRequest request, PortletWindowImpl portletWindow )
+    {
+        LuteceUser luteceUser = SecurityService.getInstance(  ).getRegisteredUser( request );
+
+        if ( luteceUser == null )
+        {
+            _sessionStore.storePortletWindow( request, portletWindow );
+
+            return;
+        }
+
+        portletWindow.clearDirty(  );
+
+        String strPortletId = portletWindow.getId(  ).toString(  );
+        String strKey = luteceUser.getName(  ) + KEY_SEPARATOR + strPortletId;
+
+        PortletWindowData windowData = new PortletWindowData(  );
+        windowData.setUserName( luteceUser.getName(  ) );
+        windowData.setPortletId( Integer.parseInt( strPortletId ) );
+        windowData.setWindowState( NavigationalState.encode( portletWindow.getPortletMode(  ),
+                portletWindow.getWindowState(  ), portletWindow.getRenderParameters(  ) ) );
+
+        putInCache( strKey, portletWindow, System.currentTimeMillis(  ) );
+
+        boolean bQueued = _mapPendingWrites.put( strKey, windowData ) != null;
+
+        if ( strPortletId.equals( PortalURL.extractPortletId( request ) ) )
+        {
+            // Action or change of mode or state: written before the redirect
+            write( strKey );
+        }
+        else if ( !bQueued )
+        {
+            // Write behind: a single write is queued for a window
+            try
+            {
+                _writer.execute( new WriteTask( strKey ) );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // The store is shut down
+                write( strKey );
+            }
+        }
+    }
+
+    /**
+     * The cache of another node may keep the state before the action
+     *
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#isRefreshedAfterAction()
+     */
+    public boolean isRefreshedAfterAction(  )
+    {
+        return true;
+    }
+
+    /**
+     * Stop the writer thread and write the pending changes
+     *
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#shutdown()
+     */
+    public void shutdown(  )
+    {
+        _writer.shutdown(  );
+
+        // The queued writes are done by this thread: the tasks find nothing left
+        Iterator keysIt = _mapPendingWrites.keySet(  ).iterator(  );
+
+        while ( keysIt.hasNext(  ) )
+        {
+            write( (String) keysIt.next(  ) );
+        }
+
+        try
+        {
+            if ( !_writer.awaitTermination( SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS ) )
+            {
+                AppLogService.error( "JSR168 / window store: " + _mapPendingWrites.size(  ) +
+                    " window states not written" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+        }
+    }
+
+    /**
+     * Write the pending state of a window, until no newer state is pending.
+     * The writes of a window are serialized (writer thread, actions and
+     * shutdown).
+     *
+     * @param strKey The key of the window
+     */
+    private void write( String strKey )
+    {
+        synchronized ( _writeLocks[( strKey.hashCode(  ) & Integer.MAX_VALUE ) % _writeLocks.length] )
+        {
+            PortletWindowData windowData = (PortletWindowData) _mapPendingWrites.get( strKey );
+
+            while ( windowData != null )
+            {
+                try
+                {
+                    PortletWindowDataHome.store( windowData );
+                }
+                catch ( Exception e )
+                {
+                    AppLogService.error( "JSR168 / window store: state of window " + strKey + " not written", e );
+                }
+
+                // A newer state stays pending and is written in turn
+                if ( _mapPendingWrites.remove( strKey, windowData ) )
+                {
+                    windowData = null;
+                }
+                else
+                {
+                    windowData = (PortletWindowData) _mapPendingWrites.get( strKey );
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a window in the cache
+     *
+     * @param strKey The key of the window
+     * @param portletWindow The portlet window
+     * @param lNow The current time (ms)
+     */
+    private void putInCache( String strKey, PortletWindowImpl portletWindow, long lNow )
+    {
+        long lExpirationTime = lNow +
+            AppPropertiesService.getPropertyInt( LutecePlutoConstant.PROPERTY_WINDOW_STORE_CACHE_TTL, DEFAULT_CACHE_TTL );
+
+        synchronized ( _mapCache )
+        {
+            _mapCache.put( strKey, new CachedWindow( portletWindow, lExpirationTime ) );
+        }
+    }
+
+    /**
+     * Write the last state of a window
+     */
+    private final class WriteTask implements Runnable
+    {
+        private final String _strKey;
+
+        /**
+         * Initialize the task
+         *
+         * @param strKey The key of the window
+         */
+        WriteTask( String strKey )
+        {
+            _strKey = strKey;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run(  )
+        {
+            write( _strKey );
+        }
+    }
+
+    /**
+     * A window in the cache
+     */
+    private static final class CachedWindow
+    {
+        private final PortletWindowImpl _portletWindow;
+        private final long _lExpirationTime;
+
+        /**
+         * Initialize a cached window
+         *
+         * @param portletWindow The portlet window
+         * @param lExpirationTime The expiration time (ms)
+         */
+        CachedWindow( PortletWindowImpl portletWindow, long lExpirationTime )
+        {
+            _portletWindow = portletWindow;
+            _lExpirationTime = lExpirationTime;
+        }
+
+        /**
+         * Return the portlet window
+         *
+         * @return the portlet window
+         */
+        PortletWindowImpl getPortletWindow(  )
+        {
+            return _portletWindow;
+        }
+
+        /**
+         * Indicate if the window must be read again
+         *
+         * @param lNow The current time (ms)
+         * @return <code>true</code> if the window has expired
+         */
+        boolean isExpired( long lNow )
+        {
+            return lNow >= _lExpirationTime;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.store;
+
+import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+import fr.paris.lutece.plugins.jsr168.pluto.PlutoSession;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Store of the portlet windows in the HTTP session ({@link PlutoSession}).<br>
+ *
+ * In session-less mode, a visitor without Pluto session (no portlet window
+ * state yet: all the windows are in their initial state) gets request-scoped
+ * windows, and no HTTP session is created. The Pluto session is created by
+ * the first action or change of mode or state, or by a portlet asking for its
+ * <code>PortletSession</code>.
+ */
+public class SessionWindowStateStore implements IWindowStateStore
+{
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#getPortletWindow(javax.servlet.http.HttpServletRequest, java.lang.String)
+     */
+    public PortletWindowImpl getPortletWindow( HttpServletRequest request, String strPortletId )
+    {
+        if ( isSessionless( request ) )
+        {
+            return new PortletWindowImpl( strPortletId );
+        }
+
+        return PlutoSession.findSession( request ).getPortletWindow( strPortletId );
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#findPortletWindow(javax.servlet.http.HttpServletRequest, java.lang.String)
+     */
+    public PortletWindowImpl findPortletWindow( HttpServletRequest request, String strPortletId )
+    {
+        PlutoSession plutoSession = PlutoSession.getSession( request );
+
+        return ( plutoSession != null ) ? plutoSession.getPortletWindow( strPortletId ) : null;
+    }
+
+    /**
+     * The windows of the session are modified in place: the Pluto session is
+     * only replicated if a window has changed
+     *
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#storePortletWindow(javax.servlet.http.HttpServletRequest, org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl)
+     */
+    public void storePortletWindow( HttpServletRequest request, PortletWindowImpl portletWindow )
+    {
+        PlutoSession plutoSession = PlutoSession.getSession( request );
+
+        // The window may have been evicted while the request changed it
+        if ( plutoSession != null )
+        {
+            plutoSession.keepPortletWindow( portletWindow );
+        }
+
+        PlutoSession.replicate( request );
+    }
+
+    /**
+     * The windows are those of the session: nothing to read again
+     *
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#isRefreshedAfterAction()
+     */
+    public boolean isRefreshedAfterAction(  )
+    {
+        return false;
+    }
+
+    /**
+     * @see fr.paris.lutece.plugins.jsr168.pluto.store.IWindowStateStore#shutdown()
+     */
+    public void shutdown(  )
+    {
+    }
+
+    /**
+     * Indicate if the windows of the request are request-scoped (session-less
+     * mode is enabled and the user has no Pluto session)
+     *
+     * @param request The HTTP request
+     * @return <code>true</code> if no session must be created
+     */
+    private static boolean isSessionless( HttpServletRequest request )
+    {
+        return Boolean.valueOf( AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_SESSION_SESSIONLESS,
+                "false" ) ).booleanValue(  ) && ( PlutoSession.getSession( request ) == null );
+    }
+}
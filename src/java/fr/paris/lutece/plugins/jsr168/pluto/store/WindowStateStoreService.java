@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto.store;
+
+import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+
+/**
+ * Access to the window state store, whose implementation is given by the
+ * <code>portlet.jsr168.window.store</code> property (the HTTP session by
+ * default).
+ */
+public final class WindowStateStoreService
+{
+    private static volatile IWindowStateStore _store;
+
+    /**
+     * Private constructor
+     */
+    private WindowStateStoreService(  )
+    {
+    }
+
+    /**
+     * Return the window state store (instantiated on first use)
+     *
+     * @return the window state store
+     */
+    public static IWindowStateStore getStore(  )
+    {
+        IWindowStateStore store = _store;
+
+        return ( store != null ) ? store : createStore(  );
+    }
+
+    /**
+     * Stop the window state store (the pending changes are written)
+     */
+    public static synchronized void shutdown(  )
+    {
+        if ( _store != null )
+        {
+            _store.shutdown(  );
+            _store = null;
+        }
+    }
+
+    /**
+     * Instantiate the window state store
+     *
+     * @return the window state store
+     */
+    private static synchronized IWindowStateStore createStore(  )
+    {
+        if ( _store == null )
+        {
+            String strClassName = AppPropertiesService.getProperty( LutecePlutoConstant.PROPERTY_WINDOW_STORE );
+
+            if ( ( strClassName != null ) && ( strClassName.trim(  ).length(  ) > 0 ) )
+            {
+                try
+                {
+                    _store = (IWindowStateStore) Class.forName( strClassName.trim(  ) ).newInstance(  );
+                }
+                catch ( Exception e )
+                {
+                    AppLogService.error( "JSR168 / window store " + strClassName +
+                        " can't be instantiated, the session store is used", e );
+                }
+            }
+
+            if ( _store == null )
+            {
+                _store = new SessionWindowStateStore(  );
+            }
+        }
+
+        return _store;
+    }
+}
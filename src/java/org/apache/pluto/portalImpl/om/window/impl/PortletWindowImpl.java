@@ -21,47 +21,132 @@ import org.apache.pluto.om.window.PortletWindow;
 import org.apache.pluto.om.window.PortletWindowCtrl;
 import org.apache.pluto.portalImpl.services.log.Log;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.portlet.PortletMode;
 import javax.portlet.WindowState;
 
 
 //import fr.paris.lutece.plugins.jsr168.pluto.LutecePlutoConstant;
-public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl
+public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl, Externalizable
 {
-    private ObjectID _objectId;
+    private static final long serialVersionUID = 1L;
+
+    // Version of the serial form (see writeExternal)
+    private static final byte SERIAL_VERSION = 1;
+    private static final String SERIAL_CHARSET = "UTF-8";
+
+    // Codes of the standard modes and states in the serial form (other values are written by name)
+    private static final byte CODE_CUSTOM = 0;
+    private static final PortletMode[] PORTLET_MODES = { null, PortletMode.VIEW, PortletMode.EDIT, PortletMode.HELP };
+    private static final WindowState[] WINDOW_STATES =
+        { null, WindowState.NORMAL, WindowState.MAXIMIZED, WindowState.MINIMIZED };
+
+    // Initial values, shared by all the windows
+    private static final WindowValues DEFAULT_VALUES = new WindowValues( PortletMode.VIEW, WindowState.NORMAL,
+            Collections.EMPTY_MAP );
+
+    // Derived from the ID, or set again on each request: not serialized
+    private transient ObjectID _objectId;
     private String _id;
-    private PortletEntity _portletEntity;
-    final private Map _renderParameters;
-    private WindowState _windowState;
-    private PortletMode _portletMode;
-    final private Map _prevRenderParameters;
-    private WindowState _prevWindowState;
-    private PortletMode _prevPortletMode;
+    private transient PortletEntity _portletEntity;
+
+    // Mode, state and render parameters: immutable snapshots, replaced as a whole
+    final private AtomicReference _state;
+    final private AtomicReference _prevState;
+    private volatile long _lLastAccessTime;
+
+    // Raised when the mode, the state or the render parameters really change
+    final private AtomicBoolean _dirty = new AtomicBoolean(  );
 
     public PortletWindowImpl( final String id )
     {
-        _renderParameters = new HashMap(  );
-        _prevRenderParameters = new HashMap(  );
+        _state = new AtomicReference( DEFAULT_VALUES );
+        _prevState = new AtomicReference( DEFAULT_VALUES );
         _id = id;
-        _portletMode = PortletMode.VIEW;
-        _prevPortletMode = PortletMode.VIEW;
-        _windowState = WindowState.NORMAL;
-        _prevWindowState = WindowState.NORMAL;
+        _lLastAccessTime = System.currentTimeMillis(  );
+    }
+
+    /**
+     * Constructor used by the deserialization only
+     */
+    public PortletWindowImpl(  )
+    {
+        this( null );
+    }
+
+    /**
+     * Write the compact serial form of the window: ID, last access time,
+     * current and previous values (the previous values are omitted when they
+     * are the current ones). The modes and states are written as codes, the
+     * render parameters as a flat list of strings. The strings are written as
+     * their length and their UTF-8 bytes (no size limit).
+     *
+     * @param out The output stream
+     * @throws IOException If an I/O error occurs
+     */
+    public void writeExternal( final ObjectOutput out )
+        throws IOException
+    {
+        final WindowValues values = getValues(  );
+        final WindowValues prevValues = (WindowValues) _prevState.get(  );
+
+        out.writeByte( SERIAL_VERSION );
+        writeString( out, _id );
+        out.writeLong( _lLastAccessTime );
+        writeValues( out, values );
+        out.writeBoolean( prevValues == values );
+
+        if ( prevValues != values )
+        {
+            writeValues( out, prevValues );
+        }
+    }
+
+    /**
+     * Read the serial form written by {@link #writeExternal(ObjectOutput)}
+     *
+     * @param in The input stream
+     * @throws IOException If an I/O error occurs or the version is unknown
+     */
+    public void readExternal( final ObjectInput in )
+        throws IOException
+    {
+        final byte version = in.readByte(  );
+
+        if ( version != SERIAL_VERSION )
+        {
+            throw new IOException( "Unknown serial form version " + version + " of portlet window" );
+        }
+
+        _id = readString( in );
+        _objectId = null;
+        _lLastAccessTime = in.readLong(  );
+
+        final WindowValues values = readValues( in );
+        _state.set( values );
+        _prevState.set( in.readBoolean(  ) ? values : readValues( in ) );
     }
 
     public Map getRenderParameters(  )
     {
-        return Collections.unmodifiableMap( _renderParameters );
+        return getValues(  ).getRenderParameters(  );
     }
 
     public String getParameter( final String paramName )
     {
-        final String[] values = (String[]) _renderParameters.get( paramName );
+        final String[] values = (String[]) getValues(  ).getRenderParameters(  ).get( paramName );
 
         if ( values != null )
         {
@@ -73,12 +158,12 @@ public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl
 
     public String[] getParameterValues( final String paramName )
     {
-        final String[] values = (String[]) _renderParameters.get( paramName );
+        final String[] values = (String[]) getValues(  ).getRenderParameters(  ).get( paramName );
 
         return values;
     }
 
-    synchronized public void setRenderParameter( final Map parameters )
+    public void setRenderParameter( final Map parameters )
     {
         if ( parameters == null )
         {
@@ -86,12 +171,12 @@ public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl
         }
 
         Log.debug(  /*LutecePlutoConstant.LOG_CATEGORY,*/
-            "portlet " + _id + " old render params " + _renderParameters.size(  ) + " / " + _renderParameters );
+            "portlet " + _id + " old render params " + getRenderParameters(  ).size(  ) + " / " +
+            getRenderParameters(  ) );
         Log.debug(  /*LutecePlutoConstant.LOG_CATEGORY,*/
             "portlet " + _id + " new render params " + parameters.size(  ) + " / " + parameters );
 
-        _renderParameters.clear(  );
-
+        final Map renderParameters = new HashMap(  );
         final Iterator itEntries = parameters.entrySet(  ).iterator(  );
 
         while ( itEntries.hasNext(  ) )
@@ -108,11 +193,11 @@ public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl
 
             if ( value instanceof String )
             {
-                _renderParameters.put( name, new String[] { (String) value } );
+                renderParameters.put( name, new String[] { (String) value } );
             }
             else if ( value instanceof String[] )
             {
-                _renderParameters.put( name, value );
+                renderParameters.put( name, value );
             }
             else
             {
@@ -121,40 +206,73 @@ public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl
                     value.getClass(  ).getName(  ) + ")." );
             }
         }
+
+        final Map unmodifiableParameters = Collections.unmodifiableMap( renderParameters );
+        WindowValues values;
+
+        do
+        {
+            values = getValues(  );
+
+            if ( equalParameters( values.getRenderParameters(  ), unmodifiableParameters ) )
+            {
+                return;
+            }
+        }
+        while ( !_state.compareAndSet( values,
+                    new WindowValues( values.getPortletMode(  ), values.getWindowState(  ), unmodifiableParameters ) ) );
+
+        _dirty.set( true );
     }
 
     public void setPortletMode( final PortletMode portletMode )
     {
-        if ( _portletMode != null )
-        {
-            _portletMode = portletMode;
-        }
-        else
+        final PortletMode newPortletMode = ( portletMode != null ) ? portletMode : PortletMode.VIEW;
+        WindowValues values;
+
+        do
         {
-            _portletMode = PortletMode.VIEW;
+            values = getValues(  );
+
+            if ( newPortletMode.equals( values.getPortletMode(  ) ) )
+            {
+                return;
+            }
         }
+        while ( !_state.compareAndSet( values,
+                    new WindowValues( newPortletMode, values.getWindowState(  ), values.getRenderParameters(  ) ) ) );
+
+        _dirty.set( true );
     }
 
     public PortletMode getPortletMode(  )
     {
-        return _portletMode;
+        return getValues(  ).getPortletMode(  );
     }
 
     public void setWindowState( final WindowState windowState )
     {
-        if ( windowState != null )
-        {
-            _windowState = windowState;
-        }
-        else
+        final WindowState newWindowState = ( windowState != null ) ? windowState : WindowState.NORMAL;
+        WindowValues values;
+
+        do
         {
-            _windowState = WindowState.NORMAL;
+            values = getValues(  );
+
+            if ( newWindowState.equals( values.getWindowState(  ) ) )
+            {
+                return;
+            }
         }
+        while ( !_state.compareAndSet( values,
+                    new WindowValues( values.getPortletMode(  ), newWindowState, values.getRenderParameters(  ) ) ) );
+
+        _dirty.set( true );
     }
 
     public WindowState getWindowState(  )
     {
-        return _windowState;
+        return getValues(  ).getWindowState(  );
     }
 
     // PortletWindow implementation.
@@ -206,20 +324,47 @@ public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl
         _portletEntity = portletEntity;
     }
 
+    /**
+     * Keep the current values as the last good values
+     */
     public void saveValues(  )
     {
-        _prevPortletMode = _portletMode;
-        _prevWindowState = _windowState;
-        _prevRenderParameters.clear(  );
-        _prevRenderParameters.putAll( _renderParameters );
+        saveValues( getValues(  ) );
+    }
+
+    /**
+     * Keep the values of a successful render as the last good values
+     *
+     * @param values The values read at the start of the render
+     */
+    public void saveValues( final WindowValues values )
+    {
+        _prevState.set( values );
     }
 
+    /**
+     * Restore the last good values, unless the window was changed meanwhile
+     */
     public void restoreValues(  )
     {
-        _portletMode = _prevPortletMode;
-        _windowState = _prevWindowState;
-        _renderParameters.clear(  );
-        _renderParameters.putAll( _prevRenderParameters );
+        restoreValues( getValues(  ) );
+    }
+
+    /**
+     * Restore the last good values after a failed render, if the window still
+     * holds the values read at the start of the render: a change made
+     * meanwhile by another request (action, change of mode or state) is kept.
+     *
+     * @param values The values read at the start of the render
+     */
+    public void restoreValues( final WindowValues values )
+    {
+        final Object prevValues = _prevState.get(  );
+
+        if ( ( values != prevValues ) && _state.compareAndSet( values, prevValues ) )
+        {
+            _dirty.set( true );
+        }
     }
 
     /**
@@ -229,7 +374,7 @@ public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl
      */
     public PortletMode getPrevPortletMode(  )
     {
-        return _prevPortletMode;
+        return ( (WindowValues) _prevState.get(  ) ).getPortletMode(  );
     }
 
     /**
@@ -239,6 +384,321 @@ public class PortletWindowImpl implements PortletWindow, PortletWindowCtrl
      */
     public WindowState getPrevWindowState(  )
     {
-        return _prevWindowState;
+        return ( (WindowValues) _prevState.get(  ) ).getWindowState(  );
+    }
+
+    /**
+     * Record an access to the window
+     */
+    public void touch(  )
+    {
+        _lLastAccessTime = System.currentTimeMillis(  );
+    }
+
+    /**
+     * Return the time of the last access to the window
+     *
+     * @return the time of the last access (milliseconds)
+     */
+    public long getLastAccessTime(  )
+    {
+        return _lLastAccessTime;
+    }
+
+    /**
+     * Indicate if the window is in its initial state (VIEW mode, NORMAL state,
+     * no render parameter): such a window can be recreated at no cost.
+     *
+     * @return <code>true</code> if the window is in its initial state
+     */
+    public boolean isDefault(  )
+    {
+        return getValues(  ).isDefault(  ) && ( (WindowValues) _prevState.get(  ) ).isDefault(  );
+    }
+
+    /**
+     * Indicate if the mode, the state or the render parameters have changed
+     * since the last call to {@link #clearDirty()}
+     *
+     * @return <code>true</code> if the window has changed
+     */
+    public boolean isDirty(  )
+    {
+        return _dirty.get(  );
+    }
+
+    /**
+     * Reset the dirty flag, once the window has been replicated or stored
+     *
+     * @return <code>true</code> if the window had changed
+     */
+    public boolean clearDirty(  )
+    {
+        return _dirty.getAndSet( false );
+    }
+
+    /**
+     * Write the values of a window
+     *
+     * @param out The output stream
+     * @param values The values
+     * @throws IOException If an I/O error occurs
+     */
+    private static void writeValues( final ObjectOutput out, final WindowValues values )
+        throws IOException
+    {
+        final byte modeCode = getCode( PORTLET_MODES, values.getPortletMode(  ) );
+        out.writeByte( modeCode );
+
+        if ( modeCode == CODE_CUSTOM )
+        {
+            writeString( out, values.getPortletMode(  ).toString(  ) );
+        }
+
+        final byte stateCode = getCode( WINDOW_STATES, values.getWindowState(  ) );
+        out.writeByte( stateCode );
+
+        if ( stateCode == CODE_CUSTOM )
+        {
+            writeString( out, values.getWindowState(  ).toString(  ) );
+        }
+
+        // Parameters: count, then name, number of values and values of each parameter
+        final Map renderParameters = values.getRenderParameters(  );
+        out.writeInt( renderParameters.size(  ) );
+
+        final Iterator itEntries = renderParameters.entrySet(  ).iterator(  );
+
+        while ( itEntries.hasNext(  ) )
+        {
+            final Map.Entry entry = (Map.Entry) itEntries.next(  );
+            final String[] parameterValues = (String[]) entry.getValue(  );
+
+            writeString( out, (String) entry.getKey(  ) );
+            out.writeInt( parameterValues.length );
+
+            for ( int i = 0; i < parameterValues.length; i++ )
+            {
+                out.writeBoolean( parameterValues[i] != null );
+
+                if ( parameterValues[i] != null )
+                {
+                    writeString( out, parameterValues[i] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the values of a window (the standard modes and states are the
+     * shared constants, the initial values the shared instance)
+     *
+     * @param in The input stream
+     * @return the values
+     * @throws IOException If an I/O error occurs or a code is unknown
+     */
+    private static WindowValues readValues( final ObjectInput in )
+        throws IOException
+    {
+        final byte modeCode = in.readByte(  );
+        final PortletMode portletMode = ( modeCode == CODE_CUSTOM ) ? new PortletMode( readString( in ) )
+                                                                    : (PortletMode) getValue( PORTLET_MODES, modeCode,
+                "portlet mode" );
+        final byte stateCode = in.readByte(  );
+        final WindowState windowState = ( stateCode == CODE_CUSTOM ) ? new WindowState( readString( in ) )
+                                                                     : (WindowState) getValue( WINDOW_STATES,
+                stateCode, "window state" );
+        final int nParameters = in.readInt(  );
+
+        if ( nParameters == 0 )
+        {
+            if ( PortletMode.VIEW.equals( portletMode ) && WindowState.NORMAL.equals( windowState ) )
+            {
+                return DEFAULT_VALUES;
+            }
+
+            return new WindowValues( portletMode, windowState, Collections.EMPTY_MAP );
+        }
+
+        final Map renderParameters = new HashMap(  );
+
+        for ( int i = 0; i < nParameters; i++ )
+        {
+            final String name = readString( in );
+            final String[] parameterValues = new String[in.readInt(  )];
+
+            for ( int j = 0; j < parameterValues.length; j++ )
+            {
+                parameterValues[j] = in.readBoolean(  ) ? readString( in ) : null;
+            }
+
+            renderParameters.put( name, parameterValues );
+        }
+
+        return new WindowValues( portletMode, windowState, Collections.unmodifiableMap( renderParameters ) );
+    }
+
+    /**
+     * Write a string: its length, then its UTF-8 bytes
+     *
+     * @param out The output stream
+     * @param str The string
+     * @throws IOException If an I/O error occurs
+     */
+    private static void writeString( final ObjectOutput out, final String str )
+        throws IOException
+    {
+        final byte[] bytes = str.getBytes( SERIAL_CHARSET );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    /**
+     * Read a string written by {@link #writeString(ObjectOutput, String)}
+     *
+     * @param in The input stream
+     * @return the string
+     * @throws IOException If an I/O error occurs
+     */
+    private static String readString( final ObjectInput in )
+        throws IOException
+    {
+        final int nLength = in.readInt(  );
+
+        if ( nLength < 0 )
+        {
+            throw new IOException( "Invalid string length " + nLength + " in the serial form of portlet window" );
+        }
+
+        final byte[] bytes = new byte[nLength];
+        in.readFully( bytes );
+
+        return new String( bytes, SERIAL_CHARSET );
+    }
+
+    /**
+     * Return the code of a standard mode or state
+     *
+     * @param values The standard values (index: code)
+     * @param value The mode or state
+     * @return the code of the value, {@link #CODE_CUSTOM} for another value
+     */
+    private static byte getCode( final Object[] values, final Object value )
+    {
+        for ( byte code = 1; code < values.length; code++ )
+        {
+            if ( values[code].equals( value ) )
+            {
+                return code;
+            }
+        }
+
+        return CODE_CUSTOM;
+    }
+
+    /**
+     * Return the standard mode or state of a code read in the serial form
+     *
+     * @param values The standard values (index: code)
+     * @param code The code, other than {@link #CODE_CUSTOM}
+     * @param strKind The kind of value, for the error message
+     * @return the mode or state
+     * @throws IOException If the code is unknown
+     */
+    private static Object getValue( final Object[] values, final byte code, final String strKind )
+        throws IOException
+    {
+        if ( ( code <= CODE_CUSTOM ) || ( code >= values.length ) )
+        {
+            throw new IOException( "Invalid " + strKind + " code " + code + " in the serial form of portlet window" );
+        }
+
+        return values[code];
+    }
+
+    /**
+     * Compare two render parameters maps (values are <code>String[]</code>)
+     *
+     * @param parameters1 The first map
+     * @param parameters2 The second map
+     * @return <code>true</code> if the maps hold the same values
+     */
+    private static boolean equalParameters( final Map parameters1, final Map parameters2 )
+    {
+        if ( parameters1.size(  ) != parameters2.size(  ) )
+        {
+            return false;
+        }
+
+        final Iterator itEntries = parameters1.entrySet(  ).iterator(  );
+
+        while ( itEntries.hasNext(  ) )
+        {
+            final Map.Entry entry = (Map.Entry) itEntries.next(  );
+
+            if ( !Arrays.equals( (String[]) entry.getValue(  ), (String[]) parameters2.get( entry.getKey(  ) ) ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the current values of the window: a consistent snapshot of its
+     * mode, state and render parameters
+     *
+     * @return the current values
+     */
+    public WindowValues getValues(  )
+    {
+        return (WindowValues) _state.get(  );
+    }
+
+    /**
+     * Mode, state and render parameters of a window. The values are never
+     * modified: a change replaces the whole object.
+     */
+    public static final class WindowValues
+    {
+        private final PortletMode _portletMode;
+        private final WindowState _windowState;
+        private final Map _renderParameters;
+
+        /**
+         * Initialize the values
+         *
+         * @param portletMode The portlet mode
+         * @param windowState The window state
+         * @param renderParameters The render parameters (unmodifiable)
+         */
+        WindowValues( PortletMode portletMode, WindowState windowState, Map renderParameters )
+        {
+            _portletMode = portletMode;
+            _windowState = windowState;
+            _renderParameters = renderParameters;
+        }
+
+        public PortletMode getPortletMode(  )
+        {
+            return _portletMode;
+        }
+
+        public WindowState getWindowState(  )
+        {
+            return _windowState;
+        }
+
+        public Map getRenderParameters(  )
+        {
+            return _renderParameters;
+        }
+
+        boolean isDefault(  )
+        {
+            return PortletMode.VIEW.equals( _portletMode ) && WindowState.NORMAL.equals( _windowState ) &&
+            _renderParameters.isEmpty(  );
+        }
     }
 }
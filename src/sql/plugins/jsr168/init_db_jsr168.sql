@@ -6,4 +6,13 @@ CREATE TABLE portlet_jsr168 (
   PRIMARY KEY (id_portlet),
 );
 
-CREATE INDEX index_portlet_jsr168 ON portlet_jsr168 (id_portlet);
\ No newline at end of file
+CREATE INDEX index_portlet_jsr168 ON portlet_jsr168 (id_portlet);
+
+-- Table structure for table 'jsr168_window_state' (state of the portlet windows of the Lutece users)
+
+CREATE TABLE jsr168_window_state (
+  user_name varchar(100) NOT NULL,
+  id_portlet INT DEFAULT '0' NOT NULL,
+  window_state long varchar NOT NULL,
+  PRIMARY KEY (user_name, id_portlet)
+);
\ No newline at end of file
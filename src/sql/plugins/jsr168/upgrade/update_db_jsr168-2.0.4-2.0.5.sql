@@ -0,0 +1,8 @@
+-- Table structure for table 'jsr168_window_state' (state of the portlet windows of the Lutece users)
+
+CREATE TABLE jsr168_window_state (
+  user_name varchar(100) NOT NULL,
+  id_portlet INT DEFAULT '0' NOT NULL,
+  window_state long varchar NOT NULL,
+  PRIMARY KEY (user_name, id_portlet)
+);
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2002-2014, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.jsr168.pluto;
+
+import junit.framework.TestCase;
+
+import org.apache.pluto.portalImpl.om.window.impl.PortletWindowImpl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+
+/**
+ * Concurrency tests of {@link PlutoSession}: the windows of a session are
+ * created, evicted, changed and replicated by simultaneous requests.
+ */
+public class PlutoSessionTest extends TestCase
+{
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 200;
+    private static final int WINDOWS_MAX_SIZE = 10;
+    private static final int WINDOWS_IDLE_TIME = 3600000;
+
+    /**
+     * The requests asking for the same window get the same instance, and a
+     * single window is created
+     *
+     * @throws Exception if a thread fails
+     */
+    public void testConcurrentWindowCreation(  ) throws Exception
+    {
+        for ( int nRound = 0; nRound < ROUNDS; nRound++ )
+        {
+            final PlutoSession plutoSession = new PlutoSession( WINDOWS_MAX_SIZE, WINDOWS_IDLE_TIME );
+            final PortletWindowImpl[] windows = new PortletWindowImpl[THREADS];
+
+            runConcurrently( new Task(  )
+                {
+                    public void run( int nThread )
+                    {
+                        windows[nThread] = plutoSession.getPortletWindow( "1" );
+                    }
+                } );
+
+            assertEquals( 1, plutoSession.getPortletWindowCount(  ) );
+
+            for ( int i = 0; i < THREADS; i++ )
+            {
+                assertSame( windows[0], windows[i] );
+            }
+
+            assertSame( windows[0], plutoSession.getPortletWindow( "1" ) );
+        }
+    }
+
+    /**
+     * The windows changed while other requests add (and evict) windows are
+     * never lost, and the windows in their initial state are evicted down to
+     * the capacity of the session
+     *
+     * @throws Exception if a thread fails
+     */
+    public void testEvictionRacingWithAdds(  ) throws Exception
+    {
+        final PlutoSession plutoSession = new PlutoSession( WINDOWS_MAX_SIZE, WINDOWS_IDLE_TIME );
+        final List listChangedWindows = Collections.synchronizedList( new ArrayList(  ) );
+
+        runConcurrently( new Task(  )
+            {
+                public void run( int nThread )
+                {
+                    for ( int i = 0; i < ROUNDS; i++ )
+                    {
+                        String strPortletId = nThread + "-" + i;
+                        PortletWindowImpl portletWindow = plutoSession.getPortletWindow( strPortletId );
+                        assertEquals( strPortletId, portletWindow.getId(  ).toString(  ) );
+
+                        // One window out of ten is changed, then stored as a request does
+                        if ( ( i % 10 ) == 0 )
+                        {
+                            portletWindow.setPortletMode( PortletMode.EDIT );
+                            plutoSession.keepPortletWindow( portletWindow );
+                            listChangedWindows.add( portletWindow );
+                        }
+                    }
+                }
+            } );
+
+        Map mapWindows = plutoSession.getPortletWindows(  );
+
+        for ( Iterator it = listChangedWindows.iterator(  ); it.hasNext(  ); )
+        {
+            PortletWindowImpl portletWindow = (PortletWindowImpl) it.next(  );
+            assertSame( portletWindow, mapWindows.get( portletWindow.getId(  ).toString(  ) ) );
+            assertEquals( PortletMode.EDIT, portletWindow.getPortletMode(  ) );
+        }
+
+        // Over capacity: all the windows in their initial state but the new one are evicted
+        plutoSession.getPortletWindow( "last" );
+        assertEquals( listChangedWindows.size(  ) + 1, plutoSession.getPortletWindowCount(  ) );
+    }
+
+    /**
+     * The last replicated state of the session is its current state, whatever
+     * the order of the concurrent changes and replications
+     *
+     * @throws Exception if a thread fails
+     */
+    public void testReplicateUnderConcurrentSetters(  ) throws Exception
+    {
+        final PlutoSession plutoSession = new PlutoSession( WINDOWS_MAX_SIZE, WINDOWS_IDLE_TIME );
+        final ReplicatedSession replicatedSession = new ReplicatedSession(  );
+        replicatedSession.setAttribute( LutecePlutoConstant.LUTECEPLUTO_SESSION_PORTLET, plutoSession );
+
+        final HttpServletRequest request = replicatedSession.newRequest(  );
+        final int nWindows = WINDOWS_MAX_SIZE / 2;
+
+        runConcurrently( new Task(  )
+            {
+                public void run( int nThread )
+                {
+                    for ( int i = 0; i < ROUNDS; i++ )
+                    {
+                        PortletWindowImpl portletWindow = plutoSession.getPortletWindow( String.valueOf( ( nThread + i ) % nWindows ) );
+                        portletWindow.setPortletMode( ( ( i % 2 ) == 0 ) ? PortletMode.EDIT : PortletMode.VIEW );
+                        portletWindow.setWindowState( ( ( i % 3 ) == 0 ) ? WindowState.MAXIMIZED : WindowState.NORMAL );
+
+                        // End of the request
+                        PlutoSession.replicate( request );
+                    }
+                }
+            } );
+
+        PlutoSession replica = replicatedSession.getReplica(  );
+        Map mapReplicaWindows = replica.getPortletWindows(  );
+
+        for ( Iterator it = plutoSession.getPortletWindows(  ).values(  ).iterator(  ); it.hasNext(  ); )
+        {
+            PortletWindowImpl portletWindow = (PortletWindowImpl) it.next(  );
+            assertFalse( portletWindow.isDirty(  ) );
+
+            PortletWindowImpl replicaWindow = (PortletWindowImpl) mapReplicaWindows.get( portletWindow.getId(  )
+                                                                                                   .toString(  ) );
+
+            if ( portletWindow.isDefault(  ) )
+            {
+                assertNull( replicaWindow );
+            }
+            else
+            {
+                assertNotNull( replicaWindow );
+                assertEquals( portletWindow.getPortletMode(  ), replicaWindow.getPortletMode(  ) );
+                assertEquals( portletWindow.getWindowState(  ), replicaWindow.getWindowState(  ) );
+            }
+        }
+    }
+
+    /**
+     * Run a task in several threads started together, and rethrow the first
+     * failure of a thread
+     *
+     * @param task The task
+     * @throws Exception if a thread fails
+     */
+    private static void runConcurrently( final Task task )
+        throws Exception
+    {
+        final CyclicBarrier barrier = new CyclicBarrier( THREADS );
+        final List listFailures = Collections.synchronizedList( new ArrayList(  ) );
+        Thread[] threads = new Thread[THREADS];
+
+        for ( int i = 0; i < THREADS; i++ )
+        {
+            final int nThread = i;
+            threads[i] = new Thread(  )
+                    {
+                        public void run(  )
+                        {
+                            try
+                            {
+                                barrier.await(  );
+                                task.run( nThread );
+                            }
+                            catch ( Throwable e )
+                            {
+                                listFailures.add( e );
+                            }
+                        }
+                    };
+            threads[i].start(  );
+        }
+
+        for ( int i = 0; i < THREADS; i++ )
+        {
+            threads[i].join(  );
+        }
+
+        if ( !listFailures.isEmpty(  ) )
+        {
+            Throwable failure = (Throwable) listFailures.get( 0 );
+
+            if ( failure instanceof Error )
+            {
+                throw (Error) failure;
+            }
+
+            throw (Exception) failure;
+        }
+    }
+
+    /**
+     * A task run by each thread
+     */
+    private interface Task
+    {
+        /**
+         * Run the task
+         *
+         * @param nThread The index of the thread
+         * @throws Exception if the task fails
+         */
+        void run( int nThread ) throws Exception;
+    }
+
+    /**
+     * HTTP session replicated on each <code>setAttribute</code>: the Pluto
+     * session is serialized, as a session manager does
+     */
+    private static final class ReplicatedSession implements InvocationHandler
+    {
+        private final Map _mapAttributes = new HashMap(  );
+        private byte[] _replica;
+
+        /**
+         * Set an attribute and replicate the Pluto session
+         *
+         * @param strName The name of the attribute
+         * @param value The value of the attribute
+         */
+        synchronized void setAttribute( String strName, Object value )
+        {
+            _mapAttributes.put( strName, value );
+
+            try
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(  );
+                ObjectOutputStream out = new ObjectOutputStream( bytes );
+                ( (PlutoSession) value ).writeExternal( out );
+                out.close(  );
+                _replica = bytes.toByteArray(  );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException( e.getMessage(  ) );
+            }
+        }
+
+        /**
+         * Return the last replicated Pluto session
+         *
+         * @return the Pluto session read from the last replication
+         * @throws IOException if the replication can't be read
+         */
+        synchronized PlutoSession getReplica(  ) throws IOException
+        {
+            PlutoSession replica = new PlutoSession( WINDOWS_MAX_SIZE, WINDOWS_IDLE_TIME );
+            replica.readExternal( new ObjectInputStream( new ByteArrayInputStream( _replica ) ) );
+
+            return replica;
+        }
+
+        /**
+         * Create a request of the session
+         *
+         * @return the request
+         */
+        HttpServletRequest newRequest(  )
+        {
+            final HttpSession session = (HttpSession) Proxy.newProxyInstance( getClass(  ).getClassLoader(  ),
+                    new Class[] { HttpSession.class }, this );
+
+            return (HttpServletRequest) Proxy.newProxyInstance( getClass(  ).getClassLoader(  ),
+                new Class[] { HttpServletRequest.class },
+                new InvocationHandler(  )
+                {
+                    public Object invoke( Object proxy, Method method, Object[] args )
+                    {
+                        if ( method.getName(  ).equals( "getSession" ) )
+                        {
+                            return session;
+                        }
+
+                        throw new UnsupportedOperationException( method.getName(  ) );
+                    }
+                } );
+        }
+
+        /**
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        public Object invoke( Object proxy, Method method, Object[] args )
+        {
+            if ( method.getName(  ).equals( "getAttribute" ) )
+            {
+                synchronized ( this )
+                {
+                    return _mapAttributes.get( args[0] );
+                }
+            }
+
+            if ( method.getName(  ).equals( "setAttribute" ) )
+            {
+                setAttribute( (String) args[0], args[1] );
+
+                return null;
+            }
+
+            if ( method.getName(  ).equals( "getId" ) )
+            {
+                return "test";
+            }
+
+            throw new UnsupportedOperationException( method.getName(  ) );
+        }
+    }
+}